@@ -5,6 +5,9 @@ import org.docheinstein.commons.types.StringUtil;
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
@@ -95,6 +98,145 @@ public class CryptoUtil {
         }
     }
 
+    // Streaming checksums
+
+    public static class Checksum {
+
+        /**
+         * Algorithms supported by {@link Checksum}.
+         */
+        public enum Algorithm {
+            SHA256("SHA-256"),
+            SHA1("SHA-1"),
+            MD5("MD5"),
+            CRC32(null);
+
+            private final String mDigestName;
+
+            Algorithm(String digestName) {
+                mDigestName = digestName;
+            }
+        }
+
+        private final Algorithm mAlgorithm;
+        private final MessageDigest mDigest;
+        private final java.util.zip.CRC32 mCrc;
+
+        private Checksum(Algorithm algorithm) {
+            mAlgorithm = algorithm;
+            if (algorithm == Algorithm.CRC32) {
+                mDigest = null;
+                mCrc = new java.util.zip.CRC32();
+            }
+            else {
+                try {
+                    mDigest = MessageDigest.getInstance(algorithm.mDigestName);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(algorithm.mDigestName + " not supported");
+                }
+                mCrc = null;
+            }
+        }
+
+        /**
+         * Creates a checksum that can be fed incrementally, e.g. while
+         * the data is streamed, without keeping the data in memory.
+         * @param algorithm the algorithm
+         * @return the checksum
+         */
+        public static Checksum create(Algorithm algorithm) {
+            return new Checksum(algorithm);
+        }
+
+        /**
+         * Returns the algorithm of this checksum.
+         * @return the algorithm
+         */
+        public Algorithm getAlgorithm() {
+            return mAlgorithm;
+        }
+
+        /**
+         * Updates the checksum with the given bytes.
+         * @param bytes the bytes
+         * @param offset the offset of the first byte
+         * @param length the amount of bytes
+         * @return this checksum
+         */
+        public Checksum update(byte[] bytes, int offset, int length) {
+            if (mCrc != null)
+                mCrc.update(bytes, offset, length);
+            else
+                mDigest.update(bytes, offset, length);
+            return this;
+        }
+
+        /**
+         * Updates the checksum with the remaining bytes of the given buffer,
+         * which is consumed.
+         * @param buffer the buffer
+         * @return this checksum
+         */
+        public Checksum update(ByteBuffer buffer) {
+            if (mCrc != null)
+                mCrc.update(buffer);
+            else
+                mDigest.update(buffer);
+            return this;
+        }
+
+        /**
+         * Updates the checksum with the content of the given stream, until
+         * its end; the stream is not closed.
+         * @param in the stream
+         * @return this checksum
+         * @throws IOException if the stream can't be read
+         */
+        public Checksum update(InputStream in) throws IOException {
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = in.read(buffer)) > 0)
+                update(buffer, 0, len);
+            return this;
+        }
+
+        /**
+         * Completes the checksum and returns its value; the checksum is reset.
+         * @return the checksum bytes (big endian for CRC32)
+         */
+        public byte[] digest() {
+            if (mDigest != null)
+                return mDigest.digest();
+
+            long value = mCrc.getValue();
+            mCrc.reset();
+            return new byte[] {
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value
+            };
+        }
+
+        /**
+         * Completes the checksum and returns its value as a lowercase
+         * hex string; the checksum is reset.
+         * @return the hex representation of the checksum
+         */
+        public String digestToHex() {
+            return toHex(digest());
+        }
+
+        /**
+         * Encodes the given bytes as a lowercase hex string.
+         * @param bytes the bytes
+         * @return the hex string
+         */
+        public static String toHex(byte[] bytes) {
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes)
+                sb.append(String.format("%02x", b & 0xFF));
+            return sb.toString();
+        }
+    }
+
     public static class MD5 {
 
         /**
@@ -0,0 +1,49 @@
+package org.docheinstein.commons.file;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of the buffers used by the copies of {@link FileUtil}, so that
+ * copies done in tight loops (e.g. one per entry of a zip) don't allocate
+ * a new buffer each time.
+ * <p>
+ * The pool is bounded: buffers released while the pool is full are left
+ * to the garbage collector, thus at most {@link #CAPACITY} buffers are
+ * retained.
+ */
+final class FileBufferPool {
+
+    /**
+     * Size of the pooled buffers.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum amount of retained buffers.
+     */
+    static final int CAPACITY = Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(CAPACITY);
+
+    private FileBufferPool() {}
+
+    /**
+     * Takes a buffer from the pool, or allocates a new one if the pool is empty.
+     * @return a buffer of {@link #BUFFER_SIZE} bytes
+     */
+    static byte[] acquire() {
+        byte[] buffer = BUFFERS.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Gives back a buffer obtained with {@link #acquire()}; the buffer
+     * must not be used anymore by the caller.
+     * @param buffer the buffer
+     */
+    static void release(byte[] buffer) {
+        if (buffer != null && buffer.length == BUFFER_SIZE)
+            BUFFERS.offer(buffer);
+    }
+}
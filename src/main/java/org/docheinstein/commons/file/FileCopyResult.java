@@ -0,0 +1,62 @@
+package org.docheinstein.commons.file;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a copy done by {@link FileUtil}.
+ */
+public final class FileCopyResult {
+
+    private final long mBytes;
+    private final long mElapsedNanos;
+    private final boolean mKernelCopy;
+
+    FileCopyResult(long bytes, long elapsedNanos, boolean kernelCopy) {
+        mBytes = bytes;
+        mElapsedNanos = elapsedNanos;
+        mKernelCopy = kernelCopy;
+    }
+
+    /**
+     * Returns the amount of copied bytes.
+     * @return the copied bytes
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the time the copy took.
+     * @return the elapsed millis
+     */
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mElapsedNanos);
+    }
+
+    /**
+     * Returns the throughput of the copy.
+     * @return the throughput in bytes per second, or 0 if nothing has been copied
+     */
+    public double getThroughput() {
+        return mElapsedNanos > 0 ? mBytes * 1e9 / mElapsedNanos : 0;
+    }
+
+    /**
+     * Returns whether the data has been moved by the operating system
+     * ({@link java.nio.channels.FileChannel#transferTo} or
+     * {@link java.nio.channels.FileChannel#transferFrom}) instead of being
+     * copied through a buffer of the heap.
+     * @return whether the kernel copy path has been used
+     */
+    public boolean isKernelCopy() {
+        return mKernelCopy;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+            "FileCopyResult{%d bytes, %dms, %.0f B/s, kernel: %b}",
+            mBytes, getElapsedMillis(), getThroughput(), mKernelCopy);
+    }
+}
@@ -0,0 +1,95 @@
+package org.docheinstein.commons.file;
+
+import org.docheinstein.commons.adt.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of an operation on a whole tree of files, such as
+ * {@link FileUtil#deleteRecursiveParallel(File)} and
+ * {@link FileUtil#copyTreeParallel(File, File)}.
+ * <p>
+ * The operation goes on when an entry fails, thus the result reports
+ * both what has been done and the list of the entries that failed.
+ */
+public final class FileTreeResult {
+
+    private final long mFiles;
+    private final long mDirectories;
+    private final long mBytes;
+    private final long mElapsedNanos;
+    private final List<Pair<File, IOException>> mErrors;
+
+    FileTreeResult(long files, long directories, long bytes, long elapsedNanos,
+                   List<Pair<File, IOException>> errors) {
+        mFiles = files;
+        mDirectories = directories;
+        mBytes = bytes;
+        mElapsedNanos = elapsedNanos;
+        mErrors = Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Returns the amount of files (anything but directories) processed
+     * successfully.
+     * @return the processed files
+     */
+    public long getFiles() {
+        return mFiles;
+    }
+
+    /**
+     * Returns the amount of directories processed successfully.
+     * @return the processed directories
+     */
+    public long getDirectories() {
+        return mDirectories;
+    }
+
+    /**
+     * Returns the amount of bytes copied (0 for the deletions).
+     * @return the copied bytes
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the time the operation took.
+     * @return the elapsed millis
+     */
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mElapsedNanos);
+    }
+
+    /**
+     * Returns the entries that failed, each with the cause of the failure.
+     * <p>
+     * A directory whose content can't be processed entirely is not
+     * reported itself, only the entries that failed are.
+     * @return the errors, in no particular order
+     */
+    public List<Pair<File, IOException>> getErrors() {
+        return mErrors;
+    }
+
+    /**
+     * Returns whether the whole tree has been processed.
+     * @return whether no error occurred
+     */
+    public boolean isSuccessful() {
+        return mErrors.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+            "FileTreeResult{files: %d, directories: %d, bytes: %d, %dms, errors: %d}",
+            mFiles, mDirectories, mBytes, getElapsedMillis(), mErrors.size());
+    }
+}
@@ -3,10 +3,18 @@ package org.docheinstein.commons.file;
 import org.docheinstein.commons.internal.DocCommonsLogger;
 
 import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -20,6 +28,16 @@ public class FileUtil {
 
     private static final String ENDL = System.getProperty("line.separator");
 
+    // Maximum amount of bytes read by a single read of readAllBytes: the JDK
+    // reads into the heap through a native buffer as large as the read
+    private static final int READ_CHUNK_SIZE = 256 * 1024;
+
+    // Maximum amount of bytes moved by a single transferTo/transferFrom
+    private static final long TRANSFER_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    // Largest array the VMs can allocate
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
     /**
      * Checks whether the given folder exists, and if not tries to create the
      * directory via {@link File#mkdirs()}
@@ -59,19 +77,146 @@ public class FileUtil {
     }
 
     /**
-     * Copies a file from a resource to a target output stream.
+     * Copies the content of a stream to another stream; neither stream is closed.
+     * <p>
+     * If both are plain file streams the data is moved by the operating
+     * system, as {@link #copy(ReadableByteChannel, WritableByteChannel)}
+     * does, otherwise it's copied through a pooled buffer.
      * @param source the resource to copy
      * @param target the output destination
-     * @throws IOException if the the copy fails
+     * @throws IOException if the copy fails
+     * @see #copyMeasured(InputStream, OutputStream)
      */
     public static void copy(InputStream source,
                             OutputStream target) throws IOException {
-        final int bufferSize = 4096;
-        final byte[] buffer = new byte[bufferSize];
+        copyMeasured(source, target);
+    }
+
+    /**
+     * Copies the content of a stream to another stream as
+     * {@link #copy(InputStream, OutputStream)} does, reporting the outcome.
+     * @param source the resource to copy
+     * @param target the output destination
+     * @return the outcome of the copy
+     * @throws IOException if the copy fails
+     */
+    public static FileCopyResult copyMeasured(InputStream source,
+                                              OutputStream target) throws IOException {
+        // Subclasses may alter the data, thus only the plain streams are bypassed
+        if (source.getClass() == FileInputStream.class &&
+            target.getClass() == FileOutputStream.class) {
+            return copy(((FileInputStream) source).getChannel(),
+                        ((FileOutputStream) target).getChannel());
+        }
+
+        long start = System.nanoTime();
+        long bytes = bufferedCopy(source, target);
+        return new FileCopyResult(bytes, System.nanoTime() - start, false);
+    }
+
+    /**
+     * Copies the content of a channel to another channel, starting from
+     * their current positions; neither channel is closed.
+     * <p>
+     * If the source is a file the data is moved with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+     * (which sends it straight to files and sockets), if the target
+     * is a file with {@link FileChannel#transferFrom(ReadableByteChannel, long, long)},
+     * otherwise it's copied through a pooled buffer.
+     * The channels must be in blocking mode.
+     * @param source the channel to copy
+     * @param target the output destination
+     * @return the outcome of the copy
+     * @throws IOException if the copy fails
+     */
+    public static FileCopyResult copy(ReadableByteChannel source,
+                                      WritableByteChannel target) throws IOException {
+        long start = System.nanoTime();
+        long bytes = 0;
+
+        if (source instanceof FileChannel) {
+            FileChannel in = (FileChannel) source;
+            long position = in.position();
+            long size = in.size();
+            long count;
+
+            while (position < size && (count = in.transferTo(
+                    position, Math.min(size - position, TRANSFER_CHUNK_SIZE), target)) > 0) {
+                position += count;
+                bytes += count;
+            }
+
+            // transferTo doesn't move the position of the source
+            in.position(position);
+        }
+        else if (target instanceof FileChannel) {
+            FileChannel out = (FileChannel) target;
+            long position = out.position();
+            long count;
+
+            while ((count = out.transferFrom(source, position, TRANSFER_CHUNK_SIZE)) > 0) {
+                position += count;
+                bytes += count;
+            }
+
+            // transferFrom doesn't move the position of the target
+            out.position(position);
+        }
+
+        boolean kernelCopy = bytes > 0;
+
+        // Whatever hasn't been transferred, e.g. the content of files that
+        // report no size or that grew meanwhile
+        bytes += bufferedCopy(source, target);
+
+        return new FileCopyResult(bytes, System.nanoTime() - start, kernelCopy);
+    }
+
+    /**
+     * Copies the file at the given path to the given path.
+     * @param source the path of the file to copy
+     * @param target the path of the copy
+     * @return the outcome of the copy
+     * @throws IOException if the copy fails
+     * @see #copy(File, File)
+     */
+    public static FileCopyResult copy(String source, String target) throws IOException {
+        return copy(new File(source), new File(target));
+    }
+
+    /**
+     * Copies a file, replacing the target if it already exists.
+     * <p>
+     * The data is moved by the operating system without passing through
+     * the heap, see {@link #copy(ReadableByteChannel, WritableByteChannel)}.
+     * @param source the file to copy
+     * @param target the copy
+     * @return the outcome of the copy
+     * @throws IOException if the copy fails
+     */
+    public static FileCopyResult copy(File source, File target) throws IOException {
+        // Opening the target would truncate the source
+        if (target.exists() && Files.isSameFile(source.toPath(), target.toPath()))
+            throw new IOException("Can't copy a file to itself: " + source);
+
+        FileCopyResult result = copyFile(source.toPath(), target.toPath());
+        L.out("Copied " + source + " to " + target + ": " + result);
+        return result;
+    }
 
-        int nextCount;
-        while ((nextCount = source.read(buffer)) >= 0) {
-            target.write(buffer, 0, nextCount);
+    /**
+     * Copies a file, replacing the target if it already exists.
+     * @param source the file to copy
+     * @param target the copy
+     * @return the outcome of the copy
+     * @throws IOException if the copy fails
+     */
+    static FileCopyResult copyFile(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target,
+                 StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            return copy(in, out);
         }
     }
 
@@ -190,6 +335,87 @@ public class FileUtil {
         return deleteOk && path.delete();
     }
 
+    /**
+     * Deletes a directory tree using a worker per available processor.
+     * @param path the path of the directory to delete
+     * @return the outcome of the deletion
+     * @see #deleteRecursiveParallel(File, int)
+     */
+    public static FileTreeResult deleteRecursiveParallel(String path) {
+        return deleteRecursiveParallel(new File(path));
+    }
+
+    /**
+     * Deletes a directory tree using a worker per available processor.
+     * @param path the directory to delete
+     * @return the outcome of the deletion
+     * @see #deleteRecursiveParallel(File, int)
+     */
+    public static FileTreeResult deleteRecursiveParallel(File path) {
+        return deleteRecursiveParallel(path, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Deletes a directory tree, spreading the traversal of the directories
+     * across the given amount of worker threads.
+     * <p>
+     * Unlike {@link #deleteRecursive(File)}, symbolic links are deleted
+     * instead of followed, and the deletion goes on when an entry can't
+     * be deleted: the failed entries are reported by the result.
+     * At most a file descriptor per worker is open at any time.
+     * @param path the directory (or file) to delete
+     * @param parallelism the amount of worker threads
+     * @return the outcome of the deletion
+     */
+    public static FileTreeResult deleteRecursiveParallel(File path, int parallelism) {
+        FileTreeResult result = ParallelFileTree.delete(path, parallelism);
+        L.out("Deleted " + path + ": " + result);
+        return result;
+    }
+
+    /**
+     * Copies a directory tree using a worker per available processor.
+     * @param source the path of the directory to copy
+     * @param target the path of the copy
+     * @return the outcome of the copy
+     * @see #copyTreeParallel(File, File, int)
+     */
+    public static FileTreeResult copyTreeParallel(String source, String target) {
+        return copyTreeParallel(new File(source), new File(target));
+    }
+
+    /**
+     * Copies a directory tree using a worker per available processor.
+     * @param source the directory to copy
+     * @param target the copy
+     * @return the outcome of the copy
+     * @see #copyTreeParallel(File, File, int)
+     */
+    public static FileTreeResult copyTreeParallel(File source, File target) {
+        return copyTreeParallel(source, target, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Copies a directory tree, spreading the traversal of the directories
+     * and the copies of the files across the given amount of worker threads.
+     * <p>
+     * The copy is merged with the existing directories of the target and
+     * replaces its existing files; the files are copied as
+     * {@link #copy(File, File)} does, while symbolic links are copied as
+     * links. The copy goes on when an entry can't be copied: the failed
+     * entries are reported by the result.
+     * At most two file descriptors per worker are open at any time.
+     * @param source the directory (or file) to copy
+     * @param target the copy
+     * @param parallelism the amount of worker threads
+     * @return the outcome of the copy
+     */
+    public static FileTreeResult copyTreeParallel(File source, File target, int parallelism) {
+        FileTreeResult result = ParallelFileTree.copy(source, target, parallelism);
+        L.out("Copied " + source + " to " + target + ": " + result);
+        return result;
+    }
+
     /**
      * Writes the given content to a file.
      * @param file the file
@@ -269,52 +495,255 @@ public class FileUtil {
 
     /**
      * Reads the content of a file using the given line separator.
+     * <p>
+     * The file is decoded with the platform default charset and its lines
+     * are joined with the given separator, without a trailing one.
      * @param file the file to read
      * @param lineSeparator the line separator to use
-     * @return the content to the file
+     * @return the content to the file, or null if it can't be read
+     * @see #readString(File, Charset, String)
      */
     public static String readFile(File file, String lineSeparator) {
         if (!file.exists())
             return null;
 
-        FileReader reader = null;
-        BufferedReader bufferedReader = null;
-
         try {
-            reader = new FileReader(file);
-            bufferedReader = new BufferedReader(reader);
+            return readString(file, Charset.defaultCharset(), lineSeparator);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the whole content of the file at the given path.
+     * @param path the path of the file to read
+     * @return the content of the file
+     * @throws IOException if the file can't be read
+     * @see #readAllBytes(File)
+     */
+    public static byte[] readAllBytes(String path) throws IOException {
+        return readAllBytes(new File(path));
+    }
+
+    /**
+     * Reads the whole content of a file.
+     * <p>
+     * The file is read straight into the returned array, with a single
+     * read for small files and with positional reads of bounded size for
+     * large ones (which are as fast as copying out of a memory mapping,
+     * without leaving a mapping behind); files that report no size
+     * (e.g. the ones of /proc) are read until the end of the stream.
+     * For scanning large files without copying them see {@link #map(File)}.
+     * @param file the file to read
+     * @return the content of the file
+     * @throws IOException if the file can't be read or it's too large for an array
+     */
+    public static byte[] readAllBytes(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
 
-            String line;
+            if (size > MAX_ARRAY_SIZE)
+                throw new IOException("File too large to be read in memory: " + file);
 
-            StringBuilder stringBuilder = new StringBuilder();
+            if (size == 0)
+                return readUntilEnd(in);
 
-            // Read the first line outside the cycle in order not to add ENDL at the EOF
-            line = bufferedReader.readLine();
-            if (line != null) {
-                stringBuilder.append(line);
+            byte[] bytes = new byte[(int) size];
+            int read = 0;
+            int count;
 
-                while ((line = bufferedReader.readLine()) != null) {
-                    // L.debug(LOGGER_TAG, "Reading line:" + line);
-                    stringBuilder.append(lineSeparator);
-                    stringBuilder.append(line);
-                }
+            while (read < bytes.length && (count = channel.read(
+                    ByteBuffer.wrap(bytes, read, Math.min(READ_CHUNK_SIZE, bytes.length - read)),
+                    read)) > 0)
+                read += count;
+
+            // The file has been truncated meanwhile
+            return read < bytes.length ? Arrays.copyOf(bytes, read) : bytes;
+        }
+    }
+
+    /**
+     * Reads the whole content of the file at the given path as a string.
+     * @param path the path of the file to read
+     * @param charset the charset of the file
+     * @return the content of the file
+     * @throws IOException if the file can't be read
+     * @see #readString(File, Charset)
+     */
+    public static String readString(String path, Charset charset) throws IOException {
+        return readString(new File(path), charset);
+    }
+
+    /**
+     * Reads the whole content of a file as a string, as is.
+     * @param file the file to read
+     * @param charset the charset of the file
+     * @return the content of the file
+     * @throws IOException if the file can't be read
+     */
+    public static String readString(File file, Charset charset) throws IOException {
+        return new String(readAllBytes(file), charset);
+    }
+
+    /**
+     * Reads the whole content of the file at the given path as a string,
+     * normalizing the line separators.
+     * @param path the path of the file to read
+     * @param charset the charset of the file
+     * @param lineSeparator the line separator to use
+     * @return the content of the file
+     * @throws IOException if the file can't be read
+     * @see #readString(File, Charset, String)
+     */
+    public static String readString(String path, Charset charset,
+                                    String lineSeparator) throws IOException {
+        return readString(new File(path), charset, lineSeparator);
+    }
+
+    /**
+     * Reads the whole content of a file as a string, normalizing the
+     * line separators as {@link #normalizeLineSeparators(String, String)} does.
+     * @param file the file to read
+     * @param charset the charset of the file
+     * @param lineSeparator the line separator to use
+     * @return the content of the file
+     * @throws IOException if the file can't be read
+     */
+    public static String readString(File file, Charset charset,
+                                    String lineSeparator) throws IOException {
+        return normalizeLineSeparators(readString(file, charset), lineSeparator);
+    }
+
+    /**
+     * Maps the file at the given path in memory, read-only.
+     * @param path the path of the file to map
+     * @return the buffer of the mapped file
+     * @throws IOException if the file can't be mapped
+     * @see #map(File)
+     */
+    public static MappedByteBuffer map(String path) throws IOException {
+        return map(new File(path));
+    }
+
+    /**
+     * Maps a file in memory, read-only.
+     * <p>
+     * The content is paged in by the operating system while the buffer
+     * is accessed, without being copied into the heap: this is the
+     * cheapest way for scanning large files.
+     * The mapping stays valid until the buffer is garbage collected, even
+     * though the file is closed by this method: until then the address
+     * space of the file stays reserved and, on Windows, the file can't be
+     * deleted or truncated. The content seen through the buffer is
+     * undefined if the file is modified meanwhile.
+     * @param file the file to map
+     * @return the buffer of the mapped file
+     * @throws IOException if the file can't be mapped or it's larger than 2GB
+     */
+    public static MappedByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large to be mapped in a single buffer: " + file);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Replaces the line terminators ("\n", "\r" or "\r\n") of the given
+     * content with the given line separator, dropping the terminator of
+     * the last line (as joining the lines returned by
+     * {@link BufferedReader#readLine()} does).
+     * @param content the content
+     * @param lineSeparator the line separator to use
+     * @return the normalized content
+     */
+    public static String normalizeLineSeparators(String content, String lineSeparator) {
+        int end = content.length();
+
+        if (end > 0 && content.charAt(end - 1) == '\n')
+            end--;
+        if (end > 0 && content.charAt(end - 1) == '\r' &&
+            (end == content.length() || content.charAt(end) == '\n'))
+            end--;
+
+        // Fast path: already normalized
+        if ("\n".equals(lineSeparator) && content.indexOf('\r') < 0)
+            return content.substring(0, end);
+
+        StringBuilder sb = new StringBuilder(end + 16);
+        int lineStart = 0;
+
+        // Next terminators, found with indexOf (way faster than a loop on the chars)
+        int nextLf = content.indexOf('\n');
+        int nextCr = content.indexOf('\r');
+
+        while (lineStart < end) {
+            if (nextLf >= 0 && nextLf < lineStart)
+                nextLf = content.indexOf('\n', lineStart);
+            if (nextCr >= 0 && nextCr < lineStart)
+                nextCr = content.indexOf('\r', lineStart);
+
+            int i = nextLf < 0 ? nextCr : nextCr < 0 ? nextLf : Math.min(nextLf, nextCr);
+            if (i < 0 || i >= end)
+                break;
+
+            sb.append(content, lineStart, i).append(lineSeparator);
+            if (i == nextCr && i + 1 < end && content.charAt(i + 1) == '\n')
+                i++;
+            lineStart = i + 1;
+        }
+
+        if (lineStart < end)
+            sb.append(content, lineStart, end);
+
+        return sb.toString();
+    }
+
+    private static long bufferedCopy(InputStream source,
+                                     OutputStream target) throws IOException {
+        byte[] buffer = FileBufferPool.acquire();
+        try {
+            long bytes = 0;
+            int count;
+            while ((count = source.read(buffer)) >= 0) {
+                target.write(buffer, 0, count);
+                bytes += count;
             }
-            return stringBuilder.toString();
-        } catch (IOException e) {
-            return null;
+            return bytes;
         } finally {
-            try {
-                if (bufferedReader != null)
-                    bufferedReader.close();
-                if (reader != null)
-                    reader.close();
-            }
-            catch (IOException e) {
-                return null;
+            FileBufferPool.release(buffer);
+        }
+    }
+
+    private static long bufferedCopy(ReadableByteChannel source,
+                                     WritableByteChannel target) throws IOException {
+        byte[] array = FileBufferPool.acquire();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(array);
+            long bytes = 0;
+            int count;
+            while ((count = source.read(buffer)) >= 0) {
+                // Called on Buffer for Java 8, which lacks the ByteBuffer overrides
+                ((Buffer) buffer).flip();
+                while (buffer.hasRemaining())
+                    target.write(buffer);
+                ((Buffer) buffer).clear();
+                bytes += count;
             }
+            return bytes;
+        } finally {
+            FileBufferPool.release(array);
         }
     }
 
+    private static byte[] readUntilEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(in, out);
+        return out.toByteArray();
+    }
+
     /**
      * Reads the file at the given path line by line.
      * @param path the path of the file to read
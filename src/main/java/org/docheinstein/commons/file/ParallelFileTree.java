@@ -0,0 +1,395 @@
+package org.docheinstein.commons.file;
+
+import org.docheinstein.commons.adt.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deletes and copies trees of files spreading the traversal across the
+ * workers of a {@link ForkJoinPool}.
+ * <p>
+ * Each directory is a task, which lists the directory, forks a task for
+ * each subdirectory and processes its files in batches; a directory is
+ * deleted (or its copy completed) once all its subtasks are over.
+ * The tasks are {@link CountedCompleter}s: no worker ever blocks waiting
+ * for another task, thus the pool never adds compensation threads and at
+ * most two files are open per worker (a directory is fully listed, and
+ * its stream closed, before its subtasks start).
+ */
+final class ParallelFileTree {
+
+    // Amount of files processed by a single task
+    private static final int BATCH_SIZE = 256;
+
+    private final LongAdder mFiles = new LongAdder();
+    private final LongAdder mDirectories = new LongAdder();
+    private final LongAdder mBytes = new LongAdder();
+    private final Queue<Pair<File, IOException>> mErrors = new ConcurrentLinkedQueue<>();
+    private final long mStart = System.nanoTime();
+
+    private ParallelFileTree() {}
+
+    /**
+     * Deletes the given file or directory tree; symbolic links are deleted,
+     * not followed.
+     * @param root the root of the tree
+     * @param parallelism the amount of workers
+     * @return the outcome of the deletion
+     */
+    static FileTreeResult delete(File root, int parallelism) {
+        ParallelFileTree tree = new ParallelFileTree();
+        Path path = root.toPath();
+
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                Files.delete(path);
+                tree.mFiles.increment();
+            } catch (IOException e) {
+                tree.error(path, e);
+            }
+            return tree.result();
+        }
+
+        return tree.run(new DeleteDirectory(tree, null, path), parallelism);
+    }
+
+    /**
+     * Copies the given file or directory tree to the given target, merging
+     * with the existing directories and replacing the existing files;
+     * symbolic links are copied as links.
+     * @param source the root of the tree
+     * @param target the root of the copy
+     * @param parallelism the amount of workers
+     * @return the outcome of the copy
+     */
+    static FileTreeResult copy(File source, File target, int parallelism) {
+        ParallelFileTree tree = new ParallelFileTree();
+        Path sourcePath = source.toPath();
+        Path targetPath = target.toPath();
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(sourcePath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            tree.error(sourcePath, e);
+            return tree.result();
+        }
+
+        if (!attrs.isDirectory()) {
+            tree.copyFile(sourcePath, targetPath, attrs);
+            return tree.result();
+        }
+
+        try {
+            // The copy would be copied again, endlessly
+            String sourceRoot = source.getCanonicalPath() + File.separator;
+            if ((target.getCanonicalPath() + File.separator).startsWith(sourceRoot))
+                throw new IOException("Can't copy a directory into itself: " + target);
+        } catch (IOException e) {
+            tree.error(sourcePath, e);
+            return tree.result();
+        }
+
+        return tree.run(new CopyDirectory(tree, null, sourcePath, targetPath), parallelism);
+    }
+
+    private FileTreeResult run(CountedCompleter<?> root, int parallelism) {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            pool.invoke(root);
+        } finally {
+            pool.shutdown();
+        }
+        return result();
+    }
+
+    private FileTreeResult result() {
+        return new FileTreeResult(
+            mFiles.sum(), mDirectories.sum(), mBytes.sum(),
+            System.nanoTime() - mStart, new ArrayList<>(mErrors));
+    }
+
+    private void error(Path path, IOException e) {
+        mErrors.add(new Pair<>(path.toFile(), e));
+    }
+
+    /**
+     * Lists the given directory, splitting its entries between the
+     * subdirectories and the other files.
+     * @return whether the listing succeeded
+     */
+    private boolean list(Path dir, List<Path> directories, List<Path> files) {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))
+                    directories.add(entry);
+                else
+                    files.add(entry);
+            }
+            return true;
+        } catch (IOException | DirectoryIteratorException e) {
+            error(dir, e instanceof DirectoryIteratorException ?
+                ((DirectoryIteratorException) e).getCause() : (IOException) e);
+            return false;
+        }
+    }
+
+    private boolean copyFile(Path source, Path target, BasicFileAttributes attrs) {
+        try {
+            if (attrs.isSymbolicLink()) {
+                Files.copy(source, target, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+            }
+            else if (attrs.isRegularFile()) {
+                mBytes.add(FileUtil.copyFile(source, target).getBytes());
+            }
+            else {
+                throw new IOException("Not a regular file: " + source);
+            }
+            mFiles.increment();
+            return true;
+        } catch (IOException e) {
+            error(source, e);
+            return false;
+        }
+    }
+
+    /**
+     * Task of a directory tree: processes a directory and completes once
+     * all the subtasks forked for its content are over.
+     */
+    @SuppressWarnings("serial")
+    private abstract static class DirectoryTask extends CountedCompleter<Void> {
+
+        final ParallelFileTree mTree;
+
+        // Whether something within the directory failed
+        volatile boolean mFailed = false;
+
+        DirectoryTask(ParallelFileTree tree, CountedCompleter<?> completer) {
+            super(completer);
+            mTree = tree;
+        }
+
+        /**
+         * Forks the given tasks as children of this one and runs the
+         * given batch in the current thread, then completes this task
+         * (if the children are over).
+         */
+        void forkAndRun(List<CountedCompleter<?>> children, Runnable inline) {
+            addToPendingCount(children.size());
+            for (CountedCompleter<?> child : children)
+                child.fork();
+            if (inline != null)
+                inline.run();
+            tryComplete();
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            CountedCompleter<?> parent = getCompleter();
+            if (mFailed && parent instanceof DirectoryTask)
+                ((DirectoryTask) parent).mFailed = true;
+        }
+    }
+
+    /**
+     * Deletes a directory tree.
+     */
+    @SuppressWarnings("serial")
+    private static class DeleteDirectory extends DirectoryTask {
+
+        private final Path mDirectory;
+
+        DeleteDirectory(ParallelFileTree tree, CountedCompleter<?> completer, Path directory) {
+            super(tree, completer);
+            mDirectory = directory;
+        }
+
+        @Override
+        public void compute() {
+            List<Path> directories = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+
+            if (!mTree.list(mDirectory, directories, files)) {
+                mFailed = true;
+                tryComplete();
+                return;
+            }
+
+            List<CountedCompleter<?>> children = new ArrayList<>();
+            for (Path directory : directories)
+                children.add(new DeleteDirectory(mTree, this, directory));
+
+            // The first batch is deleted by this task, the others are forked
+            for (int i = BATCH_SIZE; i < files.size(); i += BATCH_SIZE)
+                children.add(new DeleteFiles(this, files.subList(i, Math.min(files.size(), i + BATCH_SIZE))));
+
+            List<Path> batch = files.subList(0, Math.min(files.size(), BATCH_SIZE));
+            forkAndRun(children, () -> {
+                if (!deleteFiles(mTree, batch))
+                    mFailed = true;
+            });
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            // Deleting a directory whose content failed would fail too
+            if (!mFailed) {
+                try {
+                    Files.delete(mDirectory);
+                    mTree.mDirectories.increment();
+                } catch (IOException e) {
+                    mTree.error(mDirectory, e);
+                    mFailed = true;
+                }
+            }
+            super.onCompletion(caller);
+        }
+    }
+
+    /**
+     * Deletes a batch of the files of a directory.
+     */
+    @SuppressWarnings("serial")
+    private static class DeleteFiles extends CountedCompleter<Void> {
+
+        private final DirectoryTask mDirectoryTask;
+        private final List<Path> mFiles;
+
+        DeleteFiles(DirectoryTask directoryTask, List<Path> files) {
+            super(directoryTask);
+            mDirectoryTask = directoryTask;
+            mFiles = files;
+        }
+
+        @Override
+        public void compute() {
+            if (!deleteFiles(mDirectoryTask.mTree, mFiles))
+                mDirectoryTask.mFailed = true;
+            tryComplete();
+        }
+    }
+
+    private static boolean deleteFiles(ParallelFileTree tree, List<Path> files) {
+        boolean ok = true;
+        for (Path file : files) {
+            try {
+                Files.delete(file);
+                tree.mFiles.increment();
+            } catch (IOException e) {
+                tree.error(file, e);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Copies a directory tree.
+     */
+    @SuppressWarnings("serial")
+    private static class CopyDirectory extends DirectoryTask {
+
+        private final Path mSource;
+        private final Path mTarget;
+
+        CopyDirectory(ParallelFileTree tree, CountedCompleter<?> completer, Path source, Path target) {
+            super(tree, completer);
+            mSource = source;
+            mTarget = target;
+        }
+
+        @Override
+        public void compute() {
+            try {
+                if (!Files.isDirectory(mTarget))
+                    Files.createDirectory(mTarget);
+            } catch (IOException e) {
+                mTree.error(mSource, e);
+                mFailed = true;
+                tryComplete();
+                return;
+            }
+
+            List<Path> directories = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+
+            if (!mTree.list(mSource, directories, files)) {
+                mFailed = true;
+                tryComplete();
+                return;
+            }
+
+            List<CountedCompleter<?>> children = new ArrayList<>();
+            for (Path directory : directories)
+                children.add(new CopyDirectory(mTree, this, directory, mTarget.resolve(directory.getFileName())));
+
+            // The first batch is copied by this task, the others are forked
+            for (int i = BATCH_SIZE; i < files.size(); i += BATCH_SIZE)
+                children.add(new CopyFiles(this, mTarget, files.subList(i, Math.min(files.size(), i + BATCH_SIZE))));
+
+            List<Path> batch = files.subList(0, Math.min(files.size(), BATCH_SIZE));
+            forkAndRun(children, () -> {
+                if (!copyFiles(mTree, mTarget, batch))
+                    mFailed = true;
+            });
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            if (!mFailed)
+                mTree.mDirectories.increment();
+            super.onCompletion(caller);
+        }
+    }
+
+    /**
+     * Copies a batch of the files of a directory.
+     */
+    @SuppressWarnings("serial")
+    private static class CopyFiles extends CountedCompleter<Void> {
+
+        private final DirectoryTask mDirectoryTask;
+        private final Path mTarget;
+        private final List<Path> mFiles;
+
+        CopyFiles(DirectoryTask directoryTask, Path target, List<Path> files) {
+            super(directoryTask);
+            mDirectoryTask = directoryTask;
+            mTarget = target;
+            mFiles = files;
+        }
+
+        @Override
+        public void compute() {
+            if (!copyFiles(mDirectoryTask.mTree, mTarget, mFiles))
+                mDirectoryTask.mFailed = true;
+            tryComplete();
+        }
+    }
+
+    private static boolean copyFiles(ParallelFileTree tree, Path target, List<Path> files) {
+        boolean ok = true;
+        for (Path file : files) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(
+                    file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                ok &= tree.copyFile(file, target.resolve(file.getFileName()), attrs);
+            } catch (IOException e) {
+                tree.error(file, e);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+}
@@ -0,0 +1,154 @@
+package org.docheinstein.commons.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffer used for move the body of a response into a file, whose size
+ * adapts to the observed throughput.
+ * <p>
+ * Each fill reads from the stream until the buffer is full or the fill
+ * time budget is over, so that the file is written with few large writes
+ * on fast links while slow links still report progress frequently.
+ * The buffer doubles while it's filled well within the budget and halves
+ * while the budget is over with the buffer mostly empty.
+ * <p>
+ * The buffer is heap backed on purpose: the body is only available as an
+ * {@link InputStream}, whose large reads land directly in the array
+ * (bypassing the internal buffering of the connection), and the array
+ * is handed to the {@link java.nio.channels.FileChannel} as is;
+ * a direct buffer would add a copy on the way in instead.
+ */
+final class HttpAdaptiveBuffer {
+
+    static final int DEFAULT_MIN_SIZE = 16 * 1024;
+    static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+    static final int DEFAULT_INITIAL_SIZE = 64 * 1024;
+
+    // Time budget of a single fill
+    private static final long FILL_BUDGET_NANOS = 100_000_000L;
+
+    private final int mMinSize;
+    private final int mMaxSize;
+
+    private byte[] mArray;
+    private ByteBuffer mBuffer;
+    private int mNextSize;
+
+    // Failure of a fill that read some data, thrown by the next fill
+    private IOException mPendingError;
+
+    private long mTransferred = 0;
+    private long mTransferNanos = 0;
+
+    /**
+     * Creates a buffer with the default sizes.
+     */
+    HttpAdaptiveBuffer() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_INITIAL_SIZE);
+    }
+
+    /**
+     * Creates a buffer.
+     * @param minSize the minimum size
+     * @param maxSize the maximum size
+     * @param initialSize the initial size
+     */
+    HttpAdaptiveBuffer(int minSize, int maxSize, int initialSize) {
+        mMinSize = minSize;
+        mMaxSize = Math.max(minSize, maxSize);
+        mNextSize = Math.max(mMinSize, Math.min(mMaxSize, initialSize));
+    }
+
+    /**
+     * Fills the buffer with the data read from the given stream.
+     * <p>
+     * If the stream fails after some data has been read, the data is
+     * returned anyway and the failure is thrown by the next fill, so that
+     * a resumed download doesn't lose it.
+     * @param in the stream
+     * @param max the maximum amount of bytes to read
+     * @return the amount of bytes read, or -1 if the stream ended
+     * @throws IOException if the stream can't be read
+     */
+    int fill(InputStream in, long max) throws IOException {
+        if (mPendingError != null) {
+            IOException e = mPendingError;
+            mPendingError = null;
+            throw e;
+        }
+
+        // The previous data has been consumed, resize if needed
+        if (mArray == null || mArray.length != mNextSize) {
+            mArray = new byte[mNextSize];
+            mBuffer = ByteBuffer.wrap(mArray);
+        }
+
+        int limit = (int) Math.min(mArray.length, max);
+        int filled = 0;
+        long start = System.nanoTime();
+        long elapsed = 0;
+
+        while (filled < limit && elapsed < FILL_BUDGET_NANOS) {
+            int len;
+            try {
+                len = in.read(mArray, filled, limit - filled);
+            } catch (IOException e) {
+                if (filled == 0)
+                    throw e;
+                mPendingError = e;
+                break;
+            }
+            if (len < 0)
+                break;
+            filled += len;
+            elapsed = System.nanoTime() - start;
+        }
+
+        // Called on Buffer: ByteBuffer.clear() and limit(int) only exist since Java 9
+        ((Buffer) mBuffer).clear();
+        ((Buffer) mBuffer).limit(filled);
+
+        if (filled == 0 && limit > 0)
+            return -1;
+
+        mTransferred += filled;
+        mTransferNanos += elapsed;
+
+        // Adapt the size for the next fill
+        if (filled == mArray.length && elapsed < FILL_BUDGET_NANOS / 4 &&
+            mArray.length < mMaxSize)
+            mNextSize = Math.min(mMaxSize, mArray.length * 2);
+        else if (elapsed >= FILL_BUDGET_NANOS && filled < mArray.length / 4 &&
+            mArray.length > mMinSize)
+            mNextSize = Math.max(mMinSize, mArray.length / 2);
+
+        return filled;
+    }
+
+    /**
+     * Returns the data of the last fill, ready to be written.
+     * @return the buffer
+     */
+    ByteBuffer buffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the size of the buffer for the next fill.
+     * @return the buffer size
+     */
+    int size() {
+        return mNextSize;
+    }
+
+    /**
+     * Returns the throughput observed while filling the buffer.
+     * @return the throughput in bytes per second
+     */
+    double getThroughput() {
+        return mTransferNanos > 0 ? mTransferred * 1e9 / mTransferNanos : 0;
+    }
+}
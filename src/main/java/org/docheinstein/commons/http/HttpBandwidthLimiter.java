@@ -0,0 +1,193 @@
+package org.docheinstein.commons.http;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket that limits the bytes per second downloaded by the
+ * {@link HttpDownloader}s it is shared among.
+ * <p>
+ * As {@link HttpRateLimiter}, the bucket is a lock free virtual scheduler:
+ * the state is the theoretical time at which the bucket will be full
+ * again, each download reserves the bytes it has just read with a single
+ * compare-and-set and then waits, if needed, until they are paid.
+ * The bucket allows bursts of a tenth of second of data.
+ * <p>
+ * The bandwidth can be changed at any time, even while downloads are
+ * waiting: the bytes already reserved and not yet paid are rescaled to
+ * the new bandwidth, thus the change applies immediately.
+ * A bandwidth of 0 disables the limit.
+ */
+public class HttpBandwidthLimiter {
+
+    private static final long NANOS_IN_SEC = TimeUnit.SECONDS.toNanos(1);
+    private static final long BURST_NANOS = NANOS_IN_SEC / 10;
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    // Maximum park time, so that the waiters notice a change of bandwidth
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private volatile long mBytesPerSecond;
+    private final AtomicLong mFullAt = new AtomicLong(System.nanoTime() - BURST_NANOS);
+
+    private final LongAdder mBytes = new LongAdder();
+    private final LongAdder mWaitNanos = new LongAdder();
+
+    /**
+     * Creates a limiter that allows the given amount of bytes per second.
+     * @param bytesPerSecond the bandwidth, or 0 for not limit it (until changed)
+     * @return a bandwidth limiter
+     */
+    public static HttpBandwidthLimiter create(long bytesPerSecond) {
+        return new HttpBandwidthLimiter(bytesPerSecond);
+    }
+
+    private HttpBandwidthLimiter(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Bandwidth can't be negative");
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Changes the bandwidth of this limiter; the downloads currently
+     * waiting are affected as well.
+     * @param bytesPerSecond the bandwidth, or 0 for not limit it
+     * @return this limiter
+     */
+    public synchronized HttpBandwidthLimiter bytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Bandwidth can't be negative");
+
+        long previous = mBytesPerSecond;
+        if (previous == bytesPerSecond)
+            return this;
+
+        while (true) {
+            long now = System.nanoTime();
+            long fullAt = mFullAt.get();
+            long debt = fullAt - now;
+            long rescaled;
+
+            if (previous == 0 || bytesPerSecond == 0 || debt <= 0)
+                rescaled = Math.min(debt, 0); // Nothing owed
+            else
+                rescaled = (long) (debt * ((double) previous / bytesPerSecond));
+
+            if (mFullAt.compareAndSet(fullAt, now + rescaled))
+                break;
+        }
+
+        mBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Returns the bandwidth of this limiter.
+     * @return the bytes per second, or 0 if not limited
+     */
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Returns whether this limiter currently limits the bandwidth.
+     * @return whether the bandwidth is limited
+     */
+    public boolean isLimited() {
+        return mBytesPerSecond > 0;
+    }
+
+    /**
+     * Returns the amount of bytes that went through this limiter.
+     * @return the bytes
+     */
+    public long getBytes() {
+        return mBytes.sum();
+    }
+
+    /**
+     * Returns the total time spent waiting because of this limiter.
+     * @return the wait time in millis
+     */
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mWaitNanos.sum());
+    }
+
+    /**
+     * Returns the maximum amount of bytes that should be read before
+     * calling {@link #acquire(long)}, so that the data flows smoothly.
+     * @return the chunk size
+     */
+    int getChunkSize() {
+        long bytesPerSecond = mBytesPerSecond;
+        if (bytesPerSecond == 0)
+            return Integer.MAX_VALUE;
+        return (int) Math.max(MIN_CHUNK_SIZE, Math.min(Integer.MAX_VALUE, bytesPerSecond / 20));
+    }
+
+    /**
+     * Pays for the given amount of bytes, waiting until the bandwidth
+     * allows them.
+     * @param bytes the bytes read
+     * @return the time waited in millis
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public long acquire(long bytes) throws InterruptedIOException {
+        mBytes.add(bytes);
+
+        long bytesPerSecond = mBytesPerSecond;
+        if (bytesPerSecond == 0)
+            return 0;
+
+        long cost = (long) (bytes * (double) NANOS_IN_SEC / bytesPerSecond);
+        long waitNanos;
+
+        while (true) {
+            long now = System.nanoTime();
+            long fullAt = mFullAt.get();
+            long base = fullAt - now > 0 ? fullAt : now;
+            if (mFullAt.compareAndSet(fullAt, base + cost)) {
+                waitNanos = Math.max(0, base + cost - BURST_NANOS - now);
+                break;
+            }
+        }
+
+        if (waitNanos <= 0)
+            return 0;
+
+        long start = System.nanoTime();
+        long deadline = start + waitNanos;
+        long remaining;
+
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NANOS));
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+
+            // The bandwidth changed: the remaining wait is rescaled as the reservations
+            long current = mBytesPerSecond;
+            if (current != bytesPerSecond) {
+                long now = System.nanoTime();
+                deadline = current == 0 ? now :
+                    now + (long) ((deadline - now) * ((double) bytesPerSecond / current));
+                bytesPerSecond = current;
+            }
+        }
+
+        long waited = System.nanoTime() - start;
+        mWaitNanos.add(waited);
+        return TimeUnit.NANOSECONDS.toMillis(waited);
+    }
+
+    @Override
+    public String toString() {
+        return "HttpBandwidthLimiter{" + (isLimited() ? mBytesPerSecond + " B/s" : "unlimited") +
+            ", bytes: " + getBytes() +
+            ", wait: " + getWaitMillis() + "ms}";
+    }
+}
@@ -0,0 +1,439 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+import org.docheinstein.commons.types.StringUtil;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Entity able to send a batch of {@link HttpRequester} concurrently.
+ * <p>
+ * The amount of requests in flight is bounded both globally and per host;
+ * requests directed to a busy host wait in a per host queue without
+ * occupying a global slot, so that a slow host does not serialize the
+ * requests directed to the other hosts.
+ */
+public class HttpBatchExecutor {
+
+    private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_BATCH_EXECUTOR}");
+
+    private static final int DEFAULT_MAX_CONCURRENCY = 16;
+    private static final int DEFAULT_MAX_CONCURRENCY_PER_HOST = 4;
+
+    private int mMaxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private int mMaxConcurrencyPerHost = DEFAULT_MAX_CONCURRENCY_PER_HOST;
+    private ExecutorService mExecutor = null;
+
+    /**
+     * Interface used for listen to the outcome of each request of a batch.
+     * <p>
+     * The methods are called from the thread that performed the request.
+     */
+    public interface BatchObserver {
+        /**
+         * Called when a request has been performed successfully.
+         * @param result the result of the request
+         */
+        void onCompleted(Result result);
+
+        /**
+         * Called when a request has failed, either because it has not
+         * been performed or because an exception occurred.
+         * @param result the result of the request
+         */
+        void onFailed(Result result);
+    }
+
+    /**
+     * The outcome of a single request of a batch.
+     */
+    public static class Result {
+        private final int mIndex;
+        private final HttpRequester mRequest;
+        private final HttpRequester.Response mResponse;
+        private final Throwable mError;
+
+        private Result(int index, HttpRequester request,
+                       HttpRequester.Response response, Throwable error) {
+            mIndex = index;
+            mRequest = request;
+            mResponse = response;
+            mError = error;
+        }
+
+        /**
+         * Returns the position of the request within the submitted batch.
+         * @return the submission index of the request
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * Returns the request this result refers to.
+         * @return the request
+         */
+        public HttpRequester getRequest() {
+            return mRequest;
+        }
+
+        /**
+         * Returns the response of the request.
+         * @return the response, or null if an exception occurred
+         */
+        public HttpRequester.Response getResponse() {
+            return mResponse;
+        }
+
+        /**
+         * Returns the exception thrown while performing the request.
+         * @return the exception, or null if none occurred
+         */
+        public Throwable getError() {
+            return mError;
+        }
+
+        /**
+         * Returns whether the request has been performed successfully.
+         * @return whether the request has been performed
+         */
+        public boolean isSuccessful() {
+            return mError == null && mResponse != null && mResponse.hasBeenPerformed();
+        }
+    }
+
+    /**
+     * A batch of requests submitted via {@link #submit(Collection, BatchObserver)}.
+     */
+    public static class Batch {
+        private final Result[] mResults;
+        private final BlockingQueue<Result> mCompleted = new LinkedBlockingQueue<>();
+        private final CountDownLatch mLatch;
+        private final AtomicInteger mTaken = new AtomicInteger(0);
+        private volatile boolean mCancelled = false;
+        private volatile HttpRequester[] mRequests = new HttpRequester[0];
+
+        private Batch(int size) {
+            mResults = new Result[size];
+            mLatch = new CountDownLatch(size);
+        }
+
+        /**
+         * Returns the amount of requests of this batch.
+         * @return the size of the batch
+         */
+        public int size() {
+            return mResults.length;
+        }
+
+        /**
+         * Returns whether every request of this batch has been completed.
+         * @return whether the batch is done
+         */
+        public boolean isDone() {
+            return mLatch.getCount() == 0;
+        }
+
+        /**
+         * Waits for the completion of every request and returns
+         * the results in submission order.
+         * @return the results in submission order
+         * @throws InterruptedException if the waiting thread is interrupted
+         */
+        public List<Result> results() throws InterruptedException {
+            mLatch.await();
+            synchronized (mResults) {
+                return Collections.unmodifiableList(Arrays.asList(mResults.clone()));
+            }
+        }
+
+        /**
+         * Waits for the next completed request and returns its result,
+         * in completion order.
+         * <p>
+         * Every result is returned once, independently from {@link #results()}.
+         * @return the next completed result, or null if all the results
+         *         have already been returned
+         * @throws InterruptedException if the waiting thread is interrupted
+         */
+        public Result nextCompleted() throws InterruptedException {
+            if (mTaken.getAndIncrement() >= mResults.length)
+                return null;
+            return mCompleted.take();
+        }
+
+        /**
+         * Cancels the requests of this batch.
+         * <p>
+         * The requests that have not been started yet complete with a
+         * {@link CancellationException}, while the ones in flight are
+         * aborted via {@link HttpRequester#cancel()}.
+         */
+        public void cancel() {
+            mCancelled = true;
+            for (HttpRequester request : mRequests)
+                request.cancel();
+        }
+
+        private void complete(Result result) {
+            synchronized (mResults) {
+                mResults[result.getIndex()] = result;
+            }
+            mCompleted.add(result);
+            mLatch.countDown();
+        }
+    }
+
+    /**
+     * Sets the maximum amount of requests in flight at the same time.
+     * @param maxConcurrency the global concurrency limit
+     * @return this executor
+     */
+    public HttpBatchExecutor maxConcurrency(int maxConcurrency) {
+        mMaxConcurrency = Math.max(1, maxConcurrency);
+        return this;
+    }
+
+    /**
+     * Sets the maximum amount of requests in flight at the same time
+     * toward the same host.
+     * @param maxConcurrencyPerHost the per host concurrency limit
+     * @return this executor
+     */
+    public HttpBatchExecutor maxConcurrencyPerHost(int maxConcurrencyPerHost) {
+        mMaxConcurrencyPerHost = Math.max(1, maxConcurrencyPerHost);
+        return this;
+    }
+
+    /**
+     * Uses the given executor for perform the requests instead of
+     * creating a dedicated thread pool for each batch.
+     * <p>
+     * The executor is not shut down by this entity.
+     * @param executor the executor
+     * @return this executor
+     */
+    public HttpBatchExecutor executor(ExecutorService executor) {
+        mExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Sends the given requests and waits for all of them.
+     * @param requests the requests to send
+     * @return the results in submission order
+     * @throws InterruptedException if the waiting thread is interrupted
+     *
+     * @see #submit(Collection, BatchObserver)
+     */
+    public List<Result> execute(Collection<HttpRequester> requests) throws InterruptedException {
+        return execute(requests, null);
+    }
+
+    /**
+     * Sends the given requests and waits for all of them.
+     * @param requests the requests to send
+     * @param observer an optional observer notified for each request
+     * @return the results in submission order
+     * @throws InterruptedException if the waiting thread is interrupted
+     *
+     * @see #submit(Collection, BatchObserver)
+     */
+    public List<Result> execute(Collection<HttpRequester> requests,
+                                BatchObserver observer) throws InterruptedException {
+        return submit(requests, observer).results();
+    }
+
+    /**
+     * Starts sending the given requests without waiting for them.
+     * @param requests the requests to send
+     * @param observer an optional observer notified for each request
+     * @return the batch handle that can be used for retrieve the results
+     */
+    public Batch submit(Collection<HttpRequester> requests, BatchObserver observer) {
+        Batch batch = new Batch(requests.size());
+        if (requests.isEmpty())
+            return batch;
+
+        ExecutorService executor = mExecutor;
+        boolean ownExecutor = executor == null;
+
+        if (ownExecutor) {
+            executor = Executors.newFixedThreadPool(
+                Math.min(mMaxConcurrency, requests.size()),
+                r -> {
+                    Thread t = new Thread(r, "http-batch");
+                    t.setDaemon(true);
+                    return t;
+                });
+        }
+
+        L.out("Submitting batch of " + requests.size() + " requests");
+
+        new Dispatcher(batch, requests, observer, executor, ownExecutor).dispatch();
+
+        return batch;
+    }
+
+    /**
+     * Schedules the requests of a batch respecting the concurrency limits.
+     */
+    private class Dispatcher {
+        private final Batch mBatch;
+        private final BatchObserver mObserver;
+        private final ExecutorService mDispatchExecutor;
+        private final boolean mOwnExecutor;
+        private final int mMaxInFlight = mMaxConcurrency;
+        private final int mMaxInFlightPerHost = mMaxConcurrencyPerHost;
+
+        // Pending requests grouped by host, in host submission order
+        private final LinkedHashMap<String, Deque<Integer>> mPending = new LinkedHashMap<>();
+        private final Map<String, Integer> mInFlightPerHost = new HashMap<>();
+        private final HttpRequester[] mRequests;
+        private final String[] mHosts;
+        private int mInFlight = 0;
+        private int mRemaining;
+
+        Dispatcher(Batch batch, Collection<HttpRequester> requests, BatchObserver observer,
+                   ExecutorService executor, boolean ownExecutor) {
+            mBatch = batch;
+            mObserver = observer;
+            mDispatchExecutor = executor;
+            mOwnExecutor = ownExecutor;
+            mRequests = requests.toArray(new HttpRequester[0]);
+            mBatch.mRequests = mRequests;
+            mHosts = new String[mRequests.length];
+            mRemaining = mRequests.length;
+
+            for (int i = 0; i < mRequests.length; i++) {
+                String host = mRequests[i].getHost();
+                mHosts[i] = StringUtil.isValid(host) ? host : "";
+                mPending.computeIfAbsent(mHosts[i], h -> new ArrayDeque<>()).add(i);
+            }
+        }
+
+        /**
+         * Starts every pending request allowed by the concurrency limits.
+         */
+        void dispatch() {
+            // The requests rejected by the executor free their slots,
+            // which are filled by the next round (never recursively)
+            boolean rejected;
+
+            do {
+                rejected = false;
+
+                for (int index : nextStartable()) {
+                    try {
+                        mDispatchExecutor.execute(() -> perform(index));
+                    } catch (RejectedExecutionException e) {
+                        L.out("Executor rejected request " + index);
+                        complete(index, null, e);
+                        rejected = true;
+                    }
+                }
+            } while (rejected);
+        }
+
+        /**
+         * Takes the pending requests allowed by the concurrency limits,
+         * counting them as in flight.
+         * @return the indexes of the requests to start
+         */
+        private List<Integer> nextStartable() {
+            List<Integer> startable = new ArrayList<>();
+
+            synchronized (this) {
+                Iterator<Map.Entry<String, Deque<Integer>>> it = mPending.entrySet().iterator();
+
+                while (mInFlight < mMaxInFlight && it.hasNext()) {
+                    Map.Entry<String, Deque<Integer>> hostPending = it.next();
+                    String host = hostPending.getKey();
+                    Deque<Integer> queue = hostPending.getValue();
+                    int hostInFlight = mInFlightPerHost.getOrDefault(host, 0);
+
+                    while (mInFlight < mMaxInFlight &&
+                           hostInFlight < mMaxInFlightPerHost &&
+                           !queue.isEmpty()) {
+                        startable.add(queue.poll());
+                        hostInFlight++;
+                        mInFlight++;
+                    }
+
+                    mInFlightPerHost.put(host, hostInFlight);
+
+                    if (queue.isEmpty())
+                        it.remove();
+                }
+            }
+
+            return startable;
+        }
+
+        private void perform(int index) {
+            HttpRequester request = mRequests[index];
+
+            if (mBatch.mCancelled) {
+                finish(index, null, new CancellationException("Batch has been cancelled"));
+                return;
+            }
+
+            HttpRequester.Response response = null;
+            Throwable error = null;
+
+            try {
+                response = request.send();
+            } catch (Throwable t) {
+                L.out("Exception occurred while sending request " + index + "\n" +
+                    StringUtil.toString(t));
+                error = t;
+            }
+
+            finish(index, response, error);
+        }
+
+        private void finish(int index, HttpRequester.Response response, Throwable error) {
+            if (!complete(index, response, error))
+                dispatch();
+        }
+
+        /**
+         * Records the outcome of a request and notifies it, without
+         * starting other requests.
+         * @param index the index of the request
+         * @param response the response, or null if not sent
+         * @param error the error, or null if none
+         * @return whether it was the last request of the batch
+         */
+        private boolean complete(int index, HttpRequester.Response response, Throwable error) {
+            Result result = new Result(index, mRequests[index], response, error);
+            boolean lastOne;
+
+            synchronized (this) {
+                mInFlight--;
+                mInFlightPerHost.merge(mHosts[index], -1, Integer::sum);
+                lastOne = --mRemaining == 0;
+            }
+
+            if (mObserver != null) {
+                try {
+                    if (result.isSuccessful())
+                        mObserver.onCompleted(result);
+                    else
+                        mObserver.onFailed(result);
+                } catch (Throwable t) {
+                    L.out("Batch observer threw an exception\n" + StringUtil.toString(t));
+                }
+            }
+
+            mBatch.complete(result);
+
+            if (lastOne && mOwnExecutor)
+                mDispatchExecutor.shutdown();
+
+            return lastOne;
+        }
+    }
+}
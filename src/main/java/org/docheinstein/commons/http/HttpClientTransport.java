@@ -0,0 +1,68 @@
+package org.docheinstein.commons.http;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link HttpTransport} backed by the {@code java.net.http.HttpClient}
+ * of Java 11+, which multiplexes the requests toward the same host over
+ * a single HTTP/2 connection and doesn't block a thread per request.
+ * <p>
+ * This is the Java 8 version of the class, which is replaced by the
+ * actual implementation when running on Java 11+ (the library is packaged
+ * as a multi-release jar); use {@link #isSupported()} for check whether
+ * the transport can be created.
+ */
+public final class HttpClientTransport implements HttpTransport {
+
+    private HttpClientTransport() {}
+
+    /**
+     * Returns whether this transport is supported by the running JVM.
+     * @return whether the transport is supported (Java 11+)
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Creates a transport with the default parameters.
+     * @return a transport
+     * @throws UnsupportedOperationException if the running JVM doesn't
+     *                                       support this transport
+     */
+    public static HttpClientTransport create() {
+        throw new UnsupportedOperationException("HttpClientTransport requires Java 11+");
+    }
+
+    /**
+     * Whether HTTP/2 should be negotiated (falling back to HTTP/1.1 if
+     * the server doesn't support it).
+     * <p>
+     * Enabled by default.
+     * @param http2 whether use HTTP/2
+     * @return this transport
+     */
+    public HttpClientTransport http2(boolean http2) {
+        return this;
+    }
+
+    /**
+     * Sets the executor used for the asynchronous tasks of the client.
+     * <p>
+     * By default the client's own executor is used.
+     * @param executor the executor
+     * @return this transport
+     */
+    public HttpClientTransport executor(Executor executor) {
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<HttpRequester.Response> sendAsync(Request request) {
+        CompletableFuture<HttpRequester.Response> future = new CompletableFuture<>();
+        future.completeExceptionally(
+            new UnsupportedOperationException("HttpClientTransport requires Java 11+"));
+        return future;
+    }
+}
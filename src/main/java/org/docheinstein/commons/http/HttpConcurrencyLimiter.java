@@ -0,0 +1,297 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limiter of the requests in flight toward each host.
+ * <p>
+ * The limit of each host is adjusted with an additive increase /
+ * multiplicative decrease strategy driven by the observed round trip
+ * times: while the smoothed latency stays close to the minimum latency
+ * observed for the host the limit grows, while it shrinks when the latency
+ * rises beyond a tolerance or requests are dropped (timeouts, connection
+ * errors or overload responses).
+ * <p>
+ * The limiter wraps {@link HttpRequester#send()} if set via
+ * {@link HttpRequester#concurrencyLimiter(HttpConcurrencyLimiter)}.
+ */
+public class HttpConcurrencyLimiter {
+
+    private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_CONCURRENCY_LIMITER}");
+
+    private static final int DEFAULT_INITIAL_LIMIT = 4;
+    private static final int DEFAULT_MIN_LIMIT = 1;
+    private static final int DEFAULT_MAX_LIMIT = 256;
+    private static final double DEFAULT_BACKOFF_RATIO = 0.9;
+    private static final double DEFAULT_LATENCY_TOLERANCE = 2;
+    private static final int MIN_RTT_DECAY_SAMPLES = 1000;
+    private static final double MIN_RTT_DECAY = 1.1;
+    private static final double RTT_SMOOTHING = 0.1;
+
+    private int mInitialLimit = DEFAULT_INITIAL_LIMIT;
+    private int mMinLimit = DEFAULT_MIN_LIMIT;
+    private int mMaxLimit = DEFAULT_MAX_LIMIT;
+    private double mBackoffRatio = DEFAULT_BACKOFF_RATIO;
+    private double mLatencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+    private long mMaxWait = 0;
+
+    private final Map<String, HostLimit> mLimits = new ConcurrentHashMap<>();
+
+    /**
+     * State of the limit of a single host.
+     */
+    private class HostLimit {
+        private double mLimit = mInitialLimit;
+        private int mInFlight = 0;
+        private long mMinRtt = Long.MAX_VALUE;
+        private double mSmoothedRtt = 0;
+        private long mLastDecrease = 0;
+        private int mSamples = 0;
+        private long mDropped = 0;
+
+        synchronized boolean acquire(long maxWaitNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + maxWaitNanos;
+
+            while (mInFlight >= (int) mLimit) {
+                if (maxWaitNanos <= 0) {
+                    wait();
+                }
+                else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+
+            mInFlight++;
+            return true;
+        }
+
+        synchronized void release(long rttNanos, boolean dropped) {
+            int inFlight = mInFlight--;
+
+            if (dropped) {
+                mDropped++;
+                decrease(rttNanos);
+            }
+            else {
+                // Periodically let the minimum grow, the backend may have changed
+                if (++mSamples >= MIN_RTT_DECAY_SAMPLES) {
+                    mSamples = 0;
+                    mMinRtt = (long) (mMinRtt * MIN_RTT_DECAY);
+                }
+
+                mMinRtt = Math.min(mMinRtt, rttNanos);
+                mSmoothedRtt = mSmoothedRtt == 0 ?
+                    rttNanos :
+                    mSmoothedRtt * (1 - RTT_SMOOTHING) + rttNanos * RTT_SMOOTHING;
+
+                if (mSmoothedRtt > mMinRtt * mLatencyTolerance)
+                    decrease(rttNanos);
+                else if (inFlight * 2 >= mLimit)
+                    // Grow by one per round trip, and only if the current
+                    // limit is actually used
+                    mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+            }
+
+            notifyAll();
+        }
+
+        synchronized void abandon() {
+            mInFlight--;
+            notifyAll();
+        }
+
+        private void decrease(long rttNanos) {
+            // Shrink at most once per round trip, the requests completing
+            // in the meanwhile were sent with the old limit
+            long now = System.nanoTime();
+            if (now - mLastDecrease < Math.max(rttNanos, (long) mSmoothedRtt))
+                return;
+            mLastDecrease = now;
+            mLimit = Math.max(mMinLimit, mLimit * mBackoffRatio);
+        }
+    }
+
+    /**
+     * Creates a concurrency limiter with the default parameters.
+     * @return a concurrency limiter
+     */
+    public static HttpConcurrencyLimiter create() {
+        return new HttpConcurrencyLimiter();
+    }
+
+    /**
+     * Sets the limit each host starts from.
+     * @param initialLimit the initial limit
+     * @return this limiter
+     */
+    public HttpConcurrencyLimiter initialLimit(int initialLimit) {
+        mInitialLimit = Math.max(1, initialLimit);
+        return this;
+    }
+
+    /**
+     * Sets the bounds of the limit of each host.
+     * @param minLimit the minimum limit
+     * @param maxLimit the maximum limit
+     * @return this limiter
+     */
+    public HttpConcurrencyLimiter limits(int minLimit, int maxLimit) {
+        mMinLimit = Math.max(1, minLimit);
+        mMaxLimit = Math.max(mMinLimit, maxLimit);
+        return this;
+    }
+
+    /**
+     * Sets the factor the limit is multiplied by when it has to shrink.
+     * @param backoffRatio the backoff ratio, between 0 and 1
+     * @return this limiter
+     */
+    public HttpConcurrencyLimiter backoffRatio(double backoffRatio) {
+        mBackoffRatio = Math.min(1, Math.max(0.1, backoffRatio));
+        return this;
+    }
+
+    /**
+     * Sets how much the latency can grow with respect to the minimum
+     * observed one before the limit shrinks.
+     * @param tolerance the latency tolerance (e.g. 2 means twice the minimum)
+     * @return this limiter
+     */
+    public HttpConcurrencyLimiter latencyTolerance(double tolerance) {
+        mLatencyTolerance = Math.max(1, tolerance);
+        return this;
+    }
+
+    /**
+     * Sets the maximum time a request waits for being allowed; after that
+     * the request is rejected.
+     * @param millis the maximum wait, or 0 for wait indefinitely
+     * @return this limiter
+     */
+    public HttpConcurrencyLimiter maxWait(long millis) {
+        mMaxWait = Math.max(0, millis);
+        return this;
+    }
+
+    /**
+     * Waits until a request toward the given host is allowed.
+     * <p>
+     * Each successful acquire must be followed by a {@link #release(String, long, boolean)}
+     * or by an {@link #abandon(String)}.
+     * @param host the host
+     * @return whether the request is allowed, false if the maximum wait elapsed
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public boolean acquire(String host) throws InterruptedException {
+        return limit(host).acquire(TimeUnit.MILLISECONDS.toNanos(mMaxWait));
+    }
+
+    /**
+     * Notifies the completion of a request toward the given host.
+     * @param host the host
+     * @param rttNanos the round trip time of the request
+     * @param dropped whether the request has been dropped (timeout,
+     *                connection error or overload response)
+     */
+    public void release(String host, long rttNanos, boolean dropped) {
+        limit(host).release(rttNanos, dropped);
+    }
+
+    /**
+     * Notifies the end of a request toward the given host that has been
+     * abandoned by the client (cancelled, or aborted because another
+     * request won a hedging race); the limit is not adjusted, since the
+     * outcome says nothing about the host.
+     * @param host the host
+     */
+    public void abandon(String host) {
+        limit(host).abandon();
+    }
+
+    /**
+     * Returns the current limit of the given host.
+     * @param host the host
+     * @return the current limit
+     */
+    public int getLimit(String host) {
+        HostLimit limit = mLimits.get(normalizeHost(host));
+        if (limit == null)
+            return mInitialLimit;
+        synchronized (limit) {
+            return (int) limit.mLimit;
+        }
+    }
+
+    /**
+     * Returns the amount of requests in flight toward the given host.
+     * @param host the host
+     * @return the requests in flight
+     */
+    public int getInFlight(String host) {
+        HostLimit limit = mLimits.get(normalizeHost(host));
+        if (limit == null)
+            return 0;
+        synchronized (limit) {
+            return limit.mInFlight;
+        }
+    }
+
+    /**
+     * Returns the amount of requests toward the given host that have been dropped.
+     * @param host the host
+     * @return the dropped requests
+     */
+    public long getDropped(String host) {
+        HostLimit limit = mLimits.get(normalizeHost(host));
+        if (limit == null)
+            return 0;
+        synchronized (limit) {
+            return limit.mDropped;
+        }
+    }
+
+    /**
+     * Returns the current limit of every known host.
+     * @return the limits by host
+     */
+    public Map<String, Integer> getLimits() {
+        Map<String, Integer> limits = new HashMap<>();
+        for (String host : mLimits.keySet())
+            limits.put(host, getLimit(host));
+        return Collections.unmodifiableMap(limits);
+    }
+
+    /**
+     * Returns whether a request that obtained the given response should
+     * be considered dropped.
+     * @param response the response
+     * @return whether the request has been dropped
+     */
+    static boolean isDropped(HttpRequester.Response response) {
+        if (!response.hasBeenPerformed())
+            return true;
+        int code = response.getResponseCode();
+        return code == 429 || code == 503 || code == 504;
+    }
+
+    private HostLimit limit(String host) {
+        return mLimits.computeIfAbsent(normalizeHost(host), h -> {
+            L.out("Creating concurrency limit for host " + h);
+            return new HostLimit();
+        });
+    }
+
+    private static String normalizeHost(String host) {
+        return host != null ? host.toLowerCase(Locale.ROOT) : "";
+    }
+}
@@ -0,0 +1,298 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+import org.docheinstein.commons.types.StringUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Entity able to pre-warm the connections toward a set of hosts, so that
+ * the first actual requests don't pay the DNS, TCP and TLS setup latency.
+ * <p>
+ * For each host, the name is resolved and some connections are opened
+ * concurrently (performing the TLS handshake for 'https' urls); the
+ * connections are then left idle in the keep-alive pool of
+ * {@link HttpURLConnection}, ready to be reused by {@link HttpRequester}
+ * and {@link HttpDownloader}.
+ * <p>
+ * The TLS sessions are cached by the default {@link javax.net.ssl.SSLSocketFactory},
+ * which is shared by every connection; thus connections opened later
+ * toward the same hosts resume the session instead of performing a full
+ * handshake.
+ * <p>
+ * The keep-alive pool holds at most 'http.maxConnections' (5 by default)
+ * idle connections per host.
+ */
+public class HttpConnectionWarmer {
+
+    private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_CONNECTION_WARMER}");
+
+    private static final int DEFAULT_CONNECTIONS_PER_HOST = 2;
+    private static final int DEFAULT_TIMEOUT = 5000;
+
+    private int mConnectionsPerHost = DEFAULT_CONNECTIONS_PER_HOST;
+    private int mTimeout = DEFAULT_TIMEOUT;
+    private HttpMetrics mMetrics = null;
+
+    /**
+     * The outcome of the warm up of a single host.
+     */
+    public static class Result {
+        private final String mURL;
+        private long mResolveMillis = -1;
+        private long mConnectMillis = -1;
+        private int mWarmedConnections = 0;
+        private Exception mException = null;
+
+        private Result(String url) {
+            mURL = url;
+        }
+
+        /**
+         * Returns the url used for warm up the host.
+         * @return the url
+         */
+        public String getURL() {
+            return mURL;
+        }
+
+        /**
+         * Returns the time spent resolving the host name.
+         * @return the resolution millis, or -1 if not resolved
+         */
+        public long getResolveMillis() {
+            return mResolveMillis;
+        }
+
+        /**
+         * Returns the time spent opening the connections
+         * (including the TLS handshakes).
+         * @return the connection millis, or -1 if not connected
+         */
+        public long getConnectMillis() {
+            return mConnectMillis;
+        }
+
+        /**
+         * Returns the amount of connections left in the keep-alive pool.
+         * @return the warmed connections
+         */
+        public int getWarmedConnections() {
+            return mWarmedConnections;
+        }
+
+        /**
+         * Returns the exception that prevented the warm up, if any.
+         * @return the exception, or null
+         */
+        public Exception getException() {
+            return mException;
+        }
+
+        /**
+         * Returns whether at least a connection has been warmed.
+         * @return whether the host has been warmed
+         */
+        public boolean isWarmed() {
+            return mWarmedConnections > 0;
+        }
+    }
+
+    /**
+     * Creates a connection warmer with the default parameters.
+     * @return a connection warmer
+     */
+    public static HttpConnectionWarmer create() {
+        return new HttpConnectionWarmer();
+    }
+
+    /**
+     * Sets the amount of connections to open toward each host.
+     * @param connectionsPerHost the connections per host
+     * @return this warmer
+     */
+    public HttpConnectionWarmer connectionsPerHost(int connectionsPerHost) {
+        mConnectionsPerHost = Math.max(1, connectionsPerHost);
+        return this;
+    }
+
+    /**
+     * Sets the connection and read timeout of the warm up requests.
+     * @param millis the timeout in millis
+     * @return this warmer
+     */
+    public HttpConnectionWarmer timeout(int millis) {
+        mTimeout = Math.max(0, millis);
+        return this;
+    }
+
+    /**
+     * Sets the metrics the warm up connections have to be recorded into.
+     * <p>
+     * Must be the same of the requesters that will use the connections,
+     * since instrumented 'https' connections are pooled apart.
+     * @param metrics the metrics, or null for not record the connections
+     * @return this warmer
+     */
+    public HttpConnectionWarmer metrics(HttpMetrics metrics) {
+        mMetrics = metrics;
+        return this;
+    }
+
+    /**
+     * Warms up the hosts of the given urls.
+     * @param urls the urls of the hosts to warm
+     * @return the outcome for each url
+     * @see #warm(Collection)
+     */
+    public List<Result> warm(String... urls) {
+        return warm(Arrays.asList(urls));
+    }
+
+    /**
+     * Warms up the hosts of the given urls, concurrently, and waits
+     * for the completion.
+     * <p>
+     * An 'OPTIONS' request is sent to each url for each connection; the
+     * response code is irrelevant.
+     * ('HEAD' would be more natural, but {@link HttpURLConnection} doesn't
+     * put the connections used for 'HEAD' requests back in the keep-alive pool).
+     * @param urls the urls of the hosts to warm
+     * @return the outcome for each url
+     */
+    public List<Result> warm(Collection<String> urls) {
+        List<Result> results = new ArrayList<>();
+        if (urls.isEmpty())
+            return results;
+
+        // Unbounded since the host tasks wait for their connection tasks
+        ExecutorService executor = Executors.newCachedThreadPool(
+            r -> {
+                Thread t = new Thread(r, "http-warmer");
+                t.setDaemon(true);
+                return t;
+            });
+
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+
+            for (String url : urls) {
+                Result result = new Result(url);
+                results.add(result);
+                tasks.add(executor.submit(() -> {
+                    warm(result, executor);
+                    return null;
+                }));
+            }
+
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    L.out("Warm up failed: " + StringUtil.toString(e));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return results;
+    }
+
+    private void warm(Result result, ExecutorService executor) throws InterruptedException {
+        URL url;
+
+        try {
+            url = new URL(result.mURL);
+            long start = System.nanoTime();
+            InetAddress.getAllByName(url.getHost());
+            result.mResolveMillis = (System.nanoTime() - start) / 1000000;
+        } catch (IOException e) {
+            L.out("Can't resolve host of " + result.mURL);
+            result.mException = e;
+            return;
+        }
+
+        // The connections must be open at the same time, otherwise the
+        // same pooled connection would be reused by each request
+        CyclicBarrier allConnected = new CyclicBarrier(mConnectionsPerHost);
+        List<Future<Boolean>> connections = new ArrayList<>();
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < mConnectionsPerHost; i++)
+            connections.add(executor.submit(() -> openConnection(url, allConnected)));
+
+        int warmed = 0;
+
+        for (Future<Boolean> connection : connections) {
+            try {
+                if (connection.get())
+                    warmed++;
+            } catch (ExecutionException e) {
+                if (result.mException == null && e.getCause() instanceof Exception)
+                    result.mException = (Exception) e.getCause();
+            }
+        }
+
+        result.mConnectMillis = (System.nanoTime() - start) / 1000000;
+        result.mWarmedConnections = warmed;
+
+        L.out("Warmed " + warmed + " connections toward " + url.getHost() +
+            " in " + result.mConnectMillis + "ms");
+    }
+
+    private boolean openConnection(URL url, CyclicBarrier allConnected) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("OPTIONS");
+        connection.setConnectTimeout(mTimeout);
+        connection.setReadTimeout(mTimeout);
+
+        HttpMetrics.Exchange exchange = null;
+        int code = -1;
+
+        try {
+            if (mMetrics != null) {
+                exchange = mMetrics.begin(url.getHost());
+                exchange.connecting(connection);
+                connection.connect();
+                exchange.connected();
+            }
+
+            code = connection.getResponseCode();
+
+            if (exchange != null)
+                exchange.headers(code);
+        } finally {
+            if (exchange != null)
+                exchange.finish(code < 0);
+
+            try {
+                allConnected.await(mTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (BrokenBarrierException | TimeoutException ignored) {
+                // Proceed anyway, at worst fewer connections are warmed
+            }
+        }
+
+        // Consume and close the stream without disconnecting, so that
+        // the connection is put back in the keep-alive pool
+        InputStream is = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (is != null) {
+            byte[] buffer = new byte[1024];
+            while (is.read(buffer) >= 0);
+            is.close();
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,318 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caching resolver of host names, which keeps the JVM's address cache warm
+ * for the hosts in use and caches the failed resolutions.
+ * <p>
+ * {@link java.net.HttpURLConnection} always resolves the host names through
+ * the JVM's resolver, which can't be replaced; thus this resolver is
+ * consulted before each connection and works through the JVM's cache
+ * ('networkaddress.cache.ttl' security property, 30 seconds by default):
+ * <ul>
+ *     <li>A host resolved through this resolver is cached for its time
+ *     to live since it was last resolved; meanwhile it is looked up again
+ *     in background at each refresh interval. Such a lookup is served by
+ *     the JVM's cache while the JVM's entry is valid, and resolves the host
+ *     again as soon as it expires, so that the lookup of the connection
+ *     is served by the JVM's cache instead of stalling on the network.
+ *     The JVM's entries can't be renewed before they expire, thus a
+ *     connection still waits for a lookup if it starts after the expiration
+ *     and before the refresh completes: a host requested continuously is
+ *     still resolved once per JVM's time to live in the foreground, while
+ *     the stalls of the hosts requested from time to time are avoided.
+ *     The shorter the refresh interval, the narrower this window.</li>
+ *     <li>A host found to be unresolvable is cached for the negative time
+ *     to live, during which the requests toward it fail fast, without
+ *     connecting.</li>
+ * </ul>
+ * The hosts can be resolved in advance via {@link #prefetch(String...)}.
+ * <p>
+ * If the JVM doesn't cache the addresses ('networkaddress.cache.ttl' set
+ * to 0) the connections always resolve the hosts themselves, and only
+ * the negative cache is effective.
+ * <p>
+ * The same resolver should be shared between the requesters and the
+ * downloaders, via {@link HttpRequester#dnsResolver(HttpDnsResolver)} and
+ * {@link HttpDownloader#dnsResolver(HttpDnsResolver)}.
+ */
+public class HttpDnsResolver {
+
+    private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_DNS_RESOLVER}");
+
+    private static final long DEFAULT_TTL = 60000;
+    private static final long DEFAULT_NEGATIVE_TTL = 5000;
+    private static final long DEFAULT_REFRESH_INTERVAL = 250;
+
+    private static final ScheduledExecutorService REFRESH_TIMER =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "http-dns-refresh-timer");
+            t.setDaemon(true);
+            return t;
+        });
+
+    // The lookups may block, they are never performed by the timer
+    private static final ExecutorService REFRESH_EXECUTOR =
+        Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "http-dns-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+
+    private long mTtl = DEFAULT_TTL;
+    private long mNegativeTtl = DEFAULT_NEGATIVE_TTL;
+    private long mRefreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+    // Guarded by this, running as long as there are entries
+    private ScheduledFuture<?> mRefreshTask = null;
+
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mNegativeHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+    private final LongAdder mRefreshes = new LongAdder();
+
+    /**
+     * Cached outcome of the resolution of a host.
+     */
+    private static class Entry {
+        private volatile InetAddress[] mAddresses;
+        private final long mExpiresAt;
+        private final AtomicBoolean mRefreshing = new AtomicBoolean(false);
+
+        private Entry(InetAddress[] addresses, long expiresAt) {
+            mAddresses = addresses;
+            mExpiresAt = expiresAt;
+        }
+
+        private boolean isNegative() {
+            return mAddresses == null;
+        }
+    }
+
+    /**
+     * Creates a resolver with the default parameters.
+     * @return a resolver
+     */
+    public static HttpDnsResolver create() {
+        return new HttpDnsResolver();
+    }
+
+    /**
+     * Sets the time a resolved host is cached (and kept warm in the JVM's
+     * cache) for, since it was resolved through this resolver.
+     * <p>
+     * Applies to the hosts resolved afterwards.
+     * @param millis the time to live, in millis
+     * @return this resolver
+     */
+    public HttpDnsResolver ttl(long millis) {
+        mTtl = Math.max(0, millis);
+        return this;
+    }
+
+    /**
+     * Sets the time a failed resolution is cached for.
+     * @param millis the time to live of the failures, in millis
+     * @return this resolver
+     */
+    public HttpDnsResolver negativeTtl(long millis) {
+        mNegativeTtl = Math.max(0, millis);
+        return this;
+    }
+
+    /**
+     * Sets the interval between the background lookups of the cached hosts.
+     * <p>
+     * Applies once the current refresh task ends, which happens when the
+     * cache becomes empty.
+     * @param millis the refresh interval, in millis
+     * @return this resolver
+     */
+    public HttpDnsResolver refreshInterval(long millis) {
+        mRefreshInterval = Math.max(1, millis);
+        return this;
+    }
+
+    /**
+     * Resolves the given host, using the cached addresses if still valid.
+     * @param host the host name
+     * @return the addresses of the host
+     * @throws UnknownHostException if the host can't be resolved (or
+     *                              has recently failed to be resolved)
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        String key = normalizeHost(host);
+        Entry entry = mEntries.get(key);
+
+        if (entry != null && System.nanoTime() - entry.mExpiresAt < 0) {
+            if (entry.isNegative()) {
+                mNegativeHits.increment();
+                throw new UnknownHostException(host + " (cached failure)");
+            }
+
+            mHits.increment();
+            return entry.mAddresses.clone();
+        }
+
+        mMisses.increment();
+
+        return fetch(key).mAddresses.clone();
+    }
+
+    /**
+     * Resolves the given hosts in background, so that the first requests
+     * toward them find the addresses in cache.
+     * @param hosts the host names
+     */
+    public void prefetch(String... hosts) {
+        for (String host : hosts) {
+            REFRESH_EXECUTOR.execute(() -> {
+                try {
+                    resolve(host);
+                } catch (UnknownHostException e) {
+                    L.out("Can't prefetch host " + host);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes the given host from the cache.
+     * @param host the host name
+     */
+    public void invalidate(String host) {
+        mEntries.remove(normalizeHost(host));
+    }
+
+    /**
+     * Removes every host from the cache.
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Returns the amount of resolutions served by the cache.
+     * @return the cache hits
+     */
+    public long getHits() {
+        return mHits.sum();
+    }
+
+    /**
+     * Returns the amount of resolutions failed because of a cached failure.
+     * @return the negative cache hits
+     */
+    public long getNegativeHits() {
+        return mNegativeHits.sum();
+    }
+
+    /**
+     * Returns the amount of resolutions that required a lookup.
+     * @return the cache misses
+     */
+    public long getMisses() {
+        return mMisses.sum();
+    }
+
+    /**
+     * Returns the amount of background lookups performed.
+     * @return the refreshes
+     */
+    public long getRefreshes() {
+        return mRefreshes.sum();
+    }
+
+    /**
+     * Returns the amount of hosts in the cache, expired ones included.
+     * @return the cache size
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    private Entry fetch(String host) throws UnknownHostException {
+        long now = System.nanoTime();
+        InetAddress[] addresses;
+
+        try {
+            addresses = InetAddress.getAllByName(host);
+        } catch (UnknownHostException e) {
+            L.out("Can't resolve host " + host + ", caching the failure");
+            cache(host, new Entry(null, now + TimeUnit.MILLISECONDS.toNanos(mNegativeTtl)));
+            throw e;
+        }
+
+        return cache(host, new Entry(addresses, now + TimeUnit.MILLISECONDS.toNanos(mTtl)));
+    }
+
+    private Entry cache(String host, Entry entry) {
+        mEntries.put(host, entry);
+        // After the put, so that the refresh task can't stop on an empty cache
+        startRefreshing();
+        return entry;
+    }
+
+    private synchronized void startRefreshing() {
+        if (mRefreshTask == null)
+            mRefreshTask = REFRESH_TIMER.scheduleWithFixedDelay(
+                this::refreshAll, mRefreshInterval, mRefreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Evicts the expired entries and looks up again the cached hosts.
+     */
+    private void refreshAll() {
+        long now = System.nanoTime();
+
+        mEntries.forEach((host, entry) -> {
+            if (now - entry.mExpiresAt >= 0)
+                mEntries.remove(host, entry);
+            else if (!entry.isNegative() && entry.mRefreshing.compareAndSet(false, true))
+                REFRESH_EXECUTOR.execute(() -> refresh(host, entry));
+        });
+
+        synchronized (this) {
+            // Restarted by the next fetch
+            if (mEntries.isEmpty() && mRefreshTask != null) {
+                mRefreshTask.cancel(false);
+                mRefreshTask = null;
+            }
+        }
+    }
+
+    private void refresh(String host, Entry entry) {
+        mRefreshes.increment();
+
+        try {
+            entry.mAddresses = InetAddress.getAllByName(host);
+        } catch (UnknownHostException e) {
+            // Transient failure, keep serving the old addresses until they expire
+            L.out("Can't refresh host " + host);
+        } catch (RuntimeException e) {
+            L.out("Unexpected failure while refreshing host " + host);
+        } finally {
+            entry.mRefreshing.set(false);
+        }
+    }
+
+    private static String normalizeHost(String host) {
+        return host != null ? host.toLowerCase(Locale.ROOT) : "";
+    }
+}
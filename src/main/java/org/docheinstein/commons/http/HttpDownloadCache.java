@@ -0,0 +1,476 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content addressed cache of the resources downloaded by {@link HttpDownloader}.
+ * <p>
+ * Each resource is stored once, named after its SHA-256 checksum, no
+ * matter how many urls it has been downloaded from; a resource is found
+ * either by its checksum (if the download declares the expected one) or
+ * by its url together with its validator (entity tag or last modification
+ * date), which costs a 'HEAD' request instead of the download.
+ * <p>
+ * A downloaded resource is copied into the cache, so that the cache never
+ * shares its files with the files the resource has been downloaded into.
+ * A cached resource is placed at the output path as an hard link to the
+ * cached file, thus the output files should be treated as read only;
+ * if hard links are disabled or not supported (e.g. the output path is
+ * on another file system) the resource is copied instead. A cached file
+ * whose size doesn't match the stored one (e.g. because an output file
+ * linked to it has been modified) is evicted instead of being placed.
+ * <p>
+ * The cache is bounded by the total size of the resources, the least
+ * recently used resources are evicted first. The index of the cache is
+ * persisted in the cache directory, so that the cache survives restarts.
+ */
+public class HttpDownloadCache {
+
+    private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_DOWNLOAD_CACHE}");
+
+    private static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+    private static final String OBJECTS_DIRECTORY = "objects";
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_SEPARATOR = "\t";
+
+    private final File mDirectory;
+    private final File mObjectsDirectory;
+    private final File mIndexFile;
+
+    private long mMaxSize = DEFAULT_MAX_SIZE;
+    private boolean mHardLinks = true;
+
+    // Guarded by this; in access order, the eldest is the least recently used
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, String> mUrlIndex = new HashMap<>();
+    private long mSize = 0;
+
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+    private final LongAdder mBytesSaved = new LongAdder();
+    private final LongAdder mEvictions = new LongAdder();
+
+    /**
+     * A cached resource.
+     */
+    private static class Entry {
+        private final String mChecksum;
+        private final long mSize;
+        private long mLastAccess;
+
+        private Entry(String checksum, long size, long lastAccess) {
+            mChecksum = checksum;
+            mSize = size;
+            mLastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Creates a cache in the given directory, loading its index if the
+     * directory already contains a cache.
+     * @param directory the cache directory
+     * @return a cache
+     * @throws IOException if the directory can't be created or its index
+     *                     can't be read
+     */
+    public static HttpDownloadCache create(File directory) throws IOException {
+        return new HttpDownloadCache(directory);
+    }
+
+    private HttpDownloadCache(File directory) throws IOException {
+        mDirectory = directory;
+        mObjectsDirectory = new File(directory, OBJECTS_DIRECTORY);
+        mIndexFile = new File(directory, INDEX_FILE);
+        Files.createDirectories(mObjectsDirectory.toPath());
+        loadIndex();
+    }
+
+    /**
+     * Sets the maximum total size of the cached resources.
+     * @param bytes the maximum size
+     * @return this cache
+     */
+    public HttpDownloadCache maxSize(long bytes) {
+        synchronized (this) {
+            mMaxSize = Math.max(0, bytes);
+            evict();
+            saveIndex();
+        }
+        return this;
+    }
+
+    /**
+     * Whether the cached resources should be placed at the output paths
+     * as hard links (the default) or as copies.
+     * @param hardLinks whether use hard links
+     * @return this cache
+     */
+    public synchronized HttpDownloadCache hardLinks(boolean hardLinks) {
+        mHardLinks = hardLinks;
+        return this;
+    }
+
+    /**
+     * Returns the directory of this cache.
+     * @return the cache directory
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Returns the total size of the cached resources.
+     * @return the size in bytes
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the amount of cached resources.
+     * @return the resources count
+     */
+    public synchronized int count() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the amount of downloads satisfied by the cache.
+     * @return the hits
+     */
+    public long getHits() {
+        return mHits.sum();
+    }
+
+    /**
+     * Returns the amount of downloads not satisfied by the cache.
+     * @return the misses
+     */
+    public long getMisses() {
+        return mMisses.sum();
+    }
+
+    /**
+     * Returns the ratio of the downloads satisfied by the cache.
+     * @return the hit rate, between 0 and 1
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    /**
+     * Returns the amount of bytes not downloaded thanks to the cache.
+     * @return the saved bytes
+     */
+    public long getBytesSaved() {
+        return mBytesSaved.sum();
+    }
+
+    /**
+     * Returns the amount of resources evicted.
+     * @return the evictions
+     */
+    public long getEvictions() {
+        return mEvictions.sum();
+    }
+
+    /**
+     * Returns the checksum of the resource downloaded from the given url
+     * with the given validator, if cached.
+     * @param url the url
+     * @param validator the validator of the resource
+     * @return the SHA-256 checksum, or null if unknown
+     */
+    public synchronized String lookup(String url, String validator) {
+        String checksum = mUrlIndex.get(urlKey(url, validator));
+        return checksum != null && mEntries.containsKey(checksum) ? checksum : null;
+    }
+
+    /**
+     * Places the resource with the given checksum at the given path,
+     * if cached; the outcome is counted in the statistics.
+     * @param checksum the SHA-256 checksum (hex)
+     * @param outputFile the output file
+     * @return whether the resource was cached and has been placed
+     */
+    public boolean retrieve(String checksum, File outputFile) {
+        File object;
+        Entry entry;
+
+        synchronized (this) {
+            entry = checksum != null ? mEntries.get(checksum.toLowerCase(Locale.ROOT)) : null;
+            if (entry != null)
+                entry.mLastAccess = System.currentTimeMillis();
+        }
+
+        if (entry == null) {
+            mMisses.increment();
+            return false;
+        }
+
+        object = objectFile(entry.mChecksum);
+
+        if (object.length() != entry.mSize) {
+            // Modified through a linked output file, or removed from outside
+            L.out("Evicting " + entry.mChecksum + ", size is " + object.length() +
+                " instead of " + entry.mSize);
+            synchronized (this) {
+                remove(entry.mChecksum);
+                saveIndex();
+            }
+            mMisses.increment();
+            return false;
+        }
+
+        try {
+            place(object, outputFile);
+        } catch (IOException | UnsupportedOperationException e) {
+            // The object has been removed from outside
+            L.out("Can't retrieve " + entry.mChecksum + ": " + e.getMessage());
+            synchronized (this) {
+                remove(entry.mChecksum);
+                saveIndex();
+            }
+            mMisses.increment();
+            return false;
+        }
+
+        mHits.increment();
+        mBytesSaved.add(entry.mSize);
+
+        synchronized (this) {
+            saveIndex();
+        }
+
+        L.out("Retrieved " + entry.mChecksum + " into " + outputFile);
+        return true;
+    }
+
+    /**
+     * Stores the given downloaded file in the cache.
+     * @param url the url the file has been downloaded from
+     * @param validator the validator of the resource, or null if unknown
+     * @param checksum the SHA-256 checksum of the file (hex)
+     * @param file the downloaded file
+     * @throws IOException if the file can't be stored
+     */
+    public void store(String url, String validator, String checksum, File file) throws IOException {
+        String key = checksum.toLowerCase(Locale.ROOT);
+        File object = objectFile(key);
+
+        boolean present;
+        synchronized (this) {
+            present = mEntries.containsKey(key);
+        }
+
+        // Copied outside the lock, the file could be large; never linked,
+        // the downloaded file is not read only. An object not in the index
+        // is a leftover and is replaced
+        if (!present) {
+            Path tmp = new File(mObjectsDirectory, key + ".tmp" + Thread.currentThread().getId()).toPath();
+            Files.copy(file.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, object.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(key, object.length(), System.currentTimeMillis());
+                mEntries.put(key, entry);
+                mSize += entry.mSize;
+                L.out("Stored " + key + " (" + entry.mSize + " bytes)");
+            }
+            else
+                entry.mLastAccess = System.currentTimeMillis();
+
+            if (validator != null)
+                mUrlIndex.put(urlKey(url, validator), key);
+
+            evict();
+            saveIndex();
+        }
+    }
+
+    /**
+     * Removes every resource from the cache.
+     */
+    public synchronized void clear() {
+        for (String checksum : new ArrayList<>(mEntries.keySet()))
+            remove(checksum);
+        mUrlIndex.clear();
+        saveIndex();
+    }
+
+    /**
+     * Resets the statistics.
+     */
+    public void resetStats() {
+        mHits.reset();
+        mMisses.reset();
+        mBytesSaved.reset();
+        mEvictions.reset();
+    }
+
+    private void place(File source, File target) throws IOException {
+        boolean hardLinks;
+        synchronized (this) {
+            hardLinks = mHardLinks;
+        }
+
+        // Placed next to the target and then moved, so that the target
+        // never contains a partial resource
+        Path tmp = new File(target.getPath() + ".cache-tmp").toPath();
+        Files.deleteIfExists(tmp);
+
+        boolean linked = false;
+        if (hardLinks) {
+            try {
+                Files.createLink(tmp, source.toPath());
+                linked = true;
+            } catch (IOException | UnsupportedOperationException e) {
+                L.out("Can't hard link " + source + ", copying it: " + e.getMessage());
+            }
+        }
+
+        if (!linked)
+            Files.copy(source.toPath(), tmp);
+
+        try {
+            Files.move(tmp, target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Evicts the least recently used resources until the size is within
+     * the limit.
+     */
+    private void evict() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            mSize -= entry.mSize;
+            mEvictions.increment();
+            deleteObject(entry.mChecksum);
+            L.out("Evicted " + entry.mChecksum + " (" + entry.mSize + " bytes)");
+        }
+        mUrlIndex.values().removeIf(checksum -> !mEntries.containsKey(checksum));
+    }
+
+    private void remove(String checksum) {
+        Entry entry = mEntries.remove(checksum);
+        if (entry != null) {
+            mSize -= entry.mSize;
+            deleteObject(checksum);
+        }
+        mUrlIndex.values().removeIf(c -> c.equals(checksum));
+    }
+
+    private void deleteObject(String checksum) {
+        File object = objectFile(checksum);
+        if (object.exists() && !object.delete())
+            L.out("Can't delete " + object);
+    }
+
+    private File objectFile(String checksum) {
+        return new File(mObjectsDirectory, checksum);
+    }
+
+    private static String urlKey(String url, String validator) {
+        return url + " " + validator;
+    }
+
+    /**
+     * Loads the index, whose lines are either 'O checksum size lastAccess'
+     * for the resources (in access order) or 'U url validator checksum'
+     * for the urls (tab separated).
+     */
+    private synchronized void loadIndex() throws IOException {
+        if (!mIndexFile.exists())
+            return;
+
+        List<Entry> entries = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mIndexFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(INDEX_SEPARATOR);
+                try {
+                    if (parts.length == 4 && "O".equals(parts[0])) {
+                        if (objectFile(parts[1]).exists())
+                            entries.add(new Entry(parts[1],
+                                Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                    }
+                    else if (parts.length == 4 && "U".equals(parts[0])) {
+                        mUrlIndex.put(urlKey(parts[1], parts[2]), parts[3]);
+                    }
+                    else {
+                        L.out("Skipping invalid index line: " + line);
+                    }
+                } catch (NumberFormatException e) {
+                    L.out("Skipping invalid index line: " + line);
+                }
+            }
+        }
+
+        entries.sort(Comparator.comparingLong(e -> e.mLastAccess));
+        for (Entry entry : entries) {
+            mEntries.put(entry.mChecksum, entry);
+            mSize += entry.mSize;
+        }
+
+        mUrlIndex.values().removeIf(checksum -> !mEntries.containsKey(checksum));
+
+        L.out("Loaded " + mEntries.size() + " resources (" + mSize + " bytes)");
+    }
+
+    private void saveIndex() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Entry entry : mEntries.values())
+            sb.append("O").append(INDEX_SEPARATOR)
+              .append(entry.mChecksum).append(INDEX_SEPARATOR)
+              .append(entry.mSize).append(INDEX_SEPARATOR)
+              .append(entry.mLastAccess).append('\n');
+
+        for (Map.Entry<String, String> url : mUrlIndex.entrySet()) {
+            // The validator may contain spaces, the url can't
+            int separator = url.getKey().indexOf(' ');
+            sb.append("U").append(INDEX_SEPARATOR)
+              .append(url.getKey(), 0, separator).append(INDEX_SEPARATOR)
+              .append(url.getKey().substring(separator + 1)).append(INDEX_SEPARATOR)
+              .append(url.getValue()).append('\n');
+        }
+
+        // Write then rename, so that a crash never leaves a partial index
+        File tmp = new File(mIndexFile.getPath() + ".tmp");
+        try {
+            try (OutputStream os = new FileOutputStream(tmp)) {
+                os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            Files.move(tmp.toPath(), mIndexFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            L.out("Can't write index: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpDownloadCache{" + mDirectory + ", resources: " + count() +
+            ", size: " + size() + ", hit rate: " + String.format(Locale.ROOT, "%.2f", getHitRate()) + "}";
+    }
+}
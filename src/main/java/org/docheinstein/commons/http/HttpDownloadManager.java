@@ -0,0 +1,744 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+
+import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Entity that schedules a queue of downloads, each one performed by
+ * its own {@link HttpDownloader}.
+ * <p>
+ * The queued downloads are started in priority order (then in submission
+ * order) as long as the amount of running downloads stays within both the
+ * global and the per host limits; a download toward a busy host doesn't
+ * hold back the ones toward the other hosts.
+ * The overall bandwidth can be limited with an {@link HttpBandwidthLimiter}
+ * shared among the downloads, and the bandwidth of each download with
+ * {@link Job#bandwidthLimit(long)}; both can be changed while downloading.
+ * <p>
+ * Each download can be paused, resumed and cancelled. A paused download
+ * keeps its partial file and is resumed from where it stopped.
+ * <p>
+ * If a state file is given the queue is persisted at each change, so that
+ * after a restart {@link #restore()} enqueues again the downloads not
+ * completed yet, which resume their partial files. The jobs persisted by
+ * a previous run are kept in the state file until they are restored, even
+ * if other downloads are enqueued before {@link #restore()}.
+ */
+public class HttpDownloadManager {
+
+    private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_DOWNLOAD_MANAGER}");
+
+    private static final int DEFAULT_MAX_DOWNLOADS = 4;
+    private static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 2;
+    private static final int PROGRESS_CALLBACK_BYTES = 64 * 1024;
+    private static final int DEFAULT_READ_TIMEOUT = 60000;
+    private static final String STATE_SEPARATOR = "\t";
+
+    /**
+     * State of a download job.
+     */
+    public enum State {
+        QUEUED,
+        RUNNING,
+        PAUSED,
+        COMPLETED,
+        FAILED,
+        CANCELLED;
+
+        /**
+         * Returns whether the state is final.
+         * @return whether the job is over
+         */
+        public boolean isDone() {
+            return this == COMPLETED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private int mMaxDownloads = DEFAULT_MAX_DOWNLOADS;
+    private int mMaxDownloadsPerHost = DEFAULT_MAX_DOWNLOADS_PER_HOST;
+    private HttpBandwidthLimiter mBandwidthLimiter = null;
+    private Supplier<HttpDownloader> mDownloaderFactory = HttpDownloader::new;
+    private File mStateFile = null;
+
+    private final AtomicLong mNextId = new AtomicLong(1);
+    private final AtomicLong mNextSequence = new AtomicLong(0);
+
+    // Guarded by this
+    private final Map<Long, Job> mJobs = new LinkedHashMap<>();
+    private final NavigableSet<Job> mQueue = new TreeSet<>();
+    private final Map<String, Integer> mRunningPerHost = new HashMap<>();
+    // Jobs read from the state file and not restored yet, null until the file is read
+    private List<Job> mPersistedJobs = null;
+    private int mRunning = 0;
+    private boolean mShutdown = false;
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "http-download-manager");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * A download scheduled by the manager.
+     */
+    public class Job implements Comparable<Job> {
+        private final long mId;
+        private final String mUrl;
+        private final String mOutputPath;
+        private final String mHost;
+        private final int mPriority;
+        private final CompletableFuture<Job> mFuture = new CompletableFuture<>();
+
+        // Guarded by the manager
+        private State mState = State.QUEUED;
+        private State mRequestedState = null;
+        private long mSequence;
+        private HttpDownloader mDownloader = null;
+        private Throwable mError = null;
+
+        private volatile long mDownloadedBytes = 0;
+        private volatile long mBandwidthLimit = 0;
+
+        private Job(long id, String url, String outputPath, String host, int priority) {
+            mId = id;
+            mUrl = url;
+            mOutputPath = outputPath;
+            mHost = host;
+            mPriority = priority;
+        }
+
+        /**
+         * Returns the identifier of this job, unique within the manager
+         * (and preserved across restarts).
+         * @return the job id
+         */
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * Returns the url to download.
+         * @return the url
+         */
+        public String getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * Returns the path of the downloaded file.
+         * @return the output path
+         */
+        public String getOutputPath() {
+            return mOutputPath;
+        }
+
+        /**
+         * Returns the priority of this job; jobs with higher priority
+         * are started first.
+         * @return the priority
+         */
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Returns the current state of this job.
+         * @return the state
+         */
+        public State getState() {
+            synchronized (HttpDownloadManager.this) {
+                return mState;
+            }
+        }
+
+        /**
+         * Returns the exception that made this job fail.
+         * @return the error, or null if the job has not failed
+         */
+        public Throwable getError() {
+            synchronized (HttpDownloadManager.this) {
+                return mError;
+            }
+        }
+
+        /**
+         * Returns the amount of bytes downloaded by the current (or last)
+         * run of this job; bytes of a partial file resumed are not counted.
+         * @return the downloaded bytes
+         */
+        public long getDownloadedBytes() {
+            return mDownloadedBytes;
+        }
+
+        /**
+         * Limits the bandwidth of this job, in addition to the bandwidth
+         * limiter of the manager; applies immediately if the job is running.
+         * @param bytesPerSecond the bandwidth, or 0 for not limit it
+         * @return this job
+         */
+        public Job bandwidthLimit(long bytesPerSecond) {
+            synchronized (HttpDownloadManager.this) {
+                mBandwidthLimit = Math.max(0, bytesPerSecond);
+                if (mDownloader != null)
+                    mDownloader.bandwidthLimit(mBandwidthLimit);
+            }
+            return this;
+        }
+
+        /**
+         * Returns the bandwidth limit of this job.
+         * @return the bytes per second, or 0 if not limited
+         */
+        public long getBandwidthLimit() {
+            return mBandwidthLimit;
+        }
+
+        /**
+         * Returns a future completed with this job when it reaches a
+         * final state (completed, failed or cancelled).
+         * @return the future of this job
+         */
+        public CompletableFuture<Job> getFuture() {
+            return mFuture;
+        }
+
+        /**
+         * Pauses this job if queued or running; the partial file is kept.
+         * @return whether the job has been paused
+         */
+        public boolean pause() {
+            return HttpDownloadManager.this.pause(this);
+        }
+
+        /**
+         * Enqueues again this job if paused or failed.
+         * @return whether the job has been resumed
+         */
+        public boolean resume() {
+            return HttpDownloadManager.this.resume(this);
+        }
+
+        /**
+         * Cancels this job if not done yet; the partial file is deleted.
+         * @return whether the job has been cancelled
+         */
+        public boolean cancel() {
+            return HttpDownloadManager.this.cancel(this);
+        }
+
+        @Override
+        public int compareTo(Job o) {
+            if (mPriority != o.mPriority)
+                return Integer.compare(o.mPriority, mPriority);
+            return Long.compare(mSequence, o.mSequence);
+        }
+
+        @Override
+        public String toString() {
+            return "Job{" + mId + ", " + getState() + ", " + mUrl + " -> " + mOutputPath + "}";
+        }
+    }
+
+    /**
+     * Sets the maximum amount of downloads running at the same time.
+     * @param maxDownloads the global limit
+     * @return this manager
+     */
+    public HttpDownloadManager maxDownloads(int maxDownloads) {
+        synchronized (this) {
+            mMaxDownloads = Math.max(1, maxDownloads);
+        }
+        schedule();
+        return this;
+    }
+
+    /**
+     * Sets the maximum amount of downloads running at the same time
+     * toward the same host.
+     * @param maxDownloadsPerHost the per host limit
+     * @return this manager
+     */
+    public HttpDownloadManager maxDownloadsPerHost(int maxDownloadsPerHost) {
+        synchronized (this) {
+            mMaxDownloadsPerHost = Math.max(1, maxDownloadsPerHost);
+        }
+        schedule();
+        return this;
+    }
+
+    /**
+     * Sets the limiter of the overall bandwidth of the downloads.
+     * <p>
+     * Applies to the downloads started afterwards.
+     * @param bandwidthLimiter the limiter, or null for not limit the bandwidth
+     * @return this manager
+     */
+    public synchronized HttpDownloadManager bandwidthLimiter(HttpBandwidthLimiter bandwidthLimiter) {
+        mBandwidthLimiter = bandwidthLimiter;
+        return this;
+    }
+
+    /**
+     * Sets the factory of the downloaders used for the jobs, which allows
+     * to configure them (e.g. user agent, timeouts, segments).
+     * <p>
+     * The resume of existing files and the bandwidth limiter of the
+     * downloaders are set by the manager, as a read timeout of 60 seconds
+     * if the downloader doesn't have one: pausing or cancelling a download
+     * waits for the read in progress, which must not wait forever.
+     * @param downloaderFactory the factory of the downloaders
+     * @return this manager
+     */
+    public synchronized HttpDownloadManager downloaderFactory(Supplier<HttpDownloader> downloaderFactory) {
+        mDownloaderFactory = downloaderFactory;
+        return this;
+    }
+
+    /**
+     * Sets the file the queue is persisted into.
+     * <p>
+     * The jobs already persisted in the file are preserved: the file is
+     * read before being written the first time and the ids of its jobs are
+     * not reused, so that {@link #restore()} can be called at any time.
+     * @param stateFile the state file, or null for not persist the queue
+     * @return this manager
+     * @see #restore()
+     */
+    public synchronized HttpDownloadManager stateFile(File stateFile) {
+        mStateFile = stateFile;
+        mPersistedJobs = null;
+        return this;
+    }
+
+    /**
+     * Enqueues a download with the default priority (0).
+     * @param url the url to download
+     * @param outputPath the output path
+     * @return the job of the download
+     * @throws MalformedURLException if the url is not valid
+     */
+    public Job enqueue(String url, String outputPath) throws MalformedURLException {
+        return enqueue(url, outputPath, 0);
+    }
+
+    /**
+     * Enqueues a download.
+     * <p>
+     * The url and the output path can't contain tabs nor line breaks,
+     * which would corrupt the state file.
+     * @param url the url to download
+     * @param outputPath the output path
+     * @param priority the priority, jobs with higher priority are started first
+     * @return the job of the download
+     * @throws MalformedURLException if the url is not valid
+     * @throws IllegalArgumentException if the url or the output path
+     *                                  contain tabs or line breaks
+     */
+    public Job enqueue(String url, String outputPath, int priority) throws MalformedURLException {
+        String host = new URL(url).getHost();
+        if (!isPersistable(url) || !isPersistable(outputPath))
+            throw new IllegalArgumentException("Tabs and line breaks are not allowed: " + url + ", " + outputPath);
+        Job job;
+
+        synchronized (this) {
+            if (mShutdown)
+                throw new IllegalStateException("Download manager has been shut down");
+
+            // Before allocating the id, which must not collide with the persisted ones
+            try {
+                loadState();
+            } catch (IOException e) {
+                // saveState() won't overwrite the unreadable state
+                L.out("Can't read state file: " + e.getMessage());
+            }
+
+            job = new Job(mNextId.getAndIncrement(), url, outputPath, host, priority);
+            mJobs.put(job.mId, job);
+            queue(job);
+            saveState();
+        }
+
+        schedule();
+
+        return job;
+    }
+
+    /**
+     * Enqueues again the jobs persisted in the state file that were not
+     * done, preserving their ids (unless already taken by jobs enqueued
+     * before the state file was set) and priorities; the jobs that were
+     * paused are restored as paused.
+     * @return the restored jobs
+     * @throws IOException if the state file can't be read
+     */
+    public List<Job> restore() throws IOException {
+        List<Job> restored;
+
+        synchronized (this) {
+            loadState();
+            if (mPersistedJobs == null)
+                return new ArrayList<>();
+
+            restored = new ArrayList<>(mPersistedJobs);
+            mPersistedJobs.clear();
+
+            for (Job job : restored) {
+                mJobs.put(job.mId, job);
+                if (job.mState == State.QUEUED)
+                    queue(job);
+            }
+
+            L.out("Restored " + restored.size() + " jobs");
+        }
+
+        schedule();
+
+        return restored;
+    }
+
+    /**
+     * Reads the jobs persisted in the state file, if not read yet, so that
+     * they are kept by the next saves until restored.
+     * @throws IOException if the state file can't be read
+     */
+    private void loadState() throws IOException {
+        if (mStateFile == null || mPersistedJobs != null)
+            return;
+
+        List<Job> jobs = new ArrayList<>();
+
+        if (mStateFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mStateFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(STATE_SEPARATOR, 5);
+                    if (parts.length != 5) {
+                        L.out("Skipping invalid state line: " + line);
+                        continue;
+                    }
+
+                    long id = Long.parseLong(parts[0]);
+                    if (mJobs.containsKey(id)) {
+                        // Taken by a job enqueued before the state file was set
+                        long newId = mNextId.getAndIncrement();
+                        L.out("Persisted job " + id + " restored as " + newId);
+                        id = newId;
+                    }
+                    mNextId.accumulateAndGet(id + 1, Math::max);
+
+                    String url = parts[3];
+                    Job job = new Job(id, url, parts[4], new URL(url).getHost(),
+                        Integer.parseInt(parts[1]));
+                    if (State.valueOf(parts[2]) == State.PAUSED)
+                        job.mState = State.PAUSED;
+                    jobs.add(job);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid download manager state file", e);
+            }
+        }
+
+        mPersistedJobs = jobs;
+    }
+
+    /**
+     * Returns the jobs of this manager, in submission order.
+     * @return the jobs
+     */
+    public synchronized List<Job> getJobs() {
+        return new ArrayList<>(mJobs.values());
+    }
+
+    /**
+     * Returns the job with the given id.
+     * @param id the job id
+     * @return the job, or null if there is no such job
+     */
+    public synchronized Job getJob(long id) {
+        return mJobs.get(id);
+    }
+
+    /**
+     * Removes the jobs that are done (completed, failed or cancelled).
+     */
+    public synchronized void purge() {
+        mJobs.values().removeIf(job -> job.mState.isDone());
+    }
+
+    /**
+     * Stops the manager: the running downloads are interrupted and, as the
+     * queued ones, are kept in the state file so that they can be restored.
+     * @param timeout the maximum time to wait for the running downloads to stop
+     * @param unit the unit of the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        List<HttpDownloader> running = new ArrayList<>();
+
+        synchronized (this) {
+            mShutdown = true;
+            for (Job job : mJobs.values())
+                if (job.mState == State.RUNNING && job.mDownloader != null)
+                    running.add(job.mDownloader);
+            saveState();
+        }
+
+        for (HttpDownloader downloader : running)
+            stop(downloader);
+
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(timeout, unit);
+    }
+
+    private boolean pause(Job job) {
+        HttpDownloader downloader;
+
+        synchronized (this) {
+            if (job.mState == State.QUEUED) {
+                mQueue.remove(job);
+                job.mState = State.PAUSED;
+                saveState();
+                return true;
+            }
+
+            if (job.mState != State.RUNNING || job.mRequestedState != null)
+                return false;
+
+            job.mRequestedState = State.PAUSED;
+            downloader = job.mDownloader;
+        }
+
+        stop(downloader);
+        return true;
+    }
+
+    private boolean resume(Job job) {
+        synchronized (this) {
+            if (mShutdown || (job.mState != State.PAUSED && job.mState != State.FAILED))
+                return false;
+            job.mError = null;
+            queue(job);
+            saveState();
+        }
+
+        schedule();
+        return true;
+    }
+
+    private boolean cancel(Job job) {
+        HttpDownloader downloader = null;
+        boolean running;
+
+        synchronized (this) {
+            if (job.mState.isDone())
+                return false;
+
+            running = job.mState == State.RUNNING;
+
+            if (running) {
+                job.mRequestedState = State.CANCELLED;
+                downloader = job.mDownloader;
+            }
+            else {
+                mQueue.remove(job);
+                job.mState = State.CANCELLED;
+                saveState();
+            }
+        }
+
+        if (running) {
+            // Completed by run() once the download is over
+            stop(downloader);
+            return true;
+        }
+
+        HttpDownloader.deletePartialFiles(job.mOutputPath);
+        job.mFuture.complete(job);
+        return true;
+    }
+
+    /**
+     * Aborts the download of the given downloader.
+     * <p>
+     * Must not be called while holding the lock of the manager: closing
+     * the connection waits for the read in progress, if any, to return.
+     * @param downloader the downloader
+     */
+    private void stop(HttpDownloader downloader) {
+        if (downloader != null)
+            downloader.enableDownload(false);
+    }
+
+    private void queue(Job job) {
+        job.mState = State.QUEUED;
+        job.mRequestedState = null;
+        job.mSequence = mNextSequence.getAndIncrement();
+        mQueue.add(job);
+    }
+
+    /**
+     * Starts the queued jobs allowed by the limits.
+     */
+    private synchronized void schedule() {
+        if (mShutdown)
+            return;
+
+        Iterator<Job> it = mQueue.iterator();
+
+        while (mRunning < mMaxDownloads && it.hasNext()) {
+            Job job = it.next();
+            int running = mRunningPerHost.getOrDefault(job.mHost, 0);
+            if (running >= mMaxDownloadsPerHost)
+                continue;
+
+            it.remove();
+            mRunning++;
+            mRunningPerHost.put(job.mHost, running + 1);
+
+            job.mState = State.RUNNING;
+            job.mDownloadedBytes = 0;
+            job.mDownloader = mDownloaderFactory.get()
+                .resumeIfExists(true)
+                .bandwidthLimiter(mBandwidthLimiter)
+                .bandwidthLimit(job.mBandwidthLimit);
+            if (job.mDownloader.getReadTimeout() <= 0)
+                job.mDownloader.readTimeout(DEFAULT_READ_TIMEOUT);
+
+            L.out("Starting " + job);
+
+            HttpDownloader downloader = job.mDownloader;
+            mExecutor.execute(() -> run(job, downloader));
+        }
+    }
+
+    private void run(Job job, HttpDownloader downloader) {
+        boolean completed = false;
+        Throwable error = null;
+
+        try {
+            completed = downloader.download(job.mUrl, job.mOutputPath,
+                bytes -> job.mDownloadedBytes = bytes, PROGRESS_CALLBACK_BYTES);
+
+            int code = downloader.getResponseCode();
+            // Resuming a file already complete is answered with 416
+            if (completed && code >= 400 &&
+                !(code == 416 && new File(job.mOutputPath).length() > 0))
+                throw new IOException("Download failed with response code " + code);
+        } catch (Throwable e) {
+            completed = false;
+            error = e;
+        }
+
+        boolean done;
+        State state;
+
+        synchronized (this) {
+            mRunning--;
+            mRunningPerHost.merge(job.mHost, -1, Integer::sum);
+            mRunningPerHost.remove(job.mHost, 0);
+            job.mDownloader = null;
+
+            if (completed)
+                state = State.COMPLETED;
+            else if (job.mRequestedState == State.CANCELLED)
+                state = State.CANCELLED;
+            else if (job.mRequestedState == State.PAUSED)
+                state = State.PAUSED;
+            else if (mShutdown)
+                state = State.QUEUED; // Interrupted by the shutdown, persisted as queued
+            else
+                state = State.FAILED;
+
+            job.mRequestedState = null;
+            job.mState = state;
+            job.mError = state == State.FAILED ? error : null;
+            done = state.isDone();
+
+            L.out("Job " + job.mId + " is now " + state +
+                (error != null ? " (" + error.getMessage() + ")" : ""));
+
+            saveState();
+        }
+
+        if (state == State.CANCELLED)
+            HttpDownloader.deletePartialFiles(job.mOutputPath);
+
+        if (done)
+            job.mFuture.complete(job);
+
+        schedule();
+    }
+
+    /**
+     * Persists the jobs that are not done, one per line as
+     * 'id priority state url outputPath' (tab separated).
+     */
+    private void saveState() {
+        if (mStateFile == null)
+            return;
+
+        try {
+            loadState();
+        } catch (IOException e) {
+            // Never overwrite a state that hasn't been read
+            L.out("Can't read state file, not saving: " + e.getMessage());
+            return;
+        }
+
+        List<Job> jobs = new ArrayList<>(mPersistedJobs);
+        jobs.addAll(mJobs.values());
+
+        StringBuilder sb = new StringBuilder();
+        for (Job job : jobs) {
+            if (job.mState.isDone())
+                continue;
+            State state = job.mState == State.PAUSED ? State.PAUSED : State.QUEUED;
+            sb.append(job.mId).append(STATE_SEPARATOR)
+              .append(job.mPriority).append(STATE_SEPARATOR)
+              .append(state).append(STATE_SEPARATOR)
+              .append(job.mUrl).append(STATE_SEPARATOR)
+              .append(job.mOutputPath).append('\n');
+        }
+
+        // Write then rename, so that a crash never leaves a partial state
+        File tmp = new File(mStateFile.getPath() + ".tmp");
+        try {
+            try (OutputStream os = new FileOutputStream(tmp)) {
+                os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            Files.move(tmp.toPath(), mStateFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            L.out("Can't write state file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns whether the given value can be a field of the state file.
+     * @param value the value
+     * @return whether the value doesn't contain separators
+     */
+    private static boolean isPersistable(String value) {
+        return value.indexOf('\t') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HttpDownloadManager{running: " + mRunning + ", queued: " + mQueue.size() +
+            ", jobs: " + mJobs.size() + "}";
+    }
+}
@@ -0,0 +1,328 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+import org.docheinstein.commons.types.StringUtil;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snapshot of the progress of a download, reported periodically to the
+ * {@link HttpDownloader.ProgressListener} of a {@link HttpDownloader}.
+ */
+public final class HttpDownloadProgress {
+
+    private final long mDownloadedBytes;
+    private final long mTotalBytes;
+    private final double mCurrentThroughput;
+    private final double mAverageThroughput;
+    private final long mElapsedMillis;
+    private final long mIdleMillis;
+    private final boolean mStalled;
+    private final int mReconnects;
+    private final boolean mFinished;
+
+    private HttpDownloadProgress(long downloadedBytes, long totalBytes,
+                                 double currentThroughput, double averageThroughput,
+                                 long elapsedMillis, long idleMillis, boolean stalled,
+                                 int reconnects, boolean finished) {
+        mDownloadedBytes = downloadedBytes;
+        mTotalBytes = totalBytes;
+        mCurrentThroughput = currentThroughput;
+        mAverageThroughput = averageThroughput;
+        mElapsedMillis = elapsedMillis;
+        mIdleMillis = idleMillis;
+        mStalled = stalled;
+        mReconnects = reconnects;
+        mFinished = finished;
+    }
+
+    /**
+     * Returns the bytes of the resource downloaded so far, including the
+     * ones of a resumed partial file.
+     * @return the downloaded bytes
+     */
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    /**
+     * Returns the size of the resource.
+     * @return the total bytes, or -1 if unknown
+     */
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Returns the downloaded fraction of the resource.
+     * @return the fraction between 0 and 1, or -1 if the size is unknown
+     */
+    public double getFraction() {
+        if (mTotalBytes < 0)
+            return -1;
+        return mTotalBytes == 0 ? 1 : Math.min(1, (double) mDownloadedBytes / mTotalBytes);
+    }
+
+    /**
+     * Returns the throughput of the last seconds.
+     * @return the current throughput in bytes per second
+     */
+    public double getCurrentThroughput() {
+        return mCurrentThroughput;
+    }
+
+    /**
+     * Returns the throughput since the start of the download.
+     * @return the average throughput in bytes per second
+     */
+    public double getAverageThroughput() {
+        return mAverageThroughput;
+    }
+
+    /**
+     * Returns the estimated time needed to complete the download, based on
+     * the current throughput.
+     * @return the estimated millis, or -1 if unknown
+     */
+    public long getEtaMillis() {
+        if (mFinished)
+            return 0;
+        if (mTotalBytes < 0 || mCurrentThroughput <= 0)
+            return -1;
+        return (long) (Math.max(0, mTotalBytes - mDownloadedBytes) * 1000 / mCurrentThroughput);
+    }
+
+    /**
+     * Returns the time elapsed since the start of the download.
+     * @return the elapsed millis
+     */
+    public long getElapsedMillis() {
+        return mElapsedMillis;
+    }
+
+    /**
+     * Returns the time elapsed since data has been received the last time.
+     * @return the idle millis
+     */
+    public long getIdleMillis() {
+        return mIdleMillis;
+    }
+
+    /**
+     * Returns whether no data has been received for longer than the
+     * stall timeout of the downloader.
+     * @return whether the download is stalled
+     */
+    public boolean isStalled() {
+        return mStalled;
+    }
+
+    /**
+     * Returns the amount of times the download has been reconnected
+     * because stalled.
+     * @return the reconnects
+     */
+    public int getReconnects() {
+        return mReconnects;
+    }
+
+    /**
+     * Returns whether this is the last report of the download, which is
+     * over (either completed, aborted or failed).
+     * @return whether the download is over
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+            "HttpDownloadProgress{%d/%d bytes, current: %.0f B/s, average: %.0f B/s, " +
+                "eta: %dms, stalled: %b, reconnects: %d, finished: %b}",
+            mDownloadedBytes, mTotalBytes, mCurrentThroughput, mAverageThroughput,
+            getEtaMillis(), mStalled, mReconnects, mFinished);
+    }
+
+    /**
+     * Tracker of the progress of a download, which periodically reports it
+     * and detects stalls independently from the arrival of data.
+     */
+    static final class Tracker {
+
+        private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_DOWNLOAD_PROGRESS}");
+
+        private static final ScheduledExecutorService TIMER;
+
+        static {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "http-download-progress");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            TIMER = timer;
+        }
+
+        // Window of the current throughput
+        private static final long THROUGHPUT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+        private final HttpDownloader.ProgressListener mListener;
+        private final long mIntervalNanos;
+        private final long mStallTimeoutNanos;
+        private final Runnable mOnStall;
+
+        private final long mStart = System.nanoTime();
+        private final AtomicLong mBytes = new AtomicLong(0);
+        private volatile long mBaseBytes = 0;
+        private volatile long mTotalBytes = -1;
+        private volatile long mLastData = mStart;
+        private volatile int mReconnects = 0;
+
+        // Accessed by the timer only: samples (time, bytes) within the window
+        private final Deque<long[]> mSamples = new ArrayDeque<>();
+        private long mLastReport = mStart;
+        private double mCurrentThroughput = 0;
+        private boolean mStallHandled = false;
+
+        private ScheduledFuture<?> mTask;
+
+        /**
+         * Creates a tracker.
+         * @param listener the listener of the progress, if any
+         * @param intervalMillis the interval between the reports
+         * @param stallTimeoutMillis the time without data after which the
+         *                           download is stalled, or 0 for never
+         * @param onStall called (from the timer) once when the download stalls
+         */
+        Tracker(HttpDownloader.ProgressListener listener, long intervalMillis,
+                long stallTimeoutMillis, Runnable onStall) {
+            mListener = listener;
+            mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+            mStallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis);
+            mOnStall = onStall;
+        }
+
+        /**
+         * Starts the periodic reports.
+         */
+        void start() {
+            long period = mListener != null ? mIntervalNanos : Long.MAX_VALUE;
+            if (mStallTimeoutNanos > 0)
+                period = Math.min(period, Math.max(TimeUnit.MILLISECONDS.toNanos(10), mStallTimeoutNanos / 4));
+            if (period == Long.MAX_VALUE)
+                return;
+            mTask = TIMER.scheduleAtFixedRate(this::tick, period, period, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Called when a (new) response starts to be downloaded.
+         * @param totalBytes the size of the resource, or -1 if unknown
+         * @param alreadyDownloaded the bytes already present (resumed)
+         */
+        void begin(long totalBytes, long alreadyDownloaded) {
+            mTotalBytes = totalBytes;
+            mBaseBytes = alreadyDownloaded - mBytes.get();
+            mLastData = System.nanoTime();
+            mStallHandled = false;
+        }
+
+        /**
+         * Called when data has been received.
+         * @param bytes the received bytes
+         */
+        void add(long bytes) {
+            mBytes.addAndGet(bytes);
+            mLastData = System.nanoTime();
+        }
+
+        /**
+         * Called when the download is reconnected after a stall.
+         */
+        void reconnected() {
+            mReconnects++;
+            mLastData = System.nanoTime();
+        }
+
+        /**
+         * Stops the reports, sending the final one.
+         */
+        void stop() {
+            if (mTask != null)
+                mTask.cancel(false);
+            if (mListener != null)
+                report(snapshot(System.nanoTime(), true));
+        }
+
+        private synchronized void tick() {
+            long now = System.nanoTime();
+            long bytes = mBytes.get();
+
+            if (mSamples.isEmpty())
+                mSamples.add(new long[] { mStart, 0 });
+            mSamples.add(new long[] { now, bytes });
+            while (mSamples.size() > 2 && now - mSamples.peekFirst()[0] > THROUGHPUT_WINDOW_NANOS)
+                mSamples.pollFirst();
+
+            long[] oldest = mSamples.peekFirst();
+            mCurrentThroughput = now > oldest[0] ? (bytes - oldest[1]) * 1e9 / (now - oldest[0]) : 0;
+
+            boolean stalled = isStalled(now);
+            if (stalled && !mStallHandled) {
+                mStallHandled = true;
+                if (mOnStall != null) {
+                    try {
+                        mOnStall.run();
+                    } catch (RuntimeException e) {
+                        L.out("Stall handler failed: " + StringUtil.toString(e));
+                    }
+                }
+            }
+            else if (!stalled)
+                mStallHandled = false;
+
+            if (mListener != null && now - mLastReport >= mIntervalNanos) {
+                mLastReport = now;
+                report(snapshot(now, false));
+            }
+        }
+
+        /**
+         * Notifies the listener, which must not be able to throw: an
+         * exception thrown by a periodic task cancels it silently.
+         */
+        private void report(HttpDownloadProgress progress) {
+            try {
+                mListener.onProgress(progress);
+            } catch (RuntimeException e) {
+                L.out("Progress listener failed: " + StringUtil.toString(e));
+            }
+        }
+
+        private boolean isStalled(long now) {
+            return mStallTimeoutNanos > 0 && now - mLastData > mStallTimeoutNanos;
+        }
+
+        private synchronized HttpDownloadProgress snapshot(long now, boolean finished) {
+            long bytes = mBytes.get();
+            long elapsed = now - mStart;
+            return new HttpDownloadProgress(
+                mBaseBytes + bytes, mTotalBytes,
+                mCurrentThroughput,
+                elapsed > 0 ? bytes * 1e9 / elapsed : 0,
+                TimeUnit.NANOSECONDS.toMillis(elapsed),
+                TimeUnit.NANOSECONDS.toMillis(now - mLastData),
+                !finished && isStalled(now),
+                mReconnects,
+                finished
+            );
+        }
+    }
+}
@@ -1,14 +1,32 @@
 package org.docheinstein.commons.http;
 
 import org.docheinstein.commons.internal.DocCommonsLogger;
+import org.docheinstein.commons.crypto.CryptoUtil;
 import org.docheinstein.commons.file.FileUtil;
+import org.docheinstein.commons.zip.ZipUtil;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
@@ -22,16 +40,65 @@ public class HttpDownloader {
 
     private static final boolean DEFAULT_RESUME_IF_EXISTS = true;
 
+    private static final int DEFAULT_SEGMENTS = 1;
+    private static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final long SEGMENTS_STATE_SAVE_INTERVAL = 1000;
+    private static final String SEGMENTS_STATE_SUFFIX = ".segments";
+    private static final String PART_SUFFIX = ".part";
+    private static final String VALIDATOR_SUFFIX = ".validator";
+    private static final long DEFAULT_PROGRESS_INTERVAL = 500;
+    private static final int DEFAULT_MAX_RECONNECTS = 3;
+    private static final int UNZIP_PIPE_CHUNKS = 16;
+    private static final int UNZIP_PIPE_CHUNK_MAX_SIZE = 1024 * 1024;
+    private static final long MIRROR_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIRROR_SWITCH_WARMUP_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long MIRROR_SWITCH_MIN_GAIN_NANOS = TimeUnit.SECONDS.toNanos(3);
+    private static final double MIRROR_SWITCH_RATIO = 2;
+    private static final int MAX_MIRROR_SWITCHES = 8;
+    private static final int MIRROR_READ_TIMEOUT = 5000;
+
     /**
      * Whether there is need to continue the download.
      * <p>
      * False if download is aborted.
      **/
-    private boolean mDownloadEnabled = true;
+    private volatile boolean mDownloadEnabled = true;
 
     private String mUserAgent = DEFAULT_USER_AGENT;
     private boolean mResumeIfExists = DEFAULT_RESUME_IF_EXISTS;
     private Consumer<HttpURLConnection> mConnectionInitializer = null;
+    private HttpRateLimiter mRateLimiter = null;
+    private HttpBandwidthLimiter mBandwidthLimiter = null;
+    private volatile HttpBandwidthLimiter mDownloadBandwidthLimiter = null;
+    private HttpDnsResolver mDnsResolver = null;
+    private HttpMirrorSelector mMirrorSelector = HttpMirrorSelector.create();
+    private HttpMetrics mMetrics = null;
+    private int mConnectionTimeout = 0;
+    private int mReadTimeout = 0;
+    private int mSegments = DEFAULT_SEGMENTS;
+    private long mMinSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    private CryptoUtil.Checksum.Algorithm mChecksumAlgorithm = null;
+    private String mExpectedChecksum = null;
+    private boolean mAtomicPublish = false;
+    private HttpDownloadCache mCache = null;
+    private ProgressListener mProgressListener = null;
+    private long mProgressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private long mStallTimeout = 0;
+    private StallAction mStallAction = StallAction.REPORT;
+    private int mMaxReconnects = DEFAULT_MAX_RECONNECTS;
+
+    // Connections in use, closed if the download is aborted
+    private final Set<HttpURLConnection> mConnections = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong mRateLimitWait = new AtomicLong(0);
+
+    private volatile int mResponseCode = 0;
+    private volatile String mChecksum = null;
+    private volatile boolean mServedFromCache = false;
+    private volatile HttpDownloadProgress.Tracker mTracker = null;
+    private volatile boolean mStallInterrupted = false;
+    // Time spent resolving the host of the download, taken by its first exchange
+    private final AtomicLong mDnsNanos = new AtomicLong(-1);
 
     /**
      * Interface used for listen to download progress.
@@ -47,6 +114,34 @@ public class HttpDownloader {
         void onProgress(long downloadedBytes);
     }
 
+    /**
+     * Interface used for listen to the progress of the downloads at regular
+     * time intervals, independently from the arrival of data.
+     */
+    public interface ProgressListener {
+        /**
+         * Called periodically while downloading, and once at the end.
+         * <p>
+         * Called from a timer thread shared between the downloads, thus
+         * should return quickly.
+         * @param progress the progress of the download
+         */
+        void onProgress(HttpDownloadProgress progress);
+    }
+
+    /**
+     * Action taken when a download stalls.
+     * @see #stallTimeout(long, StallAction)
+     */
+    public enum StallAction {
+        /** The stall is only reported to the {@link ProgressListener}. */
+        REPORT,
+        /** The download fails. */
+        ABORT,
+        /** The connection is closed and the download is resumed on a new one. */
+        RECONNECT
+    }
+
     /**
      * Uses the given user agent instead of the default one.
      * @param userAgent the user agent to use for the HTTP request
@@ -70,6 +165,197 @@ public class HttpDownloader {
         return this;
     }
 
+    /**
+     * Sets the metrics the downloads have to be recorded into.
+     * <p>
+     * The same metrics should be shared between the downloaders.
+     * @param metrics the metrics, or null for not record the downloads
+     * @return this downloader
+     */
+    public HttpDownloader metrics(HttpMetrics metrics) {
+        mMetrics = metrics;
+        return this;
+    }
+
+    /**
+     * Sets the connection timeout.
+     * @param millis the amount of millis to wait before interrupt the
+     *               connection, or 0 for wait indefinitely
+     * @return this downloader
+     */
+    public HttpDownloader connectionTimeout(int millis) {
+        mConnectionTimeout = millis;
+        return this;
+    }
+
+    /**
+     * Sets the read timeout, which is the maximum time to wait for
+     * each chunk of data from the server.
+     * @param millis the amount of millis to wait before interrupt the
+     *               read, or 0 for wait indefinitely
+     * @return this downloader
+     */
+    public HttpDownloader readTimeout(int millis) {
+        mReadTimeout = millis;
+        return this;
+    }
+
+    /**
+     * Returns the read timeout.
+     * @return the read timeout in millis, or 0 if reads wait indefinitely
+     * @see #readTimeout(int)
+     */
+    public int getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    /**
+     * Sets the amount of segments the resources are split into and
+     * downloaded concurrently, each over its own connection.
+     * <p>
+     * The segmented download is used only if the server declares the
+     * length of the resource and the support of byte ranges
+     * ('Accept-Ranges: bytes'); otherwise the resource is downloaded
+     * over a single connection.
+     * <p>
+     * Each segment is written at its offset in the output file, which
+     * is preallocated; the progress of the segments is kept in a
+     * '.segments' file next to the output file, so that if
+     * {@link #resumeIfExists(boolean)} is enabled an interrupted download
+     * resumes each segment from where it stopped.
+     * @param segments the amount of segments (1 for disable the segmented download)
+     * @return this downloader
+     */
+    public HttpDownloader segments(int segments) {
+        mSegments = Math.max(1, segments);
+        return this;
+    }
+
+    /**
+     * Sets the minimum size of each segment; resources smaller than two
+     * segments are downloaded over a single connection.
+     * @param bytes the minimum segment size
+     * @return this downloader
+     * @see #segments(int)
+     */
+    public HttpDownloader minSegmentSize(long bytes) {
+        mMinSegmentSize = Math.max(1, bytes);
+        return this;
+    }
+
+    /**
+     * Computes the checksum of the resource while it is downloaded, which is
+     * then available via {@link #getChecksum()}.
+     * <p>
+     * The data has to be hashed in order, thus the resource is downloaded
+     * over a single connection even if {@link #segments(int)} is set; if
+     * a download is resumed only the part already downloaded is read back.
+     * @param algorithm the checksum algorithm, or null for not compute it
+     * @return this downloader
+     */
+    public HttpDownloader checksum(CryptoUtil.Checksum.Algorithm algorithm) {
+        mChecksumAlgorithm = algorithm;
+        if (algorithm == null)
+            mExpectedChecksum = null;
+        return this;
+    }
+
+    /**
+     * Verifies the downloaded resource against the given checksum.
+     * <p>
+     * The resource is downloaded into a '.part' file that is published to
+     * the output path only if the checksum matches (see
+     * {@link #atomicPublish(boolean)}); otherwise the partial data is
+     * discarded and the download fails.
+     * @param algorithm the checksum algorithm
+     * @param expectedHex the expected checksum, as hex string
+     * @return this downloader
+     */
+    public HttpDownloader expectedChecksum(CryptoUtil.Checksum.Algorithm algorithm, String expectedHex) {
+        mChecksumAlgorithm = algorithm;
+        mExpectedChecksum = expectedHex;
+        return this;
+    }
+
+    /**
+     * Whether the resource should be downloaded into a '.part' file next to
+     * the output path and moved to the output path (atomically, if the
+     * file system allows it) only once completed, so that the output path
+     * never contains a partial resource.
+     * <p>
+     * Always enabled if an expected checksum is given.
+     * @param atomicPublish whether publish the file only once completed
+     * @return this downloader
+     */
+    public HttpDownloader atomicPublish(boolean atomicPublish) {
+        mAtomicPublish = atomicPublish;
+        return this;
+    }
+
+    /**
+     * Sets the cache the downloads are satisfied from, if the resource is
+     * already cached, and stored into otherwise.
+     * <p>
+     * A resource is found by the expected SHA-256 checksum, if given via
+     * {@link #expectedChecksum(CryptoUtil.Checksum.Algorithm, String)},
+     * otherwise by the url and the validator returned by a 'HEAD' request.
+     * The SHA-256 checksum of the downloads is computed (thus the downloads
+     * are performed over a single connection) and the downloads are
+     * published atomically, so that the cached files linked to previous
+     * outputs are never overwritten.
+     * @param cache the cache, or null for not use a cache
+     * @return this downloader
+     */
+    public HttpDownloader cache(HttpDownloadCache cache) {
+        mCache = cache;
+        return this;
+    }
+
+    /**
+     * Sets the listener of the progress of the downloads, called at the
+     * given time interval with throughput, estimated time and stall state.
+     * <p>
+     * Unlike {@link DownloadObserver}, the listener is called even if no
+     * data arrives and never more often than the interval.
+     * @param listener the listener, or null for not report the progress
+     * @param intervalMillis the interval between the reports
+     * @return this downloader
+     */
+    public HttpDownloader progressListener(ProgressListener listener, long intervalMillis) {
+        mProgressListener = listener;
+        mProgressInterval = Math.max(1, intervalMillis);
+        return this;
+    }
+
+    /**
+     * Sets the time without data after which a download is stalled and the
+     * action to take when it happens.
+     * <p>
+     * Unlike the read timeout, which bounds a single read, the stall is
+     * detected on the whole download (segments included).
+     * @param millis the stall timeout, or 0 for never consider a download stalled
+     * @param action the action to take
+     * @return this downloader
+     * @see #maxReconnects(int)
+     */
+    public HttpDownloader stallTimeout(long millis, StallAction action) {
+        mStallTimeout = Math.max(0, millis);
+        mStallAction = action;
+        return this;
+    }
+
+    /**
+     * Sets the maximum amount of reconnects of a download because stalled,
+     * after which the download fails.
+     * @param maxReconnects the maximum amount of reconnects
+     * @return this downloader
+     * @see #stallTimeout(long, StallAction)
+     */
+    public HttpDownloader maxReconnects(int maxReconnects) {
+        mMaxReconnects = Math.max(0, maxReconnects);
+        return this;
+    }
+
     /**
      * Sets a custom initializer that can perform additional action
      * on the connection before proceed with the download.
@@ -81,6 +367,129 @@ public class HttpDownloader {
         return this;
     }
 
+    /**
+     * Sets the rate limiter that has to be consulted before connecting.
+     * <p>
+     * The same rate limiter should be shared between the downloaders.
+     * @param rateLimiter the rate limiter, or null for not limit the rate
+     * @return this downloader
+     */
+    public HttpDownloader rateLimiter(HttpRateLimiter rateLimiter) {
+        mRateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Sets the limiter of the bandwidth used by the downloads.
+     * <p>
+     * The same limiter can be shared between the downloaders in order
+     * to limit the overall bandwidth.
+     * @param bandwidthLimiter the limiter, or null for not limit the bandwidth
+     * @return this downloader
+     */
+    public HttpDownloader bandwidthLimiter(HttpBandwidthLimiter bandwidthLimiter) {
+        mBandwidthLimiter = bandwidthLimiter;
+        return this;
+    }
+
+    /**
+     * Limits the bandwidth used by the downloads of this downloader, in
+     * addition to the limiter set with {@link #bandwidthLimiter(HttpBandwidthLimiter)}
+     * (typically shared between the downloaders for a global limit).
+     * <p>
+     * Can be called while downloading: the new limit applies immediately.
+     * @param bytesPerSecond the bandwidth, or 0 for not limit it
+     * @return this downloader
+     */
+    public synchronized HttpDownloader bandwidthLimit(long bytesPerSecond) {
+        long limit = Math.max(0, bytesPerSecond);
+        if (mDownloadBandwidthLimiter != null)
+            mDownloadBandwidthLimiter.bytesPerSecond(limit);
+        else if (limit > 0)
+            mDownloadBandwidthLimiter = HttpBandwidthLimiter.create(limit);
+        return this;
+    }
+
+    /**
+     * Returns the bandwidth limit of the downloads of this downloader.
+     * @return the bytes per second, or 0 if not limited
+     * @see #bandwidthLimit(long)
+     */
+    public long getBandwidthLimit() {
+        HttpBandwidthLimiter limiter = mDownloadBandwidthLimiter;
+        return limiter != null ? limiter.getBytesPerSecond() : 0;
+    }
+
+    /**
+     * Sets the resolver consulted for the host before connecting, which keeps
+     * the JVM's address cache warm for the hosts in use and makes the
+     * downloads toward hosts recently found unresolvable fail fast.
+     * <p>
+     * The same resolver should be shared between the downloaders.
+     * @param dnsResolver the resolver, or null for rely only on the JVM's resolver
+     * @return this downloader
+     */
+    public HttpDownloader dnsResolver(HttpDnsResolver dnsResolver) {
+        mDnsResolver = dnsResolver;
+        return this;
+    }
+
+    /**
+     * Sets the selector of the mirrors used by
+     * {@link #downloadFromMirrors(List, String)}, which remembers the
+     * speed of the hosts.
+     * <p>
+     * By default each downloader has its own selector; the same selector
+     * can be shared between the downloaders so that the speed of the hosts
+     * measured by one download is known by the others.
+     * @param mirrorSelector the selector
+     * @return this downloader
+     */
+    public HttpDownloader mirrorSelector(HttpMirrorSelector mirrorSelector) {
+        mMirrorSelector = mirrorSelector != null ? mirrorSelector : HttpMirrorSelector.create();
+        return this;
+    }
+
+    /**
+     * Returns the time the last download waited for the permit of the
+     * rate limiter.
+     * @return the millis waited for the rate limiter
+     */
+    public long getRateLimitWaitMillis() {
+        return mRateLimitWait.get();
+    }
+
+    /**
+     * Returns the response code of the last download.
+     * <p>
+     * Responses with an error code are not considered failures by
+     * {@link #download(String, String)}, which writes the body of the error
+     * in a separate file; this allows to tell them apart.
+     * @return the response code, or 0 if no response has been received
+     */
+    public int getResponseCode() {
+        return mResponseCode;
+    }
+
+    /**
+     * Returns the checksum of the resource downloaded by the last download.
+     * @return the checksum as hex string, or null if not computed
+     * @see #checksum(CryptoUtil.Checksum.Algorithm)
+     */
+    public String getChecksum() {
+        return mChecksum;
+    }
+
+    /**
+     * Returns whether the last download has been satisfied by the cache,
+     * without downloading the resource.
+     * @return whether the resource has been retrieved from the cache
+     * @see #cache(HttpDownloadCache)
+     */
+    public boolean isServedFromCache() {
+        return mServedFromCache;
+    }
+
     /**
      * Download a resource from an url.
      * @param urlString the url to download
@@ -121,98 +530,1791 @@ public class HttpDownloader {
             return false;
         }
 
-        final int BUFFER_SIZE = 4096;
-
         URL url = new URL(urlString);
-        InputStream is = null;
-        FileOutputStream fos = null;
 
-        try {
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestProperty("User-Agent", mUserAgent);
-            connection.setRequestMethod("GET");
+        // Fails fast if the host is known to be unresolvable
+        resolveHost(url);
+
+        mRateLimitWait.set(0);
+        mResponseCode = 0;
+        mChecksum = null;
+        mServedFromCache = false;
 
-            // Performs additional initializations
-            if (mConnectionInitializer != null)
-                mConnectionInitializer.accept(connection);
+        HttpDownloadProgress.Tracker tracker = startTracker();
 
-            boolean append = false;
+        int reconnects = 0;
 
-            if (mResumeIfExists) {
-                File outputFile = new File(outputPath);
+        try {
+            while (true) {
+                mStallInterrupted = false;
 
-                if (FileUtil.exists(outputFile)) {
-                    long alreadyDownloadedBytes = outputFile.length();
-                    L.out("The output file already exists; trying to resuming it from byte "
-                        + alreadyDownloadedBytes);
+                try {
+                    return downloadAttempt(url, outputPath, observer, bytesBetweenCallbacks,
+                        mResumeIfExists || reconnects > 0);
+                } catch (IOException e) {
+                    if (!mStallInterrupted && !isStallTimeout(e))
+                        throw e;
 
-                    connection.setRequestProperty(
-                        "Range",
-                        "bytes=" + alreadyDownloadedBytes  + "-");
+                    if (mStallAction != StallAction.RECONNECT || reconnects >= mMaxReconnects)
+                        throw new IOException("Download stalled for more than " + mStallTimeout +
+                            "ms (reconnects: " + reconnects + ")", e);
 
-                    append = true;
+                    reconnects++;
+                    if (tracker != null)
+                        tracker.reconnected();
+                    L.out("Download stalled, reconnecting (" + reconnects + "/" + mMaxReconnects + ")");
                 }
             }
+        } finally {
+            mTracker = null;
+            if (tracker != null)
+                tracker.stop();
+        }
+    }
 
-            connection.connect();
-            int code = connection.getResponseCode();
+    /**
+     * Download a resource available from several mirrors.
+     * @param urlStrings the urls of the mirrors
+     * @param outputPath the output path where the download will be put
+     * @return whether the download has been completed successfully
+     * @throws IOException if the download fails from all the mirrors
+     *
+     * @see #downloadFromMirrors(List, String, DownloadObserver, int)
+     */
+    public boolean downloadFromMirrors(List<String> urlStrings,
+                                       String outputPath) throws IOException {
+        return downloadFromMirrors(urlStrings, outputPath, null, 0);
+    }
 
-            if (code < 200 || code >= 400) {
-                outputPath += "-download-error-" + System.currentTimeMillis() + ".txt";
-                is = connection.getErrorStream();
-            }
-            else
-                is = connection.getInputStream();
+    /**
+     * Download a resource available from several mirrors, which must serve
+     * the same content.
+     * <p>
+     * The mirrors are probed in parallel, requesting the first bytes of the
+     * resource, and the download proceeds from the one expected to be the
+     * fastest by the {@link HttpMirrorSelector}, which considers the time
+     * to first byte and the throughput of the probes smoothed with the
+     * previous measures of the hosts; the bytes received by its probe are kept.
+     * <p>
+     * If the current mirror fails (including not sending data for a few
+     * seconds), or becomes much slower than another mirror is expected to
+     * be, the download moves to the other mirror and
+     * continues from the current position with a 'Range' request (skipping
+     * the bytes already downloaded if the mirror doesn't support ranges).
+     * The mirrors that declare a different length of the resource are
+     * considered failed; an expected checksum should be given in order
+     * to verify that the mirrors actually serve the same content.
+     * <p>
+     * The download is performed over a single connection at a time, is not
+     * resumed from a previous run and the cache is not consulted; a stall
+     * (unless only reported) moves the download to another mirror.
+     * @param urlStrings the urls of the mirrors
+     * @param outputPath the output path where the download will be put
+     * @param observer an optional observer used for listen to download progress
+     * @param bytesBetweenCallbacks the amount of bytes between each callback
+     *                              of {@link DownloadObserver#onProgress(long)}
+     * @return whether the download has been completed successfully (false if aborted)
+     * @throws IOException if the download fails from all the mirrors
+     */
+    public boolean downloadFromMirrors(List<String> urlStrings,
+                                       String outputPath,
+                                       DownloadObserver observer,
+                                       int bytesBetweenCallbacks) throws IOException {
+        if (!mDownloadEnabled) {
+            L.out("Download is not enabled, doing nothing");
+            return false;
+        }
 
-            fos = new FileOutputStream(outputPath, append);
+        if (urlStrings.isEmpty())
+            throw new IllegalArgumentException("No mirrors given");
 
-            byte[] buffer = new byte[BUFFER_SIZE];
-            long lastCallbackLength = 0;
-            long totalLength = 0;
-            int len;
+        List<URL> mirrors = new ArrayList<>();
+        for (String urlString : urlStrings)
+            mirrors.add(new URL(urlString));
 
-            // Download and write to the local file until data is available
-            while ((len = is.read(buffer)) > 0) {
+        mRateLimitWait.set(0);
+        mResponseCode = 0;
+        mChecksum = null;
+        mServedFromCache = false;
 
-                if (!mDownloadEnabled)
-                    return false; // Download aborted
+        File outputFile = new File(outputPath);
+        File downloadFile = mAtomicPublish || mExpectedChecksum != null ?
+            new File(outputPath + PART_SUFFIX) : outputFile;
 
-                totalLength += len;
+        CryptoUtil.Checksum checksum = mChecksumAlgorithm != null ?
+            CryptoUtil.Checksum.create(mChecksumAlgorithm) : null;
 
-                fos.write(buffer, 0, len);
+        HttpDownloadProgress.Tracker tracker = startTracker();
+        boolean completed = false;
 
-                // Notify download progression
-                if (totalLength - lastCallbackLength > bytesBetweenCallbacks &&
-                    observer != null) {
-                    lastCallbackLength = totalLength;
-                    observer.onProgress(totalLength);
-                }
+        try {
+            try (FileChannel channel = FileChannel.open(downloadFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                MirrorTransfer transfer = new MirrorTransfer(
+                    mirrors, channel, checksum, observer, bytesBetweenCallbacks);
+
+                if (mirrors.size() > 1)
+                    probeMirrors(transfer);
 
+                if (!downloadFromMirrors(transfer))
+                    return false; // Download aborted
             }
-            connection.disconnect();
-        } finally {
-            try {
-                if (is != null) {
-                    is.close();
-                }
-            } finally {
-                if (fos != null) {
-                    fos.close();
-                }
+
+            if (checksum != null) {
+                mChecksum = checksum.digestToHex();
+
+                if (mExpectedChecksum != null && !mExpectedChecksum.equalsIgnoreCase(mChecksum))
+                    throw new IOException("Checksum mismatch for " + outputPath +
+                        ": expected " + mExpectedChecksum + ", found " + mChecksum);
             }
+
+            publish(downloadFile, outputFile);
+            completed = true;
+        } finally {
+            // Not resumable, the partial data is useless
+            if (!completed)
+                deleteQuietly(downloadFile);
+
+            mTracker = null;
+            if (tracker != null)
+                tracker.stop();
         }
 
-        return true; // Download completed
+        return true;
     }
 
     /**
-     * Whether this entity should or should not download resource.
+     * Downloads a zip archive and extracts it into the given directory while
+     * it is downloaded, instead of writing it to disk and reading it back.
      * <p>
-     * If this is set to false while a download is in progress it will be
-     * aborted.
-     * @param downloadEnabled whether enable download
+     * The body is read by a separate thread and handed to the extraction,
+     * performed by the calling thread, through a bounded in memory pipe,
+     * so that the decompression overlaps the network transfer.
+     * The archive can be kept as well: it is written while it streams by
+     * into a '.part' file, published to the archive path once completed.
+     * <p>
+     * The data is consumed as it arrives, thus the download is performed
+     * over a single connection, is never resumed and fails if it stalls
+     * (whatever the {@link StallAction}); the cache is not consulted.
+     * The checksum, if requested, can be verified only after the entries
+     * have been extracted: on mismatch the archive is not kept.
+     * @param urlString the url of the archive
+     * @param targetDirectory the directory the archive is extracted into
+     * @param archivePath the path where the archive is kept, or null for
+     *                    not keep it
+     * @return whether the download has been completed (false if aborted)
+     * @throws IOException if the download or the extraction fail, or if
+     *                     the response is an error
+     * @see ZipUtil#unzip(InputStream, File)
      */
-    public void enableDownload(boolean downloadEnabled) {
-        mDownloadEnabled = downloadEnabled;
+    public boolean downloadAndUnzip(String urlString,
+                                    File targetDirectory,
+                                    String archivePath) throws IOException {
+        if (!mDownloadEnabled) {
+            L.out("Download is not enabled, doing nothing");
+            return false;
+        }
+
+        URL url = new URL(urlString);
+
+        resolveHost(url);
+
+        mRateLimitWait.set(0);
+        mResponseCode = 0;
+        mChecksum = null;
+        mServedFromCache = false;
+        mStallInterrupted = false;
+
+        File archiveFile = archivePath != null ? new File(archivePath) : null;
+        File partFile = archivePath != null ? new File(archivePath + PART_SUFFIX) : null;
+
+        HttpDownloadProgress.Tracker tracker = startTracker();
+        HttpURLConnection connection = null;
+        HttpMetrics.Exchange exchange = null;
+        InputStream is = null;
+        FileChannel channel = null;
+        boolean responded = false;
+        boolean transferring = false;
+        boolean completed = false;
+
+        try {
+            connection = openConnection(url, "GET");
+            acquireRateLimit(url);
+
+            int code;
+
+            try {
+                if (mMetrics != null) {
+                    exchange = mMetrics.begin(url.getHost());
+                    exchange.resolved(mDnsNanos.getAndSet(-1));
+                    exchange.connecting(connection);
+                }
+
+                connection.connect();
+
+                if (exchange != null)
+                    exchange.connected();
+
+                code = connection.getResponseCode();
+                responded = true;
+                mResponseCode = code;
+
+                if (exchange != null)
+                    exchange.headers(code);
+            } catch (IOException e) {
+                if (!mDownloadEnabled)
+                    return false; // Download aborted
+                throw e;
+            }
+
+            if (mRateLimiter != null)
+                mRateLimiter.onResponse(url.getHost(), code,
+                    connection.getHeaderField("Retry-After"));
+
+            if (code < 200 || code >= 300)
+                throw new IOException("Can't download " + urlString + ": response code " + code);
+
+            if (tracker != null)
+                tracker.begin(connection.getContentLengthLong(), 0);
+
+            is = connection.getInputStream();
+            if (exchange != null)
+                is = exchange.meter(is);
+
+            if (partFile != null)
+                channel = FileChannel.open(partFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+
+            CryptoUtil.Checksum checksum = mChecksumAlgorithm != null ?
+                CryptoUtil.Checksum.create(mChecksumAlgorithm) : null;
+            HttpStreamPipe pipe = new HttpStreamPipe(UNZIP_PIPE_CHUNKS);
+
+            // From now on the connection and the channel belong to the transfer
+            final HttpURLConnection transferConnection = connection;
+            final HttpMetrics.Exchange transferExchange = exchange;
+            final InputStream transferStream = is;
+            final FileChannel transferChannel = channel;
+
+            Thread transfer = new Thread(() -> transferToPipe(
+                transferConnection, transferExchange, transferStream,
+                transferChannel, checksum, pipe), "http-download-unzip");
+            transfer.setDaemon(true);
+            transfer.start();
+            transferring = true;
+
+            try (InputStream data = pipe.input()) {
+                ZipUtil.unzip(data, targetDirectory);
+
+                // The central directory follows the entries
+                byte[] trailer = new byte[8192];
+                while (data.read(trailer) >= 0);
+            } catch (IOException e) {
+                if (!mDownloadEnabled)
+                    return false; // Download aborted
+                if (mStallInterrupted || isStallTimeout(e))
+                    throw new IOException("Download stalled for more than " + mStallTimeout + "ms", e);
+                throw e;
+            }
+
+            // The end of the data is handed over after the transfer is over
+            if (checksum != null) {
+                mChecksum = checksum.digestToHex();
+
+                if (mExpectedChecksum != null && !mExpectedChecksum.equalsIgnoreCase(mChecksum))
+                    throw new IOException("Checksum mismatch for " + urlString +
+                        ": expected " + mExpectedChecksum + ", found " + mChecksum);
+            }
+
+            if (partFile != null)
+                publish(partFile, archiveFile);
+
+            completed = true;
+        } finally {
+            if (!transferring) {
+                if (connection != null)
+                    mConnections.remove(connection);
+                if (exchange != null)
+                    exchange.finish(!responded);
+                try {
+                    if (is != null)
+                        is.close();
+                } finally {
+                    if (channel != null)
+                        channel.close();
+                }
+            }
+
+            if (!completed && partFile != null)
+                deleteQuietly(partFile);
+
+            mTracker = null;
+            if (tracker != null)
+                tracker.stop();
+        }
+
+        return true;
+    }
+
+    /**
+     * Moves the body of a response into the pipe of
+     * {@link #downloadAndUnzip(String, File, String)}, writing it to the
+     * given channel as well; any failure is delivered through the pipe.
+     * @param connection the connection
+     * @param exchange the metrics exchange, if any
+     * @param is the stream of the body
+     * @param channel the channel of the archive, if it has to be kept
+     * @param checksum the checksum to update, if any
+     * @param pipe the pipe
+     */
+    private void transferToPipe(HttpURLConnection connection,
+                                HttpMetrics.Exchange exchange,
+                                InputStream is,
+                                FileChannel channel,
+                                CryptoUtil.Checksum checksum,
+                                HttpStreamPipe pipe) {
+        HttpAdaptiveBuffer buffer = new HttpAdaptiveBuffer(
+            HttpAdaptiveBuffer.DEFAULT_MIN_SIZE, UNZIP_PIPE_CHUNK_MAX_SIZE,
+            HttpAdaptiveBuffer.DEFAULT_INITIAL_SIZE);
+        long totalLength = 0;
+
+        try {
+            try {
+                int len;
+
+                while ((len = buffer.fill(is, bandwidthChunkSize())) > 0) {
+                    if (!mDownloadEnabled)
+                        throw new IOException("Download aborted");
+
+                    totalLength += len;
+
+                    HttpDownloadProgress.Tracker tracker = mTracker;
+                    if (tracker != null)
+                        tracker.add(len);
+
+                    ByteBuffer data = buffer.buffer();
+
+                    if (checksum != null)
+                        checksum.update(data.duplicate());
+
+                    pipe.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+
+                    if (channel != null) {
+                        while (data.hasRemaining())
+                            channel.write(data);
+                    }
+
+                    acquireBandwidth(len);
+                }
+            } finally {
+                mConnections.remove(connection);
+                if (exchange != null)
+                    exchange.finish(false);
+                try {
+                    is.close();
+                } finally {
+                    if (channel != null)
+                        channel.close();
+                }
+            }
+
+            L.out("Streamed " + totalLength + " bytes at " +
+                (long) buffer.getThroughput() + " B/s (buffer: " + buffer.size() + ")");
+
+            pipe.close();
+        } catch (IOException e) {
+            pipe.fail(e);
+        }
+    }
+
+    /**
+     * Creates and starts the tracker of the progress of a download, if
+     * there is a listener or a stall timeout.
+     * @return the tracker, or null if not needed
+     */
+    private HttpDownloadProgress.Tracker startTracker() {
+        HttpDownloadProgress.Tracker tracker = null;
+        if (mProgressListener != null || mStallTimeout > 0) {
+            tracker = new HttpDownloadProgress.Tracker(
+                mProgressListener, mProgressInterval, mStallTimeout, this::onStall);
+            tracker.start();
+        }
+        mTracker = tracker;
+        return tracker;
+    }
+
+    /**
+     * Resolves the host of the given url once per download, through the
+     * resolver if any; the time spent is recorded by the metrics of the
+     * first exchange of the download.
+     * @param url the url
+     * @throws IOException if the host can't be resolved
+     */
+    private void resolveHost(URL url) throws IOException {
+        mDnsNanos.set(-1);
+        if (mDnsResolver != null || mMetrics != null)
+            mDnsNanos.set(HttpMetrics.resolve(url.getHost(), mDnsResolver));
+    }
+
+    /**
+     * Returns whether the given exception is the read timeout set because
+     * of the stall timeout.
+     * @param e the exception
+     * @return whether the download stalled
+     */
+    private boolean isStallTimeout(IOException e) {
+        if (mStallTimeout <= 0 || mStallAction == StallAction.REPORT ||
+            (mReadTimeout > 0 && mReadTimeout < mStallTimeout))
+            return false;
+
+        for (Throwable t = e; t != null; t = t.getCause())
+            if (t instanceof SocketTimeoutException)
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Called by the progress tracker when the download stalls.
+     */
+    private void onStall() {
+        L.out("Download stalled");
+
+        if (mStallAction == StallAction.REPORT)
+            return;
+
+        // The read timeout is capped to the stall timeout, thus the blocked
+        // read fails by itself; closing the connection here would block the
+        // timer shared by every download until then
+        mStallInterrupted = true;
+    }
+
+    /**
+     * Performs an attempt of download.
+     * @param url the url to download
+     * @param outputPath the output path
+     * @param observer an optional observer of the progress
+     * @param bytesBetweenCallbacks the amount of bytes between each callback
+     * @param resume whether resume an existing partial download
+     * @return whether the download has been completed (false if aborted)
+     * @throws IOException if the download fails
+     */
+    private boolean downloadAttempt(URL url,
+                                    String outputPath,
+                                    DownloadObserver observer,
+                                    int bytesBetweenCallbacks,
+                                    boolean resume) throws IOException {
+        String urlString = url.toString();
+
+        File outputFile = new File(outputPath);
+        File downloadFile = mAtomicPublish || mExpectedChecksum != null || mCache != null ?
+            new File(outputPath + PART_SUFFIX) : outputFile;
+        File validatorFile = new File(downloadFile.getPath() + VALIDATOR_SUFFIX);
+
+        CryptoUtil.Checksum.Algorithm algorithm = mChecksumAlgorithm;
+
+        if (mCache != null) {
+            if (retrieveFromCache(url, urlString, outputFile))
+                return true;
+            if (algorithm == null)
+                algorithm = CryptoUtil.Checksum.Algorithm.SHA256;
+        }
+
+        if (mSegments > 1 && algorithm == null) {
+            Boolean completed = downloadSegmented(
+                url, downloadFile.getPath(), observer, bytesBetweenCallbacks, resume);
+            if (completed != null) {
+                if (completed)
+                    publish(downloadFile, outputFile);
+                return completed;
+            }
+        }
+
+        InputStream is = null;
+        FileChannel channel = null;
+        HttpURLConnection connection = null;
+        HttpMetrics.Exchange exchange = null;
+        CryptoUtil.Checksum checksum = null;
+        String validator = null;
+        boolean responded = false;
+        boolean downloaded = false;
+
+        try {
+            connection = openConnection(url, "GET");
+
+            boolean resuming = false;
+
+            if (resume && FileUtil.exists(downloadFile)) {
+                long alreadyDownloadedBytes = downloadFile.length();
+                L.out("The output file already exists; trying to resuming it from byte "
+                    + alreadyDownloadedBytes);
+
+                connection.setRequestProperty(
+                    "Range",
+                    "bytes=" + alreadyDownloadedBytes  + "-");
+
+                // The range is honored only if the resource has not changed
+                String partialValidator = readValidator(validatorFile);
+                if (partialValidator != null)
+                    connection.setRequestProperty("If-Range", partialValidator);
+
+                resuming = true;
+            }
+
+            acquireRateLimit(url);
+
+            int code;
+
+            try {
+                if (mMetrics != null) {
+                    exchange = mMetrics.begin(url.getHost());
+                    exchange.resolved(mDnsNanos.getAndSet(-1));
+                    exchange.connecting(connection);
+                }
+
+                connection.connect();
+
+                if (exchange != null)
+                    exchange.connected();
+
+                code = connection.getResponseCode();
+                responded = true;
+                mResponseCode = code;
+
+                if (exchange != null)
+                    exchange.headers(code);
+            } catch (IOException e) {
+                if (!mDownloadEnabled)
+                    return false; // Download aborted
+                throw e;
+            }
+
+            if (mRateLimiter != null)
+                mRateLimiter.onResponse(url.getHost(), code,
+                    connection.getHeaderField("Retry-After"));
+
+            boolean error = code < 200 || code >= 400;
+            boolean append = resuming && code == HttpURLConnection.HTTP_PARTIAL;
+            File writeFile = downloadFile;
+
+            if (error) {
+                writeFile = new File(outputPath + "-download-error-" + System.currentTimeMillis() + ".txt");
+                append = false;
+                is = connection.getErrorStream();
+                // No error stream if the error has no body
+                if (is == null)
+                    is = new ByteArrayInputStream(new byte[0]);
+            }
+            else {
+                if (resuming && !append)
+                    L.out("The resource has changed or the range is not supported; " +
+                        "downloading it from scratch");
+
+                validator = writeValidator(validatorFile, connection);
+                is = connection.getInputStream();
+
+                HttpDownloadProgress.Tracker tracker = mTracker;
+                if (tracker != null) {
+                    long prefix = append ? downloadFile.length() : 0;
+                    long length = connection.getContentLengthLong();
+                    tracker.begin(length >= 0 ? prefix + length : -1, prefix);
+                }
+
+                if (algorithm != null) {
+                    checksum = CryptoUtil.Checksum.create(algorithm);
+                    // Only the part downloaded by a previous run is read back
+                    if (append) {
+                        try (InputStream prefix = new FileInputStream(downloadFile)) {
+                            checksum.update(prefix);
+                        }
+                    }
+                }
+            }
+
+            if (exchange != null)
+                is = exchange.meter(is);
+
+            channel = FileChannel.open(writeFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+
+            HttpAdaptiveBuffer buffer = new HttpAdaptiveBuffer();
+            long lastCallbackLength = 0;
+            long totalLength = 0;
+            int len;
+
+            // Download and write to the local file until data is available
+            while (true) {
+                try {
+                    len = buffer.fill(is, bandwidthChunkSize());
+                } catch (IOException e) {
+                    if (!mDownloadEnabled)
+                        return false; // Download aborted
+                    throw e;
+                }
+
+                if (len <= 0)
+                    break;
+
+                if (!mDownloadEnabled)
+                    return false; // Download aborted
+
+                totalLength += len;
+
+                HttpDownloadProgress.Tracker tracker = mTracker;
+                if (tracker != null)
+                    tracker.add(len);
+
+                ByteBuffer data = buffer.buffer();
+
+                if (checksum != null)
+                    checksum.update(data.duplicate());
+
+                while (data.hasRemaining())
+                    channel.write(data);
+
+                acquireBandwidth(len);
+
+                // Notify download progression
+                if (totalLength - lastCallbackLength > bytesBetweenCallbacks &&
+                    observer != null) {
+                    lastCallbackLength = totalLength;
+                    observer.onProgress(totalLength);
+                }
+
+            }
+
+            // Not disconnected: closing the stream read to its end (below)
+            // returns the connection to the keep-alive pool
+
+            L.out("Downloaded " + totalLength + " bytes at " +
+                (long) buffer.getThroughput() + " B/s (buffer: " + buffer.size() + ")");
+
+            downloaded = !error;
+        } finally {
+            if (connection != null)
+                mConnections.remove(connection);
+
+            if (exchange != null)
+                exchange.finish(!responded);
+
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } finally {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+
+        if (downloaded) {
+            if (checksum != null) {
+                mChecksum = checksum.digestToHex();
+
+                if (mExpectedChecksum != null && !mExpectedChecksum.equalsIgnoreCase(mChecksum)) {
+                    // The data can't be trusted, not even for a resume
+                    deleteQuietly(downloadFile);
+                    deleteQuietly(validatorFile);
+                    throw new IOException("Checksum mismatch for " + urlString +
+                        ": expected " + mExpectedChecksum + ", found " + mChecksum);
+                }
+            }
+
+            deleteQuietly(validatorFile);
+            publish(downloadFile, outputFile);
+
+            if (mCache != null && algorithm == CryptoUtil.Checksum.Algorithm.SHA256) {
+                try {
+                    mCache.store(urlString, validator, mChecksum, outputFile);
+                } catch (IOException e) {
+                    L.out("Can't store the download in the cache: " + e.getMessage());
+                }
+            }
+        }
+
+        return true; // Download completed
+    }
+
+    /**
+     * Places the resource at the output path from the cache, if cached.
+     * @param url the url to download
+     * @param urlString the url to download, as string
+     * @param outputFile the output file
+     * @return whether the resource has been retrieved from the cache
+     */
+    private boolean retrieveFromCache(URL url, String urlString, File outputFile) {
+        String checksum = null;
+
+        if (mExpectedChecksum != null &&
+            mChecksumAlgorithm == CryptoUtil.Checksum.Algorithm.SHA256) {
+            checksum = mExpectedChecksum;
+        }
+        else {
+            // The validator tells whether the cached resource is still current
+            HttpURLConnection probe = null;
+            try {
+                probe = openConnection(url, "HEAD");
+                acquireRateLimit(url);
+                if (probe.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                    String validator = validatorOf(probe);
+                    if (validator != null)
+                        checksum = mCache.lookup(urlString, validator);
+                }
+            } catch (IOException e) {
+                L.out("Can't probe the resource for the cache: " + e.getMessage());
+            } finally {
+                if (probe != null) {
+                    mConnections.remove(probe);
+                    probe.disconnect();
+                }
+            }
+        }
+
+        if (!mCache.retrieve(checksum, outputFile))
+            return false;
+
+        mChecksum = checksum.toLowerCase(Locale.ROOT);
+        mServedFromCache = true;
+        return true;
+    }
+
+    /**
+     * Deletes the output file and the partial files that the downloads
+     * toward the given output path could have left.
+     * @param outputPath the output path
+     */
+    static void deletePartialFiles(String outputPath) {
+        for (String path : new String[] { outputPath, outputPath + PART_SUFFIX }) {
+            deleteQuietly(new File(path));
+            deleteQuietly(new File(path + SEGMENTS_STATE_SUFFIX));
+            deleteQuietly(new File(path + VALIDATOR_SUFFIX));
+        }
+    }
+
+    /**
+     * Whether this entity should or should not download resource.
+     * <p>
+     * If this is set to false while a download is in progress it will be
+     * aborted, closing its connections. Closing a connection waits for the
+     * read in progress on it, if any, thus this method blocks until the
+     * downloading thread receives data or its read timeout expires.
+     * @param downloadEnabled whether enable download
+     */
+    public void enableDownload(boolean downloadEnabled) {
+        mDownloadEnabled = downloadEnabled;
+
+        if (!downloadEnabled) {
+            for (HttpURLConnection connection : mConnections)
+                connection.disconnect();
+        }
+    }
+
+    /**
+     * State of a download from mirrors.
+     */
+    private static class MirrorTransfer {
+        private final List<URL> mMirrors;
+        // URL's equals() resolves the hosts, the mirrors are compared by identity
+        private final Set<URL> mFailed = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final FileChannel mChannel;
+        private final CryptoUtil.Checksum mChecksum;
+        private final DownloadObserver mObserver;
+        private final int mBytesBetweenCallbacks;
+        private long mPosition = 0;
+        private long mLength = -1;
+        private long mLastCallbackPosition = 0;
+        private int mSwitches = 0;
+        private URL mNextMirror = null;
+
+        private MirrorTransfer(List<URL> mirrors, FileChannel channel,
+                               CryptoUtil.Checksum checksum,
+                               DownloadObserver observer, int bytesBetweenCallbacks) {
+            mMirrors = mirrors;
+            mChannel = channel;
+            mChecksum = checksum;
+            mObserver = observer;
+            mBytesBetweenCallbacks = bytesBetweenCallbacks;
+        }
+
+        private boolean isCompleted() {
+            return mLength >= 0 && mPosition >= mLength;
+        }
+
+        private List<URL> candidates(URL excluded) {
+            List<URL> candidates = new ArrayList<>();
+            for (URL mirror : mMirrors)
+                if (mirror != excluded && !mFailed.contains(mirror))
+                    candidates.add(mirror);
+            return candidates;
+        }
+    }
+
+    /**
+     * Outcome of the probe of a mirror.
+     */
+    private static class MirrorProbe {
+        private final URL mMirror;
+        private final int mCode;
+        private final long mLength;
+        private final byte[] mData;
+
+        private MirrorProbe(URL mirror, int code, long length, byte[] data) {
+            mMirror = mirror;
+            mCode = code;
+            mLength = length;
+            mData = data;
+        }
+    }
+
+    /**
+     * Probes the mirrors in parallel, recording their measures into the
+     * mirror selector, and keeps the data received by the probe of the
+     * best mirror.
+     * @param transfer the download from mirrors
+     * @throws IOException if the data of the probe can't be written
+     */
+    private void probeMirrors(MirrorTransfer transfer) throws IOException {
+        List<URL> mirrors = transfer.mMirrors;
+        int probeSize = mMirrorSelector.getProbeSize();
+
+        ExecutorService executor = Executors.newFixedThreadPool(mirrors.size(), r -> {
+            Thread t = new Thread(r, "http-mirror-probe");
+            t.setDaemon(true);
+            return t;
+        });
+
+        List<Future<MirrorProbe>> futures = new ArrayList<>();
+        for (URL mirror : mirrors)
+            futures.add(executor.submit(() -> probeMirror(mirror, probeSize)));
+        executor.shutdown();
+
+        long deadline = System.nanoTime() +
+            TimeUnit.MILLISECONDS.toNanos(mMirrorSelector.getProbeTimeout());
+        List<MirrorProbe> probes = new ArrayList<>();
+
+        for (int i = 0; i < mirrors.size(); i++) {
+            URL mirror = mirrors.get(i);
+            try {
+                probes.add(futures.get(i).get(
+                    Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (ExecutionException | TimeoutException e) {
+                // The probe ends by itself because of its timeouts
+                L.out("Probe of mirror " + mirror + " failed: " +
+                    (e instanceof TimeoutException ? "timeout" : e.getCause().getMessage()));
+                mMirrorSelector.recordFailure(mirror);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while probing the mirrors");
+            }
+        }
+
+        if (probes.isEmpty())
+            return;
+
+        List<URL> answered = new ArrayList<>();
+        long length = -1;
+        for (MirrorProbe probe : probes) {
+            answered.add(probe.mMirror);
+            length = Math.max(length, probe.mLength);
+        }
+        URL best = mMirrorSelector.rank(answered, length).get(0);
+
+        for (MirrorProbe probe : probes) {
+            if (probe.mMirror == best) {
+                L.out("Downloading from mirror " + best);
+                mResponseCode = probe.mCode;
+                transfer.mLength = probe.mLength;
+
+                HttpDownloadProgress.Tracker tracker = mTracker;
+                if (tracker != null)
+                    tracker.begin(transfer.mLength, 0);
+
+                writeMirrorData(transfer, ByteBuffer.wrap(probe.mData));
+                break;
+            }
+        }
+
+        // Mirrors of a different resource can't be used
+        for (MirrorProbe probe : probes) {
+            if (probe.mLength >= 0 && transfer.mLength >= 0 && probe.mLength != transfer.mLength) {
+                L.out("Mirror " + probe.mMirror + " declares a different length (" +
+                    probe.mLength + " instead of " + transfer.mLength + ")");
+                transfer.mFailed.add(probe.mMirror);
+            }
+        }
+    }
+
+    /**
+     * Requests the first bytes of the resource to the given mirror,
+     * measuring time to first byte and throughput.
+     * @param mirror the mirror
+     * @param probeSize the amount of bytes to request
+     * @return the outcome of the probe
+     * @throws IOException if the probe fails
+     */
+    private MirrorProbe probeMirror(URL mirror, int probeSize) throws IOException {
+        HttpURLConnection connection = openConnection(mirror, "GET");
+        int timeout = mMirrorSelector.getProbeTimeout();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setRequestProperty("Range", "bytes=0-" + (probeSize - 1));
+
+        try {
+            acquireRateLimit(mirror);
+
+            long start = System.nanoTime();
+            int code = connection.getResponseCode();
+            long firstByte = System.nanoTime();
+
+            if (mRateLimiter != null)
+                mRateLimiter.onResponse(mirror.getHost(), code,
+                    connection.getHeaderField("Retry-After"));
+
+            long length;
+
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                long[] range = parseContentRange(connection);
+                if (range == null || range[0] != 0)
+                    throw new IOException("Unexpected range: " + connection.getHeaderField("Content-Range"));
+                length = range[1];
+            }
+            else if (code == HttpURLConnection.HTTP_OK)
+                length = connection.getContentLengthLong();
+            else
+                throw new IOException("Response code " + code);
+
+            byte[] data = new byte[probeSize];
+            int count = 0;
+            boolean ended = false;
+            InputStream is = connection.getInputStream();
+
+            while (count < probeSize) {
+                int len = is.read(data, count, probeSize - count);
+                if (len < 0) {
+                    ended = true;
+                    break;
+                }
+                count += len;
+            }
+
+            mMirrorSelector.recordProbe(mirror, firstByte - start, count, System.nanoTime() - start);
+
+            acquireBandwidth(count);
+
+            // The whole resource, if not larger than the probe
+            if (ended && length < 0)
+                length = count;
+
+            // Closing the stream of a body not completely read would drain it
+            if (ended || (length >= 0 && count >= length))
+                is.close();
+            else
+                connection.disconnect();
+
+            return new MirrorProbe(mirror, code, length, Arrays.copyOf(data, count));
+        } finally {
+            mConnections.remove(connection);
+        }
+    }
+
+    /**
+     * Downloads the resource from the mirrors, moving to another mirror
+     * when the current one fails or is slow.
+     * @param transfer the download from mirrors
+     * @return whether the download has been completed (false if aborted)
+     * @throws IOException if the download fails from all the mirrors
+     */
+    private boolean downloadFromMirrors(MirrorTransfer transfer) throws IOException {
+        IOException lastError = null;
+
+        while (true) {
+            if (!mDownloadEnabled)
+                return false; // Download aborted
+
+            if (transfer.isCompleted())
+                return true;
+
+            List<URL> candidates = transfer.candidates(null);
+            if (candidates.isEmpty())
+                throw new IOException("Download failed from all the mirrors", lastError);
+
+            // The mirror chosen when moving away from a slow one, if any
+            URL mirror = transfer.mNextMirror;
+            transfer.mNextMirror = null;
+            if (mirror == null || transfer.mFailed.contains(mirror))
+                mirror = mMirrorSelector.rank(candidates, transfer.mLength >= 0 ?
+                    transfer.mLength - transfer.mPosition : -1).get(0);
+
+            mStallInterrupted = false;
+
+            try {
+                if (transferFromMirror(mirror, transfer))
+                    return true;
+            } catch (IOException e) {
+                if (!mDownloadEnabled)
+                    return false; // Download aborted
+
+                L.out("Mirror " + mirror + " failed at byte " + transfer.mPosition + ": " + e.getMessage());
+                mMirrorSelector.recordFailure(mirror);
+                transfer.mFailed.add(mirror);
+                lastError = e;
+            }
+        }
+    }
+
+    /**
+     * Downloads the resource from the given mirror, starting from the
+     * current position, until it's completed or another mirror becomes
+     * more convenient.
+     * @param mirror the mirror
+     * @param transfer the download from mirrors
+     * @return whether the resource has been completed, false if the download
+     *         should move to another mirror (or has been aborted)
+     * @throws IOException if the mirror fails
+     */
+    private boolean transferFromMirror(URL mirror, MirrorTransfer transfer) throws IOException {
+        HttpURLConnection connection = openConnection(mirror, "GET");
+        if (transfer.mPosition > 0)
+            connection.setRequestProperty("Range", "bytes=" + transfer.mPosition + "-");
+
+        // The speed is checked when data arrives: a mirror that stops
+        // sending data fails by timeout if there are other mirrors
+        if (!transfer.candidates(mirror).isEmpty()) {
+            int readTimeout = connection.getReadTimeout();
+            connection.setReadTimeout(readTimeout > 0 ?
+                Math.min(readTimeout, MIRROR_READ_TIMEOUT) : MIRROR_READ_TIMEOUT);
+        }
+
+        InputStream is = null;
+
+        try {
+            acquireRateLimit(mirror);
+
+            long start = System.nanoTime();
+            int code = connection.getResponseCode();
+            mMirrorSelector.recordTimeToFirstByte(mirror, System.nanoTime() - start);
+            mResponseCode = code;
+
+            if (mRateLimiter != null)
+                mRateLimiter.onResponse(mirror.getHost(), code,
+                    connection.getHeaderField("Retry-After"));
+
+            long length;
+            long skip = 0;
+
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                long[] range = parseContentRange(connection);
+                if (range == null || range[0] != transfer.mPosition)
+                    throw new IOException("Unexpected range: " + connection.getHeaderField("Content-Range"));
+                length = range[1];
+            }
+            else if (code == HttpURLConnection.HTTP_OK) {
+                // Ranges not supported, the downloaded bytes are skipped
+                skip = transfer.mPosition;
+                length = connection.getContentLengthLong();
+            }
+            else
+                throw new IOException("Response code " + code);
+
+            if (length >= 0 && transfer.mLength >= 0 && length != transfer.mLength)
+                throw new IOException("Different length (" + length + " instead of " + transfer.mLength + ")");
+            if (transfer.mLength < 0)
+                transfer.mLength = length;
+
+            L.out("Downloading from mirror " + mirror + " from byte " + transfer.mPosition);
+
+            HttpDownloadProgress.Tracker tracker = mTracker;
+            if (tracker != null)
+                tracker.begin(transfer.mLength, transfer.mPosition);
+
+            is = connection.getInputStream();
+
+            HttpAdaptiveBuffer buffer = new HttpAdaptiveBuffer();
+            long transferStart = System.nanoTime();
+            long transferred = 0;
+            long waitNanos = 0;
+            long windowStart = transferStart;
+            long windowBytes = 0;
+            long windowWaitNanos = 0;
+            int len;
+
+            while ((len = buffer.fill(is, bandwidthChunkSize())) > 0) {
+                if (!mDownloadEnabled)
+                    return false; // Download aborted
+
+                ByteBuffer data = buffer.buffer();
+
+                if (skip > 0) {
+                    int skipped = (int) Math.min(skip, data.remaining());
+                    ((Buffer) data).position(data.position() + skipped);
+                    skip -= skipped;
+                }
+
+                int written = data.remaining();
+                writeMirrorData(transfer, data);
+                transferred += written;
+                windowBytes += written;
+
+                long waited = TimeUnit.MILLISECONDS.toNanos(acquireBandwidth(len));
+                waitNanos += waited;
+                windowWaitNanos += waited;
+
+                // Time waited for the bandwidth limiter is not the mirror's fault
+                long now = System.nanoTime();
+                if (now - windowStart >= MIRROR_CHECK_INTERVAL_NANOS) {
+                    long windowNanos = now - windowStart - windowWaitNanos;
+                    if (now - transferStart >= MIRROR_SWITCH_WARMUP_NANOS &&
+                        shouldSwitchMirror(mirror, transfer, windowBytes, windowNanos)) {
+                        mMirrorSelector.recordThroughput(mirror, windowBytes, windowNanos);
+                        transfer.mSwitches++;
+                        return false;
+                    }
+                    windowStart = now;
+                    windowBytes = 0;
+                    windowWaitNanos = 0;
+                }
+            }
+
+            mMirrorSelector.recordThroughput(mirror, transferred,
+                System.nanoTime() - transferStart - waitNanos);
+
+            if (transfer.mLength >= 0 && transfer.mPosition < transfer.mLength)
+                throw new IOException("Response ended at byte " + transfer.mPosition);
+
+            // The end of the body is the end of the resource if the length is unknown
+            return true;
+        } finally {
+            mConnections.remove(connection);
+            if (is != null && !transfer.isCompleted())
+                connection.disconnect();
+            else if (is != null)
+                is.close();
+        }
+    }
+
+    /**
+     * Returns whether the download should move from the given mirror to
+     * another one, that is expected to be much faster.
+     * @param mirror the current mirror
+     * @param transfer the download from mirrors
+     * @param bytes the bytes received from the mirror in the last window
+     * @param nanos the duration of the last window
+     * @return whether the download should move to another mirror
+     */
+    private boolean shouldSwitchMirror(URL mirror, MirrorTransfer transfer, long bytes, long nanos) {
+        if (transfer.mLength < 0 || transfer.mSwitches >= MAX_MIRROR_SWITCHES || nanos <= 0)
+            return false;
+
+        List<URL> alternatives = transfer.candidates(mirror);
+        if (alternatives.isEmpty())
+            return false;
+
+        long remaining = transfer.mLength - transfer.mPosition;
+        URL best = mMirrorSelector.rank(alternatives, remaining).get(0);
+
+        double currentNanos = bytes > 0 ? remaining * (double) nanos / bytes : Double.POSITIVE_INFINITY;
+        double bestNanos = mMirrorSelector.estimateNanos(best, remaining);
+
+        if (bestNanos * MIRROR_SWITCH_RATIO >= currentNanos ||
+            currentNanos - bestNanos < MIRROR_SWITCH_MIN_GAIN_NANOS)
+            return false;
+
+        L.out(String.format(Locale.ROOT, "Mirror %s is slow (%.0f B/s), moving to %s",
+            mirror, bytes * 1e9 / nanos, best));
+        transfer.mNextMirror = best;
+        return true;
+    }
+
+    /**
+     * Writes data of the resource downloaded from mirrors, at the current position.
+     * @param transfer the download from mirrors
+     * @param data the data
+     * @throws IOException if the data can't be written
+     */
+    private void writeMirrorData(MirrorTransfer transfer, ByteBuffer data) throws IOException {
+        int len = data.remaining();
+        if (len == 0)
+            return;
+
+        if (transfer.mChecksum != null)
+            transfer.mChecksum.update(data.duplicate());
+
+        while (data.hasRemaining())
+            transfer.mChannel.write(data);
+
+        transfer.mPosition += len;
+
+        HttpDownloadProgress.Tracker tracker = mTracker;
+        if (tracker != null)
+            tracker.add(len);
+
+        if (transfer.mObserver != null &&
+            transfer.mPosition - transfer.mLastCallbackPosition > transfer.mBytesBetweenCallbacks) {
+            transfer.mLastCallbackPosition = transfer.mPosition;
+            transfer.mObserver.onProgress(transfer.mPosition);
+        }
+    }
+
+    /**
+     * Parses the 'Content-Range' header of a partial response.
+     * @param connection the connection
+     * @return the first byte and the total length (-1 if unknown) of the
+     *         range, or null if missing or malformed
+     */
+    private static long[] parseContentRange(HttpURLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes "))
+            return null;
+
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash < 0 || slash < dash)
+            return null;
+
+        try {
+            long first = Long.parseLong(contentRange.substring(6, dash).trim());
+            String total = contentRange.substring(slash + 1).trim();
+            return new long[] { first, total.equals("*") ? -1 : Long.parseLong(total) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Range of the resource downloaded by a segmented download.
+     */
+    private static class Segment {
+        private final long mStart;
+        private final long mEnd; // Inclusive
+        private volatile long mPosition;
+
+        private Segment(long start, long end, long position) {
+            mStart = start;
+            mEnd = end;
+            mPosition = position;
+        }
+
+        private boolean isCompleted() {
+            return mPosition > mEnd;
+        }
+    }
+
+    /**
+     * Downloads the resource split in segments, if possible.
+     * @param url the url to download
+     * @param outputPath the output path
+     * @param observer an optional observer of the progress
+     * @param bytesBetweenCallbacks the amount of bytes between each callback
+     * @param resume whether resume an existing partial download
+     * @return whether the download has been completed (false if aborted),
+     *         or null if the resource can't be downloaded in segments
+     * @throws IOException if the download fails
+     */
+    private Boolean downloadSegmented(URL url,
+                                      String outputPath,
+                                      DownloadObserver observer,
+                                      int bytesBetweenCallbacks,
+                                      boolean resume) throws IOException {
+        // Probe the length and the range support
+        HttpURLConnection probe = openConnection(url, "HEAD");
+        long length;
+        String validator;
+
+        try {
+            acquireRateLimit(url);
+
+            int code;
+            try {
+                code = probe.getResponseCode();
+            } catch (IOException e) {
+                if (!mDownloadEnabled)
+                    return false; // Download aborted
+                throw e;
+            }
+
+            length = probe.getContentLengthLong();
+            String acceptRanges = probe.getHeaderField("Accept-Ranges");
+            validator = validatorOf(probe);
+
+            if (code != HttpURLConnection.HTTP_OK || length < 2 * mMinSegmentSize ||
+                !"bytes".equalsIgnoreCase(acceptRanges)) {
+                L.out("Can't download in segments (code: " + code + ", length: " + length +
+                    ", ranges: " + acceptRanges + "), using a single connection");
+                return null;
+            }
+        } finally {
+            mConnections.remove(probe);
+            probe.disconnect();
+        }
+
+        File outputFile = new File(outputPath);
+        File stateFile = new File(outputPath + SEGMENTS_STATE_SUFFIX);
+
+        List<Segment> segments = resume && FileUtil.exists(outputFile) ?
+            loadSegments(stateFile, length, validator) : null;
+
+        if (segments == null) {
+            // A partial file left by a single connection download is
+            // resumed as a downloaded prefix, if still the same resource
+            File validatorFile = new File(outputPath + VALIDATOR_SUFFIX);
+            long existing = resume && outputFile.length() < length &&
+                validator != null && validator.equals(readValidator(validatorFile)) ?
+                outputFile.length() : 0;
+            deleteQuietly(validatorFile);
+
+            int count = (int) Math.min(mSegments, length / mMinSegmentSize);
+            long size = length / count;
+            segments = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                long start = i * size;
+                long end = i == count - 1 ? length - 1 : start + size - 1;
+                segments.add(new Segment(start, end, Math.min(end + 1, Math.max(start, existing))));
+            }
+            L.out("Downloading " + length + " bytes in " + count + " segments");
+        }
+        else {
+            L.out("Resuming download of " + length + " bytes in " + segments.size() + " segments");
+        }
+
+        AtomicLong downloaded = new AtomicLong(0);
+        for (Segment segment : segments)
+            downloaded.addAndGet(segment.mPosition - segment.mStart);
+
+        HttpDownloadProgress.Tracker tracker = mTracker;
+        if (tracker != null)
+            tracker.begin(length, downloaded.get());
+
+        AtomicLong lastCallback = new AtomicLong(downloaded.get());
+        Consumer<Integer> onProgress = len -> {
+            if (tracker != null)
+                tracker.add(len);
+
+            long total = downloaded.addAndGet(len);
+            long last = lastCallback.get();
+            if (observer != null && total - last > bytesBetweenCallbacks &&
+                lastCallback.compareAndSet(last, total)) {
+                synchronized (observer) {
+                    observer.onProgress(total);
+                }
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(segments.size(), r -> {
+            Thread t = new Thread(r, "http-download-segment");
+            t.setDaemon(true);
+            return t;
+        });
+
+        AtomicBoolean failed = new AtomicBoolean(false);
+
+        try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw")) {
+            // Preallocate, so that each segment can be written at its offset
+            raf.setLength(length);
+            FileChannel channel = raf.getChannel();
+
+            List<Future<?>> tasks = new ArrayList<>();
+
+            for (Segment segment : segments) {
+                if (!segment.isCompleted())
+                    tasks.add(executor.submit(() -> {
+                        try {
+                            downloadSegment(url, validator, channel, segment, onProgress, failed);
+                        } catch (IOException | RuntimeException e) {
+                            // Abort the other segments too
+                            if (failed.compareAndSet(false, true)) {
+                                for (HttpURLConnection connection : mConnections)
+                                    connection.disconnect();
+                            }
+                            throw e;
+                        }
+                        return null;
+                    }));
+            }
+
+            IOException failure = null;
+
+            for (Future<?> task : tasks) {
+                while (failure == null) {
+                    try {
+                        task.get(SEGMENTS_STATE_SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        channel.force(false);
+                        saveSegments(stateFile, length, validator, segments);
+                    } catch (ExecutionException e) {
+                        if (failure == null && e.getCause() instanceof IOException)
+                            failure = (IOException) e.getCause();
+                        else if (failure == null)
+                            failure = new IOException("Segment download failed", e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        failure = new InterruptedIOException("Interrupted while downloading");
+                        failed.set(true);
+                        for (HttpURLConnection connection : mConnections)
+                            connection.disconnect();
+                    }
+                }
+            }
+
+            // Wait for the segments still running before saving the state
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            boolean completed = true;
+            for (Segment segment : segments)
+                completed &= segment.isCompleted();
+
+            if (completed) {
+                mResponseCode = HttpURLConnection.HTTP_OK;
+                channel.force(false);
+                if (stateFile.exists() && !stateFile.delete())
+                    L.out("Can't delete segments state file: " + stateFile);
+                return true;
+            }
+
+            channel.force(false);
+            saveSegments(stateFile, length, validator, segments);
+
+            if (!mDownloadEnabled)
+                return false; // Download aborted
+
+            throw failure != null ? failure : new IOException("Segmented download not completed");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Downloads the remaining part of the given segment.
+     * @param url the url to download
+     * @param validator the validator of the resource for 'If-Range', if any
+     * @param channel the channel of the output file
+     * @param segment the segment
+     * @param onProgress notified with the amount of each chunk downloaded
+     * @param failed set if another segment failed
+     * @throws IOException if the download of the segment fails
+     */
+    private void downloadSegment(URL url,
+                                 String validator,
+                                 FileChannel channel,
+                                 Segment segment,
+                                 Consumer<Integer> onProgress,
+                                 AtomicBoolean failed) throws IOException {
+        HttpURLConnection connection = openConnection(url, "GET");
+        connection.setRequestProperty("Range", "bytes=" + segment.mPosition + "-" + segment.mEnd);
+        // A resource changed meanwhile is answered with 200 and fails the segment
+        if (validator != null)
+            connection.setRequestProperty("If-Range", validator);
+
+        HttpMetrics.Exchange exchange = null;
+        boolean responded = false;
+
+        try {
+            acquireRateLimit(url);
+
+            if (mMetrics != null) {
+                exchange = mMetrics.begin(url.getHost());
+                exchange.resolved(mDnsNanos.getAndSet(-1));
+                exchange.connecting(connection);
+            }
+
+            connection.connect();
+
+            if (exchange != null)
+                exchange.connected();
+
+            int code = connection.getResponseCode();
+            responded = true;
+
+            if (exchange != null)
+                exchange.headers(code);
+
+            if (mRateLimiter != null)
+                mRateLimiter.onResponse(url.getHost(), code,
+                    connection.getHeaderField("Retry-After"));
+
+            if (code != HttpURLConnection.HTTP_PARTIAL)
+                throw new IOException("Range request of segment not honored (" + code + ")");
+
+            try (InputStream is = exchange != null ?
+                    exchange.meter(connection.getInputStream()) :
+                    connection.getInputStream()) {
+                HttpAdaptiveBuffer buffer = new HttpAdaptiveBuffer();
+                int len;
+
+                while (segment.mPosition <= segment.mEnd &&
+                       mDownloadEnabled && !failed.get() &&
+                       (len = buffer.fill(is, Math.min(segment.mEnd - segment.mPosition + 1,
+                           bandwidthChunkSize()))) > 0) {
+                    ByteBuffer data = buffer.buffer();
+
+                    // Positional writes, the segments share the channel
+                    long position = segment.mPosition;
+                    while (data.hasRemaining())
+                        position += channel.write(data, position);
+
+                    segment.mPosition = position;
+                    onProgress.accept(len);
+
+                    acquireBandwidth(len);
+                }
+            }
+        } catch (IOException e) {
+            if (!mDownloadEnabled || failed.get())
+                return; // Aborted, the progress is saved anyway
+            throw e;
+        } finally {
+            mConnections.remove(connection);
+
+            if (exchange != null)
+                exchange.finish(!responded);
+        }
+
+        if (!segment.isCompleted() && mDownloadEnabled && !failed.get())
+            throw new EOFException("Segment " + segment.mStart + "-" + segment.mEnd +
+                " ended at " + segment.mPosition);
+    }
+
+    /**
+     * Loads the state of a previously interrupted segmented download.
+     * @param stateFile the state file
+     * @param length the expected length of the resource
+     * @param validator the current validator of the resource, if any
+     * @return the segments, or null if there is no valid state
+     */
+    private static List<Segment> loadSegments(File stateFile, long length, String validator) {
+        if (!FileUtil.exists(stateFile))
+            return null;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(stateFile), StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            String[] fields = header != null ? header.split("\t", 2) : null;
+            if (fields == null || Long.parseLong(fields[0].trim()) != length ||
+                (validator != null && (fields.length < 2 || !validator.equals(fields[1])))) {
+                L.out("The resource has changed, restarting the segmented download");
+                return null;
+            }
+
+            List<Segment> segments = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                String[] parts = line.trim().split(" ");
+                segments.add(new Segment(
+                    Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+            }
+
+            return segments.isEmpty() ? null : segments;
+        } catch (IOException | RuntimeException e) {
+            L.out("Invalid segments state file, restarting the segmented download");
+            return null;
+        }
+    }
+
+    /**
+     * Saves the state of a segmented download, as the length and the
+     * validator of the resource followed by a line for each segment with
+     * start, end and current position.
+     * @param stateFile the state file
+     * @param length the length of the resource
+     * @param validator the validator of the resource, if any
+     * @param segments the segments
+     * @throws IOException if the state can't be written
+     */
+    private static void saveSegments(File stateFile, long length, String validator,
+                                     List<Segment> segments) throws IOException {
+        StringBuilder sb = new StringBuilder().append(length);
+        if (validator != null)
+            sb.append('\t').append(validator);
+        sb.append('\n');
+        for (Segment segment : segments)
+            sb.append(segment.mStart).append(' ')
+              .append(segment.mEnd).append(' ')
+              .append(segment.mPosition).append('\n');
+
+        // Write then rename, so that a crash never leaves a partial state
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try (OutputStream os = new FileOutputStream(tmp)) {
+            os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (!tmp.renameTo(stateFile)) {
+            stateFile.delete();
+            if (!tmp.renameTo(stateFile))
+                throw new IOException("Can't write segments state file: " + stateFile);
+        }
+    }
+
+    /**
+     * Returns the validator of the resource of the given response, usable
+     * for 'If-Range': the entity tag if strong, otherwise the last
+     * modification date.
+     * @param connection the connection
+     * @return the validator, or null if the response has none
+     */
+    private static String validatorOf(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/"))
+            return etag;
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Reads the validator of a partially downloaded resource.
+     * @param validatorFile the file of the validator
+     * @return the validator, or null if unknown
+     */
+    private static String readValidator(File validatorFile) {
+        if (!FileUtil.exists(validatorFile))
+            return null;
+        try {
+            String validator = new String(
+                Files.readAllBytes(validatorFile.toPath()), StandardCharsets.UTF_8).trim();
+            return validator.isEmpty() ? null : validator;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores the validator of the resource being downloaded, so that a
+     * later resume can tell whether the resource has changed.
+     * @param validatorFile the file of the validator
+     * @param connection the connection of the download
+     * @return the validator, or null if the response has none
+     * @throws IOException if the validator can't be written
+     */
+    private static String writeValidator(File validatorFile, HttpURLConnection connection)
+            throws IOException {
+        String validator = validatorOf(connection);
+        if (validator == null)
+            deleteQuietly(validatorFile);
+        else
+            Files.write(validatorFile.toPath(), validator.getBytes(StandardCharsets.UTF_8));
+        return validator;
+    }
+
+    /**
+     * Moves the downloaded file to the output path, atomically if the file
+     * system allows it.
+     * @param downloadFile the downloaded file
+     * @param outputFile the output file
+     * @throws IOException if the file can't be moved
+     */
+    private static void publish(File downloadFile, File outputFile) throws IOException {
+        if (downloadFile.equals(outputFile))
+            return;
+
+        try {
+            Files.move(downloadFile.toPath(), outputFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(downloadFile.toPath(), outputFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        L.out("Published " + outputFile);
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file.exists() && !file.delete())
+            L.out("Can't delete file: " + file);
+    }
+
+    /**
+     * Opens a connection initialized with the settings of this downloader.
+     * @param url the url
+     * @param method the request method
+     * @return the connection
+     * @throws IOException if the connection can't be opened
+     */
+    private HttpURLConnection openConnection(URL url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty("User-Agent", mUserAgent);
+        connection.setRequestMethod(method);
+
+        int readTimeout = mReadTimeout;
+
+        // A disconnect doesn't release a thread blocked in a read of the
+        // body, thus stalled reads are ended by the read timeout
+        if (mStallTimeout > 0 && mStallAction != StallAction.REPORT)
+            readTimeout = (int) Math.min(readTimeout > 0 ? readTimeout : Integer.MAX_VALUE, mStallTimeout);
+
+        if (mConnectionTimeout > 0)
+            connection.setConnectTimeout(mConnectionTimeout);
+        if (readTimeout > 0)
+            connection.setReadTimeout(readTimeout);
+
+        // Performs additional initializations
+        if (mConnectionInitializer != null)
+            mConnectionInitializer.accept(connection);
+
+        mConnections.add(connection);
+
+        return connection;
+    }
+
+    /**
+     * Returns the maximum amount of bytes that should be read before
+     * calling {@link #acquireBandwidth(long)}.
+     * @return the chunk size, unbounded if the bandwidth is not limited
+     */
+    private long bandwidthChunkSize() {
+        long chunkSize = Long.MAX_VALUE;
+
+        HttpBandwidthLimiter limiter = mDownloadBandwidthLimiter;
+        if (limiter != null && limiter.isLimited())
+            chunkSize = limiter.getChunkSize();
+        if (mBandwidthLimiter != null && mBandwidthLimiter.isLimited())
+            chunkSize = Math.min(chunkSize, mBandwidthLimiter.getChunkSize());
+
+        return chunkSize;
+    }
+
+    /**
+     * Pays the given amount of bytes to the bandwidth limiters, waiting
+     * until they allow them.
+     * <p>
+     * The limiters refill while waiting for each other, thus the wait is
+     * the one of the most restrictive limiter.
+     * @param bytes the bytes read
+     * @return the time waited in millis
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private long acquireBandwidth(long bytes) throws InterruptedIOException {
+        long waited = 0;
+
+        HttpBandwidthLimiter limiter = mDownloadBandwidthLimiter;
+        if (limiter != null)
+            waited += limiter.acquire(bytes);
+        if (mBandwidthLimiter != null)
+            waited += mBandwidthLimiter.acquire(bytes);
+
+        return waited;
+    }
+
+    /**
+     * Waits for the permit of the rate limiter, if any.
+     * @param url the url about to be requested
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private void acquireRateLimit(URL url) throws InterruptedIOException {
+        if (mRateLimiter == null)
+            return;
+
+        try {
+            mRateLimitWait.addAndGet(mRateLimiter.acquire(url.getHost()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limiter");
+        }
     }
 }
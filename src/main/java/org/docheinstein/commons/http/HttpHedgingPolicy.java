@@ -0,0 +1,128 @@
+package org.docheinstein.commons.http;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Policy that decides after how long a duplicate of a slow
+ * {@link HttpRequester} request should be sent.
+ * <p>
+ * The hedging delay is the configured percentile of the latencies
+ * recently observed by this policy; until enough latencies have been
+ * observed, a fixed initial delay is used.
+ * <p>
+ * Only idempotent requests are hedged.
+ */
+public class HttpHedgingPolicy {
+
+    private static final double DEFAULT_PERCENTILE = 95;
+    private static final long DEFAULT_INITIAL_DELAY = 100;
+    private static final long DEFAULT_MIN_DELAY = 5;
+    private static final int DEFAULT_WINDOW_SIZE = 512;
+    private static final int MIN_SAMPLES = 20;
+
+    /** Executor used for run the concurrent attempts of hedged requests. */
+    static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "http-hedging");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private double mPercentile = DEFAULT_PERCENTILE;
+    private long mInitialDelay = DEFAULT_INITIAL_DELAY;
+    private long mMinDelay = DEFAULT_MIN_DELAY;
+
+    private final long[] mLatencies;
+    private int mLatenciesCount = 0;
+    private int mNextLatency = 0;
+
+    /**
+     * Creates a hedging policy with the default parameters
+     * (hedges after the 95th percentile latency).
+     * @return a hedging policy
+     */
+    public static HttpHedgingPolicy create() {
+        return new HttpHedgingPolicy(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Creates a hedging policy that hedges after the given latency percentile.
+     * @param percentile the latency percentile, between 0 and 100
+     * @return a hedging policy
+     */
+    public static HttpHedgingPolicy create(double percentile) {
+        return create().percentile(percentile);
+    }
+
+    private HttpHedgingPolicy(int windowSize) {
+        mLatencies = new long[windowSize];
+    }
+
+    /**
+     * Sets the latency percentile after which the duplicate request is sent.
+     * @param percentile the latency percentile, between 0 and 100
+     * @return this policy
+     */
+    public HttpHedgingPolicy percentile(double percentile) {
+        mPercentile = Math.min(100, Math.max(0, percentile));
+        return this;
+    }
+
+    /**
+     * Sets the hedging delay used until enough latencies have been observed.
+     * @param millis the initial delay
+     * @return this policy
+     */
+    public HttpHedgingPolicy initialDelay(long millis) {
+        mInitialDelay = Math.max(0, millis);
+        return this;
+    }
+
+    /**
+     * Sets the minimum hedging delay, regardless of the observed latencies.
+     * @param millis the minimum delay
+     * @return this policy
+     */
+    public HttpHedgingPolicy minDelay(long millis) {
+        mMinDelay = Math.max(0, millis);
+        return this;
+    }
+
+    /**
+     * Returns whether requests with the given method can be hedged.
+     * @param method the request method
+     * @return whether the method can be hedged
+     */
+    public boolean isApplicable(HttpRequester.RequestMethod method) {
+        return HttpRetryPolicy.isIdempotent(method);
+    }
+
+    /**
+     * Records the latency of a completed request.
+     * @param millis the latency in millis
+     */
+    public synchronized void record(long millis) {
+        mLatencies[mNextLatency] = millis;
+        mNextLatency = (mNextLatency + 1) % mLatencies.length;
+        mLatenciesCount = Math.min(mLatenciesCount + 1, mLatencies.length);
+    }
+
+    /**
+     * Returns the delay after which a duplicate request should be sent.
+     * @return the hedging delay in millis
+     */
+    public long hedgeDelayMillis() {
+        long[] latencies;
+
+        synchronized (this) {
+            if (mLatenciesCount < MIN_SAMPLES)
+                return Math.max(mMinDelay, mInitialDelay);
+            latencies = Arrays.copyOf(mLatencies, mLatenciesCount);
+        }
+
+        Arrays.sort(latencies);
+        int index = (int) Math.ceil(mPercentile / 100 * latencies.length) - 1;
+        return Math.max(mMinDelay, latencies[Math.max(0, index)]);
+    }
+}
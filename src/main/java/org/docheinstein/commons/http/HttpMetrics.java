@@ -0,0 +1,745 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Client side metrics of the HTTP requests, aggregated per host.
+ * <p>
+ * For each host are collected:
+ * <ul>
+ *     <li>Latency histograms of each {@link Phase} of the requests.</li>
+ *     <li>Counters of the obtained response codes and of the failures.</li>
+ *     <li>Counters of the body bytes sent and received.</li>
+ *     <li>Counters of the new and reused connections.</li>
+ * </ul>
+ * The metrics are pulled via {@link #snapshot()} or exported in the
+ * Prometheus text format via {@link #export()}.
+ * <p>
+ * The time spent in the TLS handshake and the connection reuse can be
+ * observed only for 'https' connections, which are opened through an
+ * instrumented {@link SSLSocketFactory}; since the keep-alive pool is
+ * partitioned by socket factory, instrumented connections don't reuse
+ * the non instrumented ones (and vice versa).
+ * For 'http' connections the connection phase is recorded for each
+ * request, reused connections included.
+ * <p>
+ * The same metrics should be shared between the requesters and the
+ * downloaders, via {@link HttpRequester#metrics(HttpMetrics)} and
+ * {@link HttpDownloader#metrics(HttpMetrics)}.
+ */
+public class HttpMetrics {
+
+    private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_METRICS}");
+
+    /** Upper bounds of the histogram buckets, in millis. */
+    private static final long[] BUCKET_BOUNDS = {
+        1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000
+    };
+
+    /** Exchange being connected by the current thread, seen by the socket factory. */
+    private static final ThreadLocal<Exchange> CONNECTING = new ThreadLocal<>();
+
+    private static final Map<SSLSocketFactory, MeteredSSLSocketFactory> FACTORIES =
+        Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Phases of a request.
+     */
+    public enum Phase {
+        /** Resolution of the host name. */
+        DNS("dns"),
+        /** Establishment of the TCP connection (for new connections only). */
+        CONNECT("connect"),
+        /** TLS handshake (for new 'https' connections only). */
+        TLS("tls"),
+        /** From the request sent (body included) to the response headers received. */
+        FIRST_BYTE("first_byte"),
+        /** Read of the response body. */
+        BODY("body"),
+        /** The whole request. */
+        TOTAL("total");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Map<String, HostMetrics> mHosts = new ConcurrentHashMap<>();
+
+    /**
+     * Snapshot of a latency histogram.
+     */
+    public static class Histogram {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSumNanos;
+        private final long mMaxNanos;
+
+        private Histogram(long[] counts, long sumNanos, long maxNanos) {
+            mCounts = counts;
+            mSumNanos = sumNanos;
+            mMaxNanos = maxNanos;
+            long count = 0;
+            for (long c : counts)
+                count += c;
+            mCount = count;
+        }
+
+        /**
+         * Returns the upper bounds of the buckets, in millis; the last bucket
+         * of {@link #getCounts()} has no upper bound.
+         * @return the bucket bounds
+         */
+        public long[] getBounds() {
+            return BUCKET_BOUNDS.clone();
+        }
+
+        /**
+         * Returns the amount of samples of each bucket (not cumulative).
+         * @return the bucket counts
+         */
+        public long[] getCounts() {
+            return mCounts.clone();
+        }
+
+        /**
+         * Returns the total amount of samples.
+         * @return the amount of samples
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the sum of the samples.
+         * @return the sum in millis
+         */
+        public double getSumMillis() {
+            return mSumNanos / 1e6;
+        }
+
+        /**
+         * Returns the average of the samples.
+         * @return the average in millis, or 0 if there are no samples
+         */
+        public double getAverageMillis() {
+            return mCount > 0 ? getSumMillis() / mCount : 0;
+        }
+
+        /**
+         * Returns the greatest sample.
+         * @return the maximum in millis
+         */
+        public double getMaxMillis() {
+            return mMaxNanos / 1e6;
+        }
+
+        /**
+         * Estimates the given percentile as the upper bound of the bucket
+         * it falls in (or the maximum for the last bucket).
+         * @param percentile the percentile, between 0 and 100
+         * @return the estimated percentile in millis, or 0 if there are no samples
+         */
+        public double getPercentileMillis(double percentile) {
+            if (mCount == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(mCount * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min(BUCKET_BOUNDS[i], getMaxMillis());
+            }
+
+            return getMaxMillis();
+        }
+    }
+
+    /**
+     * Snapshot of the metrics of a host.
+     */
+    public static class HostSnapshot {
+        private final String mHost;
+        private final Map<Phase, Histogram> mHistograms = new EnumMap<>(Phase.class);
+        private final Map<Integer, Long> mStatusCodes = new TreeMap<>();
+        private long mRequests;
+        private long mFailures;
+        private long mBytesIn;
+        private long mBytesOut;
+        private long mNewConnections;
+        private long mReusedConnections;
+
+        private HostSnapshot(String host) {
+            mHost = host;
+        }
+
+        /**
+         * Returns the host.
+         * @return the host
+         */
+        public String getHost() {
+            return mHost;
+        }
+
+        /**
+         * Returns the latency histogram of the given phase.
+         * @param phase the phase
+         * @return the histogram
+         */
+        public Histogram getHistogram(Phase phase) {
+            return mHistograms.get(phase);
+        }
+
+        /**
+         * Returns the amount of responses obtained for each response code.
+         * @return the response counts by code
+         */
+        public Map<Integer, Long> getStatusCodes() {
+            return Collections.unmodifiableMap(mStatusCodes);
+        }
+
+        /**
+         * Returns the amount of requests, failed ones included.
+         * @return the amount of requests
+         */
+        public long getRequests() {
+            return mRequests;
+        }
+
+        /**
+         * Returns the amount of requests that failed without a response.
+         * @return the amount of failures
+         */
+        public long getFailures() {
+            return mFailures;
+        }
+
+        /**
+         * Returns the amount of body bytes received.
+         * @return the received bytes
+         */
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        /**
+         * Returns the amount of body bytes sent.
+         * @return the sent bytes
+         */
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        /**
+         * Returns the amount of new connections opened ('https' only).
+         * @return the new connections
+         */
+        public long getNewConnections() {
+            return mNewConnections;
+        }
+
+        /**
+         * Returns the amount of requests that reused a pooled connection ('https' only).
+         * @return the reused connections
+         */
+        public long getReusedConnections() {
+            return mReusedConnections;
+        }
+
+        /**
+         * Returns the fraction of requests that reused a pooled connection ('https' only).
+         * @return the reuse ratio, between 0 and 1
+         */
+        public double getReuseRatio() {
+            long total = mNewConnections + mReusedConnections;
+            return total > 0 ? (double) mReusedConnections / total : 0;
+        }
+    }
+
+    /**
+     * Creates an empty metrics collector.
+     * @return a metrics collector
+     */
+    public static HttpMetrics create() {
+        return new HttpMetrics();
+    }
+
+    /**
+     * Returns the hosts that have metrics.
+     * @return the hosts
+     */
+    public Set<String> getHosts() {
+        return Collections.unmodifiableSet(new TreeSet<>(mHosts.keySet()));
+    }
+
+    /**
+     * Returns a snapshot of the metrics of the given host.
+     * @param host the host
+     * @return the snapshot, or null if there are no metrics for the host
+     */
+    public HostSnapshot snapshot(String host) {
+        String key = normalizeHost(host);
+        HostMetrics metrics = mHosts.get(key);
+        return metrics != null ? metrics.snapshot(key) : null;
+    }
+
+    /**
+     * Returns a snapshot of the metrics of every host.
+     * @return the snapshots by host
+     */
+    public Map<String, HostSnapshot> snapshot() {
+        Map<String, HostSnapshot> snapshots = new TreeMap<>();
+        mHosts.forEach((host, metrics) -> snapshots.put(host, metrics.snapshot(host)));
+        return snapshots;
+    }
+
+    /**
+     * Discards every collected metric.
+     */
+    public void reset() {
+        mHosts.clear();
+    }
+
+    /**
+     * Exports the metrics in the Prometheus text exposition format.
+     * @return the metrics as text
+     */
+    public String export() {
+        Map<String, HostSnapshot> snapshots = snapshot();
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("# TYPE http_client_phase_seconds histogram\n");
+        snapshots.forEach((host, s) -> {
+            for (Phase phase : Phase.values()) {
+                Histogram h = s.getHistogram(phase);
+                String labels = "host=\"" + escape(host) + "\",phase=\"" + phase.label + "\"";
+                long cumulative = 0;
+                for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                    cumulative += h.mCounts[i];
+                    sb.append("http_client_phase_seconds_bucket{").append(labels)
+                      .append(",le=\"").append(BUCKET_BOUNDS[i] / 1000.0).append("\"} ")
+                      .append(cumulative).append('\n');
+                }
+                sb.append("http_client_phase_seconds_bucket{").append(labels)
+                  .append(",le=\"+Inf\"} ").append(h.mCount).append('\n');
+                sb.append("http_client_phase_seconds_sum{").append(labels).append("} ")
+                  .append(h.mSumNanos / 1e9).append('\n');
+                sb.append("http_client_phase_seconds_count{").append(labels).append("} ")
+                  .append(h.mCount).append('\n');
+            }
+        });
+
+        sb.append("# TYPE http_client_responses_total counter\n");
+        snapshots.forEach((host, s) ->
+            s.mStatusCodes.forEach((code, count) ->
+                sb.append("http_client_responses_total{host=\"").append(escape(host))
+                  .append("\",code=\"").append(code).append("\"} ").append(count).append('\n')));
+
+        appendCounter(sb, snapshots, "http_client_requests_total", s -> s.mRequests);
+        appendCounter(sb, snapshots, "http_client_failures_total", s -> s.mFailures);
+        appendCounter(sb, snapshots, "http_client_received_bytes_total", s -> s.mBytesIn);
+        appendCounter(sb, snapshots, "http_client_sent_bytes_total", s -> s.mBytesOut);
+        appendCounter(sb, snapshots, "http_client_new_connections_total", s -> s.mNewConnections);
+        appendCounter(sb, snapshots, "http_client_reused_connections_total", s -> s.mReusedConnections);
+
+        return sb.toString();
+    }
+
+    /**
+     * Starts tracking a request toward the given host.
+     * @param host the host
+     * @return the tracker of the request
+     */
+    Exchange begin(String host) {
+        return new Exchange(mHosts.computeIfAbsent(normalizeHost(host), h -> {
+            L.out("Creating metrics for host " + h);
+            return new HostMetrics();
+        }));
+    }
+
+    /**
+     * Resolves the given host, returning the time spent, which is then
+     * recorded via {@link Exchange#resolved(long)}.
+     * @param host the host
+     * @param resolver the resolver to use, or null for the JVM's one
+     * @return the resolution time in nanos
+     * @throws UnknownHostException if the host can't be resolved
+     */
+    static long resolve(String host, HttpDnsResolver resolver) throws UnknownHostException {
+        long start = System.nanoTime();
+        if (resolver != null)
+            resolver.resolve(host);
+        else
+            InetAddress.getAllByName(host);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Makes the given connection open its sockets through the instrumented
+     * socket factory, if it is an 'https' connection.
+     * @param connection the connection
+     * @return whether the connection has been instrumented
+     */
+    static boolean instrument(HttpURLConnection connection) {
+        if (!(connection instanceof HttpsURLConnection))
+            return false;
+
+        HttpsURLConnection https = (HttpsURLConnection) connection;
+        SSLSocketFactory factory = https.getSSLSocketFactory();
+
+        if (!(factory instanceof MeteredSSLSocketFactory))
+            // The same instance for the same delegate, since the keep-alive
+            // pool is partitioned by socket factory
+            https.setSSLSocketFactory(FACTORIES.computeIfAbsent(factory, MeteredSSLSocketFactory::new));
+
+        return true;
+    }
+
+    /**
+     * Tracker of the phases of a single request.
+     * <p>
+     * The methods must be called by the thread that performs the request.
+     */
+    static final class Exchange {
+        private final HostMetrics mHost;
+        private final long mStart = System.nanoTime();
+
+        private long mDns = -1;
+        private long mConnect = -1;
+        private long mTls = -1;
+        private long mFirstByte = -1;
+        private long mBody = -1;
+
+        private long mConnectStart = 0;
+        private long mTlsStart = 0;
+        private long mSent = 0;
+        private long mHeaders = 0;
+
+        // Null if the reuse can't be observed
+        private Boolean mNewConnection = null;
+
+        private int mResponseCode = -1;
+        private final LongAdder mBytesIn = new LongAdder();
+        private final LongAdder mBytesOut = new LongAdder();
+
+        private Exchange(HostMetrics host) {
+            mHost = host;
+        }
+
+        /**
+         * Records the time spent resolving the host, measured by
+         * {@link HttpMetrics#resolve(String, HttpDnsResolver)}.
+         * @param nanos the resolution time, or -1 if the host has not
+         *              been resolved for this exchange
+         */
+        void resolved(long nanos) {
+            mDns = nanos;
+        }
+
+        /**
+         * Notifies that the given connection is about to connect.
+         * @param connection the connection
+         */
+        void connecting(HttpURLConnection connection) {
+            if (instrument(connection))
+                mNewConnection = false; // Until the socket factory says otherwise
+            CONNECTING.set(this);
+            mConnectStart = System.nanoTime();
+        }
+
+        /**
+         * Notifies that the connection has been established.
+         */
+        void connected() {
+            long now = System.nanoTime();
+            CONNECTING.remove();
+
+            if (mTlsStart != 0) {
+                mConnect = mTlsStart - mConnectStart;
+                mTls = now - mTlsStart;
+            }
+            else if (mNewConnection == null) {
+                mConnect = now - mConnectStart;
+            }
+
+            mSent = now;
+        }
+
+        /**
+         * Notifies that the request, body included, has been sent.
+         */
+        void sent() {
+            mSent = System.nanoTime();
+        }
+
+        /**
+         * Notifies that the response headers have been received.
+         * @param responseCode the response code
+         */
+        void headers(int responseCode) {
+            mHeaders = System.nanoTime();
+            mFirstByte = mHeaders - mSent;
+            mResponseCode = responseCode;
+        }
+
+        /**
+         * Notifies that the response has been received by a transport
+         * that doesn't expose the phases of the exchange.
+         * @param responseCode the response code
+         */
+        void completed(int responseCode) {
+            mResponseCode = responseCode;
+        }
+
+        /**
+         * Wraps the given stream so that the bytes written are counted.
+         * @param out the stream of the request body
+         * @return the counting stream
+         */
+        OutputStream meter(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    mBytesOut.increment();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    mBytesOut.add(len);
+                }
+            };
+        }
+
+        /**
+         * Wraps the given stream so that the bytes read are counted.
+         * @param in the stream of the response body
+         * @return the counting stream
+         */
+        InputStream meter(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    if (b >= 0)
+                        mBytesIn.increment();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    if (n > 0)
+                        mBytesIn.add(n);
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * Notifies the end of the request and records its metrics.
+         * @param failed whether the request failed without a response
+         */
+        void finish(boolean failed) {
+            long now = System.nanoTime();
+            CONNECTING.remove();
+
+            if (mHeaders != 0 && !failed)
+                mBody = now - mHeaders;
+
+            mHost.record(this, now - mStart, failed);
+        }
+    }
+
+    /**
+     * Metrics of a single host.
+     */
+    private static class HostMetrics {
+        private final Recorder[] mPhases = new Recorder[Phase.values().length];
+        private final Map<Integer, LongAdder> mStatusCodes = new ConcurrentHashMap<>();
+        private final LongAdder mRequests = new LongAdder();
+        private final LongAdder mFailures = new LongAdder();
+        private final LongAdder mBytesIn = new LongAdder();
+        private final LongAdder mBytesOut = new LongAdder();
+        private final LongAdder mNewConnections = new LongAdder();
+        private final LongAdder mReusedConnections = new LongAdder();
+
+        private HostMetrics() {
+            for (int i = 0; i < mPhases.length; i++)
+                mPhases[i] = new Recorder();
+        }
+
+        private void record(Exchange exchange, long total, boolean failed) {
+            mRequests.increment();
+
+            if (failed)
+                mFailures.increment();
+            if (exchange.mResponseCode >= 0)
+                mStatusCodes.computeIfAbsent(exchange.mResponseCode, c -> new LongAdder()).increment();
+
+            mBytesIn.add(exchange.mBytesIn.sum());
+            mBytesOut.add(exchange.mBytesOut.sum());
+
+            if (exchange.mNewConnection != null) {
+                if (exchange.mNewConnection)
+                    mNewConnections.increment();
+                else
+                    mReusedConnections.increment();
+            }
+
+            mPhases[Phase.DNS.ordinal()].record(exchange.mDns);
+            mPhases[Phase.CONNECT.ordinal()].record(exchange.mConnect);
+            mPhases[Phase.TLS.ordinal()].record(exchange.mTls);
+            mPhases[Phase.FIRST_BYTE.ordinal()].record(exchange.mFirstByte);
+            mPhases[Phase.BODY.ordinal()].record(exchange.mBody);
+            mPhases[Phase.TOTAL.ordinal()].record(total);
+        }
+
+        private HostSnapshot snapshot(String host) {
+            HostSnapshot s = new HostSnapshot(host);
+            for (Phase phase : Phase.values())
+                s.mHistograms.put(phase, mPhases[phase.ordinal()].snapshot());
+            mStatusCodes.forEach((code, count) -> s.mStatusCodes.put(code, count.sum()));
+            s.mRequests = mRequests.sum();
+            s.mFailures = mFailures.sum();
+            s.mBytesIn = mBytesIn.sum();
+            s.mBytesOut = mBytesOut.sum();
+            s.mNewConnections = mNewConnections.sum();
+            s.mReusedConnections = mReusedConnections.sum();
+            return s;
+        }
+    }
+
+    /**
+     * Lock free recorder of a latency histogram.
+     */
+    private static class Recorder {
+        private final LongAdder[] mCounts = new LongAdder[BUCKET_BOUNDS.length + 1];
+        private final LongAdder mSum = new LongAdder();
+        private volatile long mMax = 0;
+
+        private Recorder() {
+            for (int i = 0; i < mCounts.length; i++)
+                mCounts[i] = new LongAdder();
+        }
+
+        private void record(long nanos) {
+            if (nanos < 0)
+                return; // Phase not happened
+
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS.length && millis >= BUCKET_BOUNDS[bucket])
+                bucket++;
+
+            mCounts[bucket].increment();
+            mSum.add(nanos);
+
+            // A lost update of the maximum is harmless
+            if (nanos > mMax)
+                mMax = nanos;
+        }
+
+        private Histogram snapshot() {
+            long[] counts = new long[mCounts.length];
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = mCounts[i].sum();
+            return new Histogram(counts, mSum.sum(), mMax);
+        }
+    }
+
+    /**
+     * Socket factory that notifies the exchange being connected by the
+     * current thread about new connections and TLS handshakes.
+     * <p>
+     * Unconnected sockets are not supported on purpose (the inherited
+     * {@link #createSocket()} throws): this makes {@link HttpsURLConnection}
+     * connect a plain socket first and then layer TLS on it, so that the
+     * TCP and the TLS phases can be told apart.
+     */
+    private static class MeteredSSLSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+
+        private MeteredSSLSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            Exchange exchange = CONNECTING.get();
+            if (exchange != null) {
+                exchange.mNewConnection = true;
+                exchange.mTlsStart = System.nanoTime();
+            }
+            return mDelegate.createSocket(s, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port,
+                                   InetAddress localHost, int localPort) throws IOException {
+            return mDelegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port,
+                                   InetAddress localAddress, int localPort) throws IOException {
+            return mDelegate.createSocket(address, port, localAddress, localPort);
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+    }
+
+    private static void appendCounter(StringBuilder sb,
+                                      Map<String, HostSnapshot> snapshots,
+                                      String name,
+                                      ToLongFunction<HostSnapshot> value) {
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        snapshots.forEach((host, s) ->
+            sb.append(name).append("{host=\"").append(escape(host)).append("\"} ")
+              .append(value.applyAsLong(s)).append('\n'));
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static String normalizeHost(String host) {
+        return host != null ? host.toLowerCase(Locale.ROOT) : "";
+    }
+}
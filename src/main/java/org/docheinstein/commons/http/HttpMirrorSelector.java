@@ -0,0 +1,284 @@
+package org.docheinstein.commons.http;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory of the speed of the hosts serving the mirrors of the resources,
+ * used by {@link HttpDownloader#downloadFromMirrors(List, String)} for
+ * choosing the mirror to download from and for deciding whether to move
+ * to another mirror during a download.
+ * <p>
+ * For each host, the time to first byte and the throughput measured by
+ * the downloads are smoothed with an exponentially weighted moving
+ * average, so that the memory follows the changes of the hosts without
+ * being fooled by a single sample.
+ * The throughput of a probe, whose few bytes mostly arrive in a single
+ * burst, is only a rough guess: it is measured from the request (thus it
+ * mostly reflects the latency) and it's used only for the hosts never
+ * measured by a download.
+ * A host that fails is ranked after the others for a while.
+ * <p>
+ * The same selector should be shared between the downloaders, via
+ * {@link HttpDownloader#mirrorSelector(HttpMirrorSelector)}, so that each
+ * download benefits from the measures of the previous ones.
+ */
+public class HttpMirrorSelector {
+
+    private static final int DEFAULT_PROBE_SIZE = 64 * 1024;
+    private static final int DEFAULT_PROBE_TIMEOUT = 3000;
+    private static final long DEFAULT_FAILURE_PENALTY = 60000;
+
+    // Weight of a new sample in the averages
+    private static final double SMOOTHING = 0.3;
+
+    private int mProbeSize = DEFAULT_PROBE_SIZE;
+    private int mProbeTimeout = DEFAULT_PROBE_TIMEOUT;
+    private long mFailurePenalty = DEFAULT_FAILURE_PENALTY;
+
+    private final Map<String, Host> mHosts = new ConcurrentHashMap<>();
+
+    /**
+     * Measures of a host.
+     */
+    private static class Host {
+        private double mTimeToFirstByteNanos = -1;
+        private double mThroughput = -1;
+        private boolean mThroughputGuessed = false;
+        private int mFailures = 0;
+        private long mFailedAt = 0;
+
+        private synchronized void timeToFirstByte(long nanos) {
+            mTimeToFirstByteNanos = mTimeToFirstByteNanos < 0 ? nanos :
+                mTimeToFirstByteNanos + SMOOTHING * (nanos - mTimeToFirstByteNanos);
+        }
+
+        private synchronized void throughput(double bytesPerSecond) {
+            mThroughput = mThroughput < 0 || mThroughputGuessed ? bytesPerSecond :
+                mThroughput + SMOOTHING * (bytesPerSecond - mThroughput);
+            mThroughputGuessed = false;
+            mFailures = 0;
+        }
+
+        private synchronized void guessedThroughput(double bytesPerSecond) {
+            if (mThroughput >= 0 && !mThroughputGuessed)
+                return;
+            mThroughput = bytesPerSecond;
+            mThroughputGuessed = true;
+            mFailures = 0;
+        }
+
+        private synchronized void failure() {
+            mFailures++;
+            mFailedAt = System.nanoTime();
+        }
+
+        private synchronized boolean isPenalized(long penaltyNanos) {
+            return mFailures > 0 && System.nanoTime() - mFailedAt < penaltyNanos;
+        }
+
+        private synchronized double estimateNanos(long bytes) {
+            if (mThroughput <= 0)
+                return Double.POSITIVE_INFINITY;
+            return Math.max(0, mTimeToFirstByteNanos) + bytes * 1e9 / mThroughput;
+        }
+    }
+
+    /**
+     * Creates a selector with the default parameters.
+     * @return a selector
+     */
+    public static HttpMirrorSelector create() {
+        return new HttpMirrorSelector();
+    }
+
+    /**
+     * Sets the amount of bytes requested to each mirror for measure it
+     * before a download.
+     * <p>
+     * The bytes downloaded by the probe of the chosen mirror are kept,
+     * thus resources smaller than the probe are downloaded by the probes.
+     * @param bytes the probe size
+     * @return this selector
+     */
+    public HttpMirrorSelector probeSize(int bytes) {
+        mProbeSize = Math.max(1, bytes);
+        return this;
+    }
+
+    /**
+     * Sets the time the probes are waited for; the mirrors that don't
+     * answer in time are considered failed.
+     * @param millis the probe timeout
+     * @return this selector
+     */
+    public HttpMirrorSelector probeTimeout(int millis) {
+        mProbeTimeout = Math.max(1, millis);
+        return this;
+    }
+
+    /**
+     * Sets the time a host that failed is ranked after the others for.
+     * @param millis the failure penalty
+     * @return this selector
+     */
+    public HttpMirrorSelector failurePenalty(long millis) {
+        mFailurePenalty = Math.max(0, millis);
+        return this;
+    }
+
+    /**
+     * Returns the smoothed time to first byte of the host of the given url.
+     * @param url an url of the host
+     * @return the time to first byte in millis, or -1 if unknown
+     */
+    public long getTimeToFirstByteMillis(URL url) {
+        Host h = mHosts.get(keyOf(url));
+        if (h == null)
+            return -1;
+        synchronized (h) {
+            return h.mTimeToFirstByteNanos < 0 ? -1 :
+                TimeUnit.NANOSECONDS.toMillis((long) h.mTimeToFirstByteNanos);
+        }
+    }
+
+    /**
+     * Returns the smoothed throughput of the host of the given url.
+     * @param url an url of the host
+     * @return the throughput in bytes per second, or -1 if unknown
+     */
+    public double getThroughput(URL url) {
+        Host h = mHosts.get(keyOf(url));
+        if (h == null)
+            return -1;
+        synchronized (h) {
+            return h.mThroughput;
+        }
+    }
+
+    /**
+     * Returns the amount of consecutive failures of the host of the given url.
+     * @param url an url of the host
+     * @return the failures
+     */
+    public int getFailures(URL url) {
+        Host h = mHosts.get(keyOf(url));
+        if (h == null)
+            return 0;
+        synchronized (h) {
+            return h.mFailures;
+        }
+    }
+
+    /**
+     * Forgets the measures of all the hosts.
+     */
+    public void clear() {
+        mHosts.clear();
+    }
+
+    int getProbeSize() {
+        return mProbeSize;
+    }
+
+    int getProbeTimeout() {
+        return mProbeTimeout;
+    }
+
+    /**
+     * Records the time to first byte of a response of the host of the given url.
+     * @param url the url
+     * @param nanos the time to first byte
+     */
+    void recordTimeToFirstByte(URL url, long nanos) {
+        host(url).timeToFirstByte(nanos);
+    }
+
+    /**
+     * Records the outcome of a probe of the host of the given url.
+     * @param url the url
+     * @param timeToFirstByteNanos the time to first byte
+     * @param bytes the bytes received
+     * @param nanos the time from the request to the last byte
+     */
+    void recordProbe(URL url, long timeToFirstByteNanos, long bytes, long nanos) {
+        Host h = host(url);
+        h.timeToFirstByte(timeToFirstByteNanos);
+        if (bytes > 0 && nanos > 0)
+            h.guessedThroughput(bytes * 1e9 / nanos);
+    }
+
+    /**
+     * Records the throughput of a transfer from the host of the given url.
+     * <p>
+     * A successful transfer clears the failures of the host.
+     * @param url the url
+     * @param bytes the transferred bytes
+     * @param nanos the time of the transfer
+     */
+    void recordThroughput(URL url, long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0)
+            return;
+        host(url).throughput(bytes * 1e9 / nanos);
+    }
+
+    /**
+     * Records a failure of the host of the given url.
+     * @param url the url
+     */
+    void recordFailure(URL url) {
+        host(url).failure();
+    }
+
+    /**
+     * Estimates the time needed for download the given amount of bytes
+     * from the host of the given url.
+     * @param url the url
+     * @param bytes the amount of bytes
+     * @return the estimated nanos, or infinity if the host has never been measured
+     */
+    double estimateNanos(URL url, long bytes) {
+        Host h = mHosts.get(keyOf(url));
+        return h != null ? h.estimateNanos(bytes) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Sorts the given urls from the most to the least convenient for
+     * download the given amount of bytes: hosts recently failed go last,
+     * the others are sorted by the estimated download time.
+     * @param urls the urls
+     * @param bytes the amount of bytes to download (the probe size if unknown)
+     * @return the sorted urls
+     */
+    List<URL> rank(List<URL> urls, long bytes) {
+        long penaltyNanos = TimeUnit.MILLISECONDS.toNanos(mFailurePenalty);
+        long size = bytes >= 0 ? bytes : mProbeSize;
+
+        List<URL> ranking = new ArrayList<>(urls);
+        // Stable sort: equivalent mirrors keep the given order
+        ranking.sort(Comparator
+            .comparing((URL url) -> host(url).isPenalized(penaltyNanos))
+            .thenComparingDouble(url -> estimateNanos(url, size)));
+        return ranking;
+    }
+
+    private Host host(URL url) {
+        return mHosts.computeIfAbsent(keyOf(url), k -> new Host());
+    }
+
+    private static String keyOf(URL url) {
+        String host = url.getHost().toLowerCase(Locale.ROOT);
+        return url.getPort() >= 0 ? host + ":" + url.getPort() : host;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpMirrorSelector{hosts: " + mHosts.size() + "}";
+    }
+}
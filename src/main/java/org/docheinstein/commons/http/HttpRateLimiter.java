@@ -0,0 +1,280 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+import org.docheinstein.commons.types.StringUtil;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Per host token bucket rate limiter for outbound HTTP requests.
+ * <p>
+ * Each host has its own bucket that is refilled at a given rate and
+ * that can hold at most a given amount of permits (the burst size).
+ * The buckets are lock free: a permit is reserved with a single
+ * compare-and-set on the bucket state and the caller then waits,
+ * if needed, until the reserved permit becomes available.
+ * <p>
+ * The limiter is consulted by {@link HttpRequester} and
+ * {@link HttpDownloader} before connecting and honors the 'Retry-After'
+ * header of the responses with code 429 and 503 by suspending the
+ * host for the requested time.
+ */
+public class HttpRateLimiter {
+
+    private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_RATE_LIMITER}");
+
+    private static final long NANOS_IN_SEC = TimeUnit.SECONDS.toNanos(1);
+
+    private final double mPermitsPerSecond;
+    private final int mBurst;
+    private final Map<String, Bucket> mBuckets = new ConcurrentHashMap<>();
+
+    private final LongAdder mAcquired = new LongAdder();
+    private final LongAdder mDelayed = new LongAdder();
+    private final LongAdder mWaitNanos = new LongAdder();
+
+    /**
+     * Token bucket of a single host.
+     * <p>
+     * Implemented as a virtual scheduler: the state is the theoretical
+     * time at which the bucket will be full again.
+     */
+    private static class Bucket {
+        private final long mInterval;
+        private final long mTolerance;
+        private final AtomicLong mFullAt;
+
+        Bucket(double permitsPerSecond, int burst) {
+            mInterval = Math.max(1, (long) (NANOS_IN_SEC / permitsPerSecond));
+            mTolerance = mInterval * (Math.max(1, burst) - 1);
+            mFullAt = new AtomicLong(System.nanoTime() - mTolerance);
+        }
+
+        /**
+         * Reserves a permit.
+         * @return the nanos to wait before the permit is available
+         */
+        long reserve() {
+            while (true) {
+                long now = System.nanoTime();
+                long fullAt = mFullAt.get();
+                long base = fullAt - now > 0 ? fullAt : now;
+                if (mFullAt.compareAndSet(fullAt, base + mInterval))
+                    return Math.max(0, base - mTolerance - now);
+            }
+        }
+
+        /**
+         * Reserves a permit only if it is immediately available.
+         * @return whether the permit has been reserved
+         */
+        boolean tryReserve() {
+            while (true) {
+                long now = System.nanoTime();
+                long fullAt = mFullAt.get();
+                long base = fullAt - now > 0 ? fullAt : now;
+                if (base - mTolerance - now > 0)
+                    return false;
+                if (mFullAt.compareAndSet(fullAt, base + mInterval))
+                    return true;
+            }
+        }
+
+        /**
+         * Makes no permit available until the given delay elapses.
+         * @param delayNanos the delay
+         */
+        void suspend(long delayNanos) {
+            long until = System.nanoTime() + delayNanos + mTolerance;
+            long fullAt;
+            do {
+                fullAt = mFullAt.get();
+                if (fullAt - until >= 0)
+                    return;
+            } while (!mFullAt.compareAndSet(fullAt, until));
+        }
+    }
+
+    /**
+     * Creates a rate limiter that allows, for each host, the given amount
+     * of requests per second with the given burst size.
+     * @param permitsPerSecond the requests per second allowed for each host
+     * @param burst the maximum amount of requests that can be sent at once
+     *              after an idle period
+     * @return a rate limiter
+     */
+    public static HttpRateLimiter create(double permitsPerSecond, int burst) {
+        return new HttpRateLimiter(permitsPerSecond, burst);
+    }
+
+    /**
+     * Creates a rate limiter that allows, for each host, the given amount
+     * of requests per second, without bursts.
+     * @param permitsPerSecond the requests per second allowed for each host
+     * @return a rate limiter
+     */
+    public static HttpRateLimiter create(double permitsPerSecond) {
+        return create(permitsPerSecond, 1);
+    }
+
+    private HttpRateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0)
+            throw new IllegalArgumentException("Rate must be positive");
+        mPermitsPerSecond = permitsPerSecond;
+        mBurst = Math.max(1, burst);
+    }
+
+    /**
+     * Overrides the rate and the burst size for the given host.
+     * <p>
+     * Must be called before the first request toward the host.
+     * @param host the host
+     * @param permitsPerSecond the requests per second allowed for the host
+     * @param burst the burst size for the host
+     * @return this rate limiter
+     */
+    public HttpRateLimiter hostLimit(String host, double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0)
+            throw new IllegalArgumentException("Rate must be positive");
+        mBuckets.put(normalizeHost(host), new Bucket(permitsPerSecond, burst));
+        return this;
+    }
+
+    /**
+     * Waits until a permit for the given host is available.
+     * @param host the host
+     * @return the millis waited for the permit
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public long acquire(String host) throws InterruptedException {
+        long wait = bucket(host).reserve();
+
+        mAcquired.increment();
+
+        if (wait <= 0)
+            return 0;
+
+        mDelayed.increment();
+        mWaitNanos.add(wait);
+
+        long deadline = System.nanoTime() + wait;
+        long remaining = wait;
+
+        while (remaining > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted())
+                throw new InterruptedException("Interrupted while waiting for a permit");
+            remaining = deadline - System.nanoTime();
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(wait);
+    }
+
+    /**
+     * Acquires a permit for the given host only if it is immediately available.
+     * @param host the host
+     * @return whether the permit has been acquired
+     */
+    public boolean tryAcquire(String host) {
+        boolean acquired = bucket(host).tryReserve();
+        if (acquired)
+            mAcquired.increment();
+        return acquired;
+    }
+
+    /**
+     * Makes no permit available for the given host until the given delay elapses.
+     * @param host the host
+     * @param millis the delay in millis
+     */
+    public void suspend(String host, long millis) {
+        if (millis <= 0)
+            return;
+        L.out("Suspending requests toward " + host + " for " + millis + "ms");
+        bucket(host).suspend(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Suspends the host of a request that obtained the given response if
+     * the response asks for it via the 'Retry-After' header.
+     * @param host the host
+     * @param responseCode the response code
+     * @param retryAfter the value of the 'Retry-After' header, may be null
+     */
+    public void onResponse(String host, int responseCode, String retryAfter) {
+        if (responseCode != 429 && responseCode != 503)
+            return;
+        long delay = parseRetryAfter(retryAfter);
+        if (delay > 0)
+            suspend(host, delay);
+    }
+
+    /**
+     * Returns the amount of permits acquired.
+     * @return the amount of acquired permits
+     */
+    public long getAcquiredPermits() {
+        return mAcquired.sum();
+    }
+
+    /**
+     * Returns the amount of permits that were not immediately available.
+     * @return the amount of delayed permits
+     */
+    public long getDelayedPermits() {
+        return mDelayed.sum();
+    }
+
+    /**
+     * Returns the total time waited for the permits.
+     * @return the total waited millis
+     */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mWaitNanos.sum());
+    }
+
+    /**
+     * Parses the value of a 'Retry-After' header, which can be either
+     * an amount of seconds or an HTTP date.
+     * @param retryAfter the header value
+     * @return the delay in millis, or -1 if the value is not valid
+     */
+    public static long parseRetryAfter(String retryAfter) {
+        if (!StringUtil.isValid(retryAfter))
+            return -1;
+
+        String value = retryAfter.trim();
+
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+        } catch (NumberFormatException ignored) {}
+
+        try {
+            SimpleDateFormat httpDate =
+                new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            Date date = httpDate.parse(value);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            L.out("Invalid 'Retry-After' value: " + value);
+            return -1;
+        }
+    }
+
+    private Bucket bucket(String host) {
+        return mBuckets.computeIfAbsent(normalizeHost(host),
+            h -> new Bucket(mPermitsPerSecond, mBurst));
+    }
+
+    private static String normalizeHost(String host) {
+        return host != null ? host.toLowerCase(Locale.ROOT) : "";
+    }
+}
@@ -0,0 +1,233 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.file.FileUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Body of an {@link HttpRequester} request.
+ * <p>
+ * The body is written directly to the connection's stream, using
+ * the fixed length streaming mode if the length is known or the chunked
+ * streaming mode otherwise; therefore the body is never buffered entirely
+ * in memory and the transmission starts immediately.
+ */
+public abstract class HttpRequestBody {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Creates a body for the given string, encoded as UTF-8.
+     * @param content the content of the body
+     * @return the body
+     */
+    public static HttpRequestBody of(String content) {
+        return of(content, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a body for the given string, encoded with the given charset.
+     * @param content the content of the body
+     * @param charset the charset used for encode the content
+     * @return the body
+     */
+    public static HttpRequestBody of(String content, Charset charset) {
+        return of(content.getBytes(charset));
+    }
+
+    /**
+     * Creates a body for the given bytes.
+     * <p>
+     * The bytes are not copied, thus must not be modified while the body is used.
+     * @param bytes the content of the body
+     * @return the body
+     */
+    public static HttpRequestBody of(byte[] bytes) {
+        return new HttpRequestBody() {
+            @Override
+            public long length() {
+                return bytes.length;
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes);
+            }
+
+            @Override
+            public InputStream openStream() {
+                return new ByteArrayInputStream(bytes);
+            }
+        };
+    }
+
+    /**
+     * Creates a body for the remaining bytes of the given buffer.
+     * <p>
+     * The position of the buffer is not modified.
+     * @param buffer the content of the body
+     * @return the body
+     */
+    public static HttpRequestBody of(ByteBuffer buffer) {
+        return new HttpRequestBody() {
+            @Override
+            public long length() {
+                return buffer.remaining();
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                ByteBuffer content = buffer.duplicate();
+
+                if (content.hasArray()) {
+                    out.write(content.array(),
+                        content.arrayOffset() + content.position(),
+                        content.remaining());
+                    return;
+                }
+
+                byte[] chunk = new byte[Math.min(BUFFER_SIZE, content.remaining())];
+                while (content.hasRemaining()) {
+                    int len = Math.min(chunk.length, content.remaining());
+                    content.get(chunk, 0, len);
+                    out.write(chunk, 0, len);
+                }
+            }
+
+            @Override
+            public InputStream openStream() {
+                ByteBuffer content = buffer.duplicate();
+
+                return new InputStream() {
+                    @Override
+                    public int read() {
+                        return content.hasRemaining() ? content.get() & 0xFF : -1;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) {
+                        if (!content.hasRemaining())
+                            return -1;
+                        len = Math.min(len, content.remaining());
+                        content.get(b, off, len);
+                        return len;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Creates a body for the content of the given file.
+     * <p>
+     * The file is read while the body is sent.
+     * @param file the file to send
+     * @return the body
+     */
+    public static HttpRequestBody of(File file) {
+        return new HttpRequestBody() {
+            @Override
+            public long length() {
+                return file.length();
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try (InputStream in = new FileInputStream(file)) {
+                    FileUtil.copy(in, out);
+                }
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+    }
+
+    /**
+     * Creates a body for the content of the given stream.
+     * <p>
+     * The stream can be read only once, thus requests with such body
+     * are neither retried nor hedged.
+     * @param stream the stream to send
+     * @param length the amount of bytes of the stream, or -1 if unknown
+     *               (chunked transfer encoding is used in this case)
+     * @return the body
+     */
+    public static HttpRequestBody of(InputStream stream, long length) {
+        return new HttpRequestBody() {
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                FileUtil.copy(stream, out);
+            }
+
+            @Override
+            public InputStream openStream() {
+                return stream;
+            }
+        };
+    }
+
+    /**
+     * Returns the amount of bytes of this body.
+     * @return the length of the body, or -1 if unknown
+     */
+    public abstract long length();
+
+    /**
+     * Returns whether this body can be written more than once.
+     * @return whether the body is repeatable
+     */
+    public abstract boolean isRepeatable();
+
+    /**
+     * Writes the content of this body to the given stream.
+     * @param out the output stream
+     * @throws IOException if the write fails
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Opens a stream over the content of this body, for the transports
+     * that pull the body instead of having it written.
+     * <p>
+     * The default implementation buffers the whole body in memory,
+     * subclasses should override it for avoid that.
+     * @return the stream of the content, which must be closed by the caller
+     * @throws IOException if the stream can't be opened
+     */
+    public InputStream openStream() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        writeTo(content);
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+}
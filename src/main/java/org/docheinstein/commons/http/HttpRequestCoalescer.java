@@ -0,0 +1,202 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical requests in flight at the same time, so that
+ * they share a single network call (also known as 'singleflight').
+ * <p>
+ * Two requests are identical if they have the same method, url and
+ * headers (or just the key headers, if specified via {@link #keyHeaders(String...)}).
+ * Only 'GET' and 'HEAD' requests without body are coalesced; every caller
+ * receives the same {@link HttpRequester.Response}, which must be
+ * treated as immutable.
+ * <p>
+ * The same coalescer should be shared between the requesters, via
+ * {@link HttpRequester#coalescer(HttpRequestCoalescer)}.
+ */
+public class HttpRequestCoalescer {
+
+    private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_REQUEST_COALESCER}");
+
+    private final Map<String, CompletableFuture<HttpRequester.Response>> mInFlight =
+        new ConcurrentHashMap<>();
+
+    private Set<String> mKeyHeaders = null;
+
+    private final LongAdder mPerformed = new LongAdder();
+    private final LongAdder mCoalesced = new LongAdder();
+
+    /**
+     * Creates a request coalescer.
+     * @return a request coalescer
+     */
+    public static HttpRequestCoalescer create() {
+        return new HttpRequestCoalescer();
+    }
+
+    /**
+     * Restricts the headers that distinguish two requests to the given ones.
+     * <p>
+     * By default every header is considered.
+     * @param names the names of the headers to consider
+     * @return this coalescer
+     */
+    public HttpRequestCoalescer keyHeaders(String... names) {
+        Set<String> keyHeaders = new HashSet<>();
+        for (String name : names)
+            keyHeaders.add(name.toLowerCase(Locale.ROOT));
+        mKeyHeaders = keyHeaders;
+        return this;
+    }
+
+    /**
+     * Returns the amount of network calls actually performed.
+     * @return the performed calls
+     */
+    public long getPerformedRequests() {
+        return mPerformed.sum();
+    }
+
+    /**
+     * Returns the amount of requests that shared the call of another request.
+     * @return the coalesced requests
+     */
+    public long getCoalescedRequests() {
+        return mCoalesced.sum();
+    }
+
+    /**
+     * Returns whether requests with the given method can be coalesced.
+     * @param method the request method
+     * @return whether the method can be coalesced
+     */
+    public static boolean isApplicable(HttpRequester.RequestMethod method) {
+        return method == HttpRequester.RequestMethod.GET ||
+               method == HttpRequester.RequestMethod.HEAD;
+    }
+
+    /**
+     * Computes the key that identifies a request.
+     * @param method the request method
+     * @param url the url
+     * @param headers the request headers, as consecutive name and value
+     * @return the key of the request
+     */
+    String keyOf(HttpRequester.RequestMethod method, String url, List<String> headers) {
+        List<String> keyHeaders = new ArrayList<>();
+
+        for (int i = 0; i < headers.size(); i += 2) {
+            String name = headers.get(i).toLowerCase(Locale.ROOT);
+            if (mKeyHeaders == null || mKeyHeaders.contains(name))
+                keyHeaders.add(name + ": " + headers.get(i + 1));
+        }
+
+        // The order in which the headers have been set is irrelevant
+        Collections.sort(keyHeaders);
+
+        StringBuilder sb = new StringBuilder(method.name()).append(' ').append(url);
+        for (String header : keyHeaders)
+            sb.append('\n').append(header);
+
+        return sb.toString();
+    }
+
+    /**
+     * Performs the request identified by the given key, or waits for the
+     * identical request already in flight.
+     * <p>
+     * A request that waits for the one in flight stops waiting once its
+     * own deadline is exceeded or it is cancelled.
+     * @param key the key of the request
+     * @param request the actual request
+     * @param deadlineAt the deadline of the request ({@link System#nanoTime()}),
+     *                   or 0 for no deadline
+     * @param cancellation completed with the cause of the cancellation
+     *                     if the request is cancelled
+     * @return the response of the request
+     */
+    HttpRequester.Response execute(String key, Supplier<HttpRequester.Response> request,
+                                   long deadlineAt, CompletableFuture<IOException> cancellation) {
+        CompletableFuture<HttpRequester.Response> call = new CompletableFuture<>();
+        CompletableFuture<HttpRequester.Response> inFlight = mInFlight.putIfAbsent(key, call);
+
+        if (inFlight != null) {
+            mCoalesced.increment();
+            // The key contains the value of every header, credentials included
+            L.out("Coalescing request with the one in flight: " + describe(key));
+
+            try {
+                CompletableFuture<Object> first = CompletableFuture.anyOf(inFlight, cancellation);
+                if (deadlineAt != 0)
+                    first.get(Math.max(0, deadlineAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+                else
+                    first.get();
+
+                if (cancellation.isDone()) {
+                    HttpRequester.Response resp = new HttpRequester.Response();
+                    resp.mException = cancellation.join();
+                    return resp;
+                }
+
+                return inFlight.get();
+            } catch (TimeoutException e) {
+                HttpRequester.Response resp = new HttpRequester.Response();
+                resp.mException = new SocketTimeoutException(
+                    "Deadline exceeded while waiting for the coalesced request");
+                return resp;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                HttpRequester.Response resp = new HttpRequester.Response();
+                resp.mException = new InterruptedIOException(
+                    "Interrupted while waiting for the coalesced request");
+                return resp;
+            } catch (ExecutionException e) {
+                HttpRequester.Response resp = new HttpRequester.Response();
+                resp.mException = e;
+                return resp;
+            }
+        }
+
+        mPerformed.increment();
+
+        HttpRequester.Response resp;
+
+        try {
+            resp = request.get();
+        } catch (RuntimeException | Error e) {
+            mInFlight.remove(key, call);
+            call.completeExceptionally(e);
+            throw e;
+        }
+
+        // Remove before complete so that later requests perform a new call
+        mInFlight.remove(key, call);
+        call.complete(resp);
+
+        return resp;
+    }
+
+    /**
+     * Returns the method and the url of the request with the given key,
+     * without the headers.
+     * @param key the key of the request
+     * @return the description of the request
+     */
+    private static String describe(String key) {
+        int headers = key.indexOf('\n');
+        return headers >= 0 ? key.substring(0, headers) : key;
+    }
+}
@@ -0,0 +1,1120 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+import org.docheinstein.commons.types.StringUtil;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable and thread safe specification of an HTTP request, obtained
+ * by compiling an {@link HttpRequester} via {@link HttpRequester#compile()}.
+ * <p>
+ * The headers are rendered and the url is parsed once, at compile time;
+ * the same template can then be sent any number of times, concurrently
+ * too, eventually overriding some parts of the request for each call
+ * via {@link #newCall()}.
+ * <p>
+ * A template whose body is not repeatable (e.g. an {@link InputStream}) can
+ * be sent only once, since the body is consumed by the first call; such a
+ * template should not be shared, or the body should be given to each call
+ * via {@link Call#body(HttpRequestBody)}.
+ * <p>
+ * The uri can contain path parameters in the form <code>{name}</code>
+ * which are replaced by the values given to {@link Call#param(String, String)},
+ * percent-encoded as path segments; parameters without a value are left
+ * as they are.
+ */
+public final class HttpRequestTemplate {
+
+    private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_REQUEST_TEMPLATE}");
+
+    private static final int CHUNK_SIZE = 65536;
+
+    private static final ExecutorService ASYNC_EXECUTOR =
+        Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "http-async");
+            t.setDaemon(true);
+            return t;
+        });
+
+    // Closes the connections of the cancelled calls: closing a connection
+    // waits for the read in progress on it, which must not block the caller
+    private static final ExecutorService DISCONNECT_EXECUTOR =
+        Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "http-disconnect");
+            t.setDaemon(true);
+            return t;
+        });
+
+    private static final ScheduledExecutorService WATCHDOG =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "http-deadline-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+
+    private final HttpRequester.RequestMethod mMethod;
+    private final String mURI;
+    private final URL mURL;
+    private final String mHost;
+
+    // Literal parts at even indexes, parameter names at odd indexes
+    private final String[] mURIParts;
+
+    private final String[] mHeaderNames;
+    private final String[] mHeaderValues;
+
+    private final HttpRequestBody mBody;
+    private final boolean mRedirect;
+    private final int mConnectionTimeout;
+    private final int mReadTimeout;
+    private final long mDeadline;
+    private final HttpRetryPolicy mRetryPolicy;
+    private final HttpHedgingPolicy mHedgingPolicy;
+    private final HttpRateLimiter mRateLimiter;
+    private final HttpConcurrencyLimiter mConcurrencyLimiter;
+    private final HttpRequestCoalescer mCoalescer;
+    private final HttpDnsResolver mDnsResolver;
+    private final HttpMetrics mMetrics;
+    private final HttpTransport mTransport;
+
+    HttpRequestTemplate(HttpRequester.RequestMethod method,
+                        String uri,
+                        Map<String, String> headers,
+                        HttpRequestBody body,
+                        boolean redirect,
+                        int connectionTimeout,
+                        int readTimeout,
+                        long deadline,
+                        HttpRetryPolicy retryPolicy,
+                        HttpHedgingPolicy hedgingPolicy,
+                        HttpRateLimiter rateLimiter,
+                        HttpConcurrencyLimiter concurrencyLimiter,
+                        HttpRequestCoalescer coalescer,
+                        HttpDnsResolver dnsResolver,
+                        HttpMetrics metrics,
+                        HttpTransport transport) {
+        mMethod = method;
+        mURI = uri;
+        mURIParts = splitURI(uri);
+
+        URL url = null;
+        try {
+            url = new URL(mURIParts.length == 1 ? uri : joinURI(mURIParts, null));
+        } catch (MalformedURLException e) {
+            L.out("Malformed URL exception, not a valid URI: " + uri);
+        }
+        mURL = mURIParts.length == 1 ? url : null;
+        mHost = url != null ? url.getHost() : null;
+
+        mHeaderNames = headers.keySet().toArray(new String[0]);
+        mHeaderValues = headers.values().toArray(new String[0]);
+
+        mBody = body;
+        mRedirect = redirect;
+        mConnectionTimeout = connectionTimeout;
+        mReadTimeout = readTimeout;
+        mDeadline = deadline;
+        mRetryPolicy = retryPolicy;
+        mHedgingPolicy = hedgingPolicy;
+        mRateLimiter = rateLimiter;
+        mConcurrencyLimiter = concurrencyLimiter;
+        mCoalescer = coalescer;
+        mDnsResolver = dnsResolver;
+        mMetrics = metrics;
+        mTransport = transport;
+    }
+
+    /**
+     * Returns the request method of this template.
+     * @return the request method
+     */
+    public HttpRequester.RequestMethod getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * Returns the uri of this template, with the path parameters not replaced.
+     * @return the uri
+     */
+    public String getURI() {
+        return mURI;
+    }
+
+    /**
+     * Returns the host of the uri of this template.
+     * @return the host, or null if the uri is not a valid url
+     */
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     * Sends the request as it has been compiled.
+     * @return the response of the request
+     */
+    public HttpRequester.Response send() {
+        return newCall().send();
+    }
+
+    /**
+     * Sends the request replacing the path parameters of the uri with
+     * the given values.
+     * @param params the values of the path parameters
+     * @return the response of the request
+     */
+    public HttpRequester.Response send(Map<String, String> params) {
+        return newCall().params(params).send();
+    }
+
+    /**
+     * Sends the request as it has been compiled, asynchronously.
+     * @return the future response of the request
+     * @see Call#sendAsync()
+     */
+    public CompletableFuture<HttpRequester.Response> sendAsync() {
+        return newCall().sendAsync();
+    }
+
+    /**
+     * Creates a new call for this template, which can be used for override
+     * some parts of the request before send it.
+     * @return a new call
+     */
+    public Call newCall() {
+        return new Call();
+    }
+
+    /**
+     * A single send of an {@link HttpRequestTemplate}.
+     * <p>
+     * A call is not thread safe and should be sent only once; the only
+     * exception is {@link #cancel()}, which can be invoked from any thread.
+     */
+    public class Call {
+        private Map<String, String> mParams = null;
+        private List<String> mExtraHeaders = null;
+        private HttpRequestBody mCallBody = mBody;
+        private volatile HttpURLConnection mConnection = null;
+
+        // Connections and transport exchanges that are performing a request, aborted on cancel
+        private final Set<HttpURLConnection> mOpenConnections = ConcurrentHashMap.newKeySet();
+        private final Set<Future<?>> mOpenExchanges = ConcurrentHashMap.newKeySet();
+        private volatile IOException mCancellation = null;
+        private final CompletableFuture<IOException> mCancelled = new CompletableFuture<>();
+        private long mDeadlineAt = 0;
+
+        private Call() {}
+
+        /**
+         * Sets the value of a path parameter.
+         * <p>
+         * The value is percent-encoded, thus a '/' in the value doesn't
+         * separate two segments.
+         * @param name the name of the parameter
+         * @param value the value of the parameter, not encoded
+         * @return this call
+         */
+        public Call param(String name, String value) {
+            if (mParams == null)
+                mParams = new HashMap<>();
+            mParams.put(name, value);
+            return this;
+        }
+
+        /**
+         * Sets the values of the path parameters.
+         * @param params the values of the parameters
+         * @return this call
+         */
+        public Call params(Map<String, String> params) {
+            if (params != null)
+                params.forEach(this::param);
+            return this;
+        }
+
+        /**
+         * Sets an header, overriding the one of the template if present.
+         * @param name the header name
+         * @param value the header value
+         * @return this call
+         */
+        public Call header(String name, String value) {
+            if (mExtraHeaders == null)
+                mExtraHeaders = new ArrayList<>();
+            mExtraHeaders.add(name);
+            mExtraHeaders.add(value);
+            return this;
+        }
+
+        /**
+         * Sets the body, overriding the one of the template.
+         * @param body the body
+         * @return this call
+         */
+        public Call body(HttpRequestBody body) {
+            mCallBody = body;
+            return this;
+        }
+
+        /**
+         * Uses the given connection for the first attempt instead of
+         * opening a new one.
+         * @param connection the connection
+         * @return this call
+         */
+        Call connection(HttpURLConnection connection) {
+            mConnection = connection;
+            return this;
+        }
+
+        /**
+         * Returns the connection used by the last attempt of this call.
+         * @return the connection
+         */
+        HttpURLConnection getConnection() {
+            return mConnection;
+        }
+
+        /**
+         * Cancels this call: no more attempts are performed, the body
+         * being read is not read further and the connections in use are
+         * closed in background.
+         * <p>
+         * A thread blocked while connecting or waiting for the headers is
+         * released by the close, while one blocked reading the body is
+         * released only once the read returns, thus within the read timeout.
+         * <p>
+         * The response of a cancelled call is not performed and has
+         * an {@link IOException} as exception.
+         */
+        public void cancel() {
+            cancel(new IOException("Request has been cancelled"));
+        }
+
+        private void cancel(IOException cause) {
+            if (mCancellation != null)
+                return;
+
+            mCancellation = cause;
+            mCancelled.complete(cause);
+            L.out(cause.getMessage() + ": " + mURI);
+
+            for (HttpURLConnection connection : mOpenConnections)
+                disconnectAsync(connection);
+            for (Future<?> exchange : mOpenExchanges)
+                exchange.cancel(true);
+        }
+
+        /**
+         * Returns whether this call has been cancelled, either explicitly or
+         * because the deadline has been exceeded.
+         * @return whether this call has been cancelled
+         */
+        public boolean isCancelled() {
+            return mCancellation != null;
+        }
+
+        /**
+         * Sends the request and returns a response object.
+         * <p>
+         * If a {@link HttpRetryPolicy} has been set, the request is retried
+         * accordingly to it; if a {@link HttpHedgingPolicy} has been set, a
+         * duplicate request is sent if the first one is too slow and the
+         * first obtained response is returned.
+         * <p>
+         * If a {@link HttpRequestCoalescer} has been set, the response may
+         * be shared with identical requests in flight at the same time.
+         * <p>
+         * If a deadline has been set, the connection and read timeouts of
+         * each attempt are shortened to the time left before it, and the
+         * call is cancelled once it is exceeded; a read already waiting
+         * for the body can thus end up to a read timeout after the deadline.
+         * @return the response of this request
+         */
+        public HttpRequester.Response send() {
+            if (mDeadline <= 0)
+                return sendWithinDeadline();
+
+            mDeadlineAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mDeadline);
+            ScheduledFuture<?> watchdog = WATCHDOG.schedule(
+                () -> cancel(new SocketTimeoutException("Deadline of " + mDeadline + "ms exceeded")),
+                mDeadline, TimeUnit.MILLISECONDS);
+
+            try {
+                return sendWithinDeadline();
+            } finally {
+                watchdog.cancel(false);
+            }
+        }
+
+        /**
+         * Sends the request asynchronously.
+         * <p>
+         * If an {@link HttpTransport} has been set and neither limiters,
+         * nor hedging, nor coalescing are used, no thread is blocked while
+         * waiting the response, retries included; otherwise the request
+         * is sent by {@link #send()} on a background thread.
+         * <p>
+         * Cancelling the returned future cancels this call.
+         * @return the future response of this request
+         */
+        public CompletableFuture<HttpRequester.Response> sendAsync() {
+            CompletableFuture<HttpRequester.Response> result;
+
+            if (mTransport != null && mRateLimiter == null && mConcurrencyLimiter == null &&
+                mHedgingPolicy == null && mCoalescer == null) {
+                result = new CompletableFuture<>();
+
+                URL url;
+                try {
+                    url = resolveURL();
+                } catch (MalformedURLException e) {
+                    L.out("Malformed URL exception, not a valid URI: " + mURI);
+                    HttpRequester.Response resp = new HttpRequester.Response();
+                    resp.mException = e;
+                    result.complete(resp);
+                    return result;
+                }
+
+                if (mDeadline > 0) {
+                    mDeadlineAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mDeadline);
+                    ScheduledFuture<?> watchdog = WATCHDOG.schedule(
+                        () -> cancel(new SocketTimeoutException("Deadline of " + mDeadline + "ms exceeded")),
+                        mDeadline, TimeUnit.MILLISECONDS);
+                    result.whenComplete((resp, t) -> watchdog.cancel(false));
+                }
+
+                sendAsyncAttempt(url, 1, result);
+            }
+            else {
+                result = CompletableFuture.supplyAsync(this::send, ASYNC_EXECUTOR);
+            }
+
+            result.whenComplete((resp, t) -> {
+                if (result.isCancelled())
+                    cancel();
+            });
+
+            return result;
+        }
+
+        private void sendAsyncAttempt(URL url, int attempt,
+                                      CompletableFuture<HttpRequester.Response> result) {
+            if (result.isDone())
+                return;
+
+            sendThroughTransport(url).thenAccept(resp -> {
+                resp.mAttempts = attempt;
+
+                if (mRetryPolicy == null || mCancellation != null ||
+                    (mCallBody != null && !mCallBody.isRepeatable()) ||
+                    !mRetryPolicy.shouldRetry(mMethod, resp, attempt)) {
+                    result.complete(resp);
+                    return;
+                }
+
+                long backoff = mRetryPolicy.backoffMillis(attempt, resp);
+
+                if (mDeadlineAt != 0 &&
+                    mDeadlineAt - System.nanoTime() <= TimeUnit.MILLISECONDS.toNanos(backoff)) {
+                    result.complete(resp);
+                    return;
+                }
+
+                L.out("Attempt " + attempt + " for " + url + " failed (" +
+                    (resp.hasBeenPerformed() ? resp.mResponseCode : "not performed") +
+                    "); retrying in " + backoff + "ms");
+
+                WATCHDOG.schedule(
+                    () -> sendAsyncAttempt(url, attempt + 1, result),
+                    backoff, TimeUnit.MILLISECONDS);
+            });
+        }
+
+        private HttpRequester.Response sendWithinDeadline() {
+            URL url;
+
+            try {
+                url = resolveURL();
+            } catch (MalformedURLException e) {
+                L.out("Malformed URL exception, not a valid URI: " + mURI);
+                HttpRequester.Response resp = new HttpRequester.Response();
+                resp.mException = e;
+                return resp;
+            }
+
+            if (mCoalescer != null && mCallBody == null &&
+                HttpRequestCoalescer.isApplicable(mMethod)) {
+                List<String> headers = new ArrayList<>();
+                for (int i = 0; i < mHeaderNames.length; i++) {
+                    headers.add(mHeaderNames[i]);
+                    headers.add(mHeaderValues[i]);
+                }
+                if (mExtraHeaders != null)
+                    headers.addAll(mExtraHeaders);
+
+                return mCoalescer.execute(
+                    mCoalescer.keyOf(mMethod, url.toString(), headers),
+                    () -> sendResolved(url), mDeadlineAt, mCancelled);
+            }
+
+            return sendResolved(url);
+        }
+
+        private HttpRequester.Response sendResolved(URL url) {
+            if (mHedgingPolicy != null && mHedgingPolicy.isApplicable(mMethod) &&
+                (mCallBody == null || mCallBody.isRepeatable()))
+                return sendHedged(url);
+
+            return sendRetrying(url, mConnection, null, null);
+        }
+
+        private URL resolveURL() throws MalformedURLException {
+            if (mURL != null)
+                return mURL;
+            if (!StringUtil.isValid(mURI))
+                throw new MalformedURLException("No URI has been specified");
+            return new URL(joinURI(mURIParts, mParams));
+        }
+
+        /**
+         * Sends the request, eventually retrying it accordingly to the retry policy.
+         * @param url the url to send the request to
+         * @param firstConnection if not null, the connection to use for
+         *                        the first attempt
+         * @param currentConnection if not null, keeps track of the connection in use
+         * @param stopped if not null, stops the retries once set
+         * @return the response of the last attempt
+         */
+        private HttpRequester.Response sendRetrying(URL url,
+                                                    HttpURLConnection firstConnection,
+                                                    AtomicReference<HttpURLConnection> currentConnection,
+                                                    AtomicBoolean stopped) {
+            int attempt = 0;
+            long rateLimitWait = 0;
+
+            while (true) {
+                attempt++;
+
+                if (mCancellation != null) {
+                    HttpRequester.Response resp = new HttpRequester.Response();
+                    resp.mException = mCancellation;
+                    resp.mAttempts = attempt - 1;
+                    resp.mRateLimitWait = rateLimitWait;
+                    return resp;
+                }
+
+                HttpURLConnection connection = null;
+
+                // The transport manages its own connections
+                if (mTransport == null) {
+                    connection =
+                        attempt == 1 && firstConnection != null ?
+                            firstConnection :
+                            openConnection(url);
+
+                    // Hedged attempts keep track of their own connection, the
+                    // winner one is set at the end
+                    if (currentConnection != null)
+                        currentConnection.set(connection);
+                    else
+                        mConnection = connection;
+                }
+
+                HttpRequester.Response resp = sendLimited(url, connection, stopped);
+                rateLimitWait += resp.mRateLimitWait;
+                resp.mAttempts = attempt;
+                resp.mRateLimitWait = rateLimitWait;
+
+                if (Thread.currentThread().isInterrupted())
+                    return resp;
+
+                if (mRetryPolicy == null || mCancellation != null ||
+                    (mCallBody != null && !mCallBody.isRepeatable()) ||
+                    !mRetryPolicy.shouldRetry(mMethod, resp, attempt) ||
+                    (stopped != null && stopped.get()))
+                    return resp;
+
+                long backoff = mRetryPolicy.backoffMillis(attempt, resp);
+
+                // Don't retry if the deadline would be exceeded while waiting
+                if (mDeadlineAt != 0 &&
+                    mDeadlineAt - System.nanoTime() <= TimeUnit.MILLISECONDS.toNanos(backoff))
+                    return resp;
+
+                L.out("Attempt " + attempt + " for " + url + " failed (" +
+                    (resp.hasBeenPerformed() ? resp.mResponseCode : "not performed") +
+                    "); retrying in " + backoff + "ms");
+
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return resp;
+                }
+
+                if (stopped != null && stopped.get())
+                    return resp;
+            }
+        }
+
+        /**
+         * Performs a single request attempt once the host has been resolved
+         * and the request is allowed by the rate limiter and by the
+         * concurrency limiter.
+         * @param url the url to send the request to
+         * @param connection the connection
+         * @param stopped set once the hedging race is over, may be null
+         * @return the response of the attempt
+         */
+        private HttpRequester.Response sendLimited(URL url, HttpURLConnection connection,
+                                                   AtomicBoolean stopped) {
+            final String host = url.getHost();
+            long rateLimitWait = 0;
+
+            // The host is resolved once per attempt, by the resolver if any,
+            // and the time spent is the one recorded by the metrics
+            long dns = -1;
+
+            if (mDnsResolver != null || (mMetrics != null && mTransport == null)) {
+                try {
+                    dns = HttpMetrics.resolve(host, mDnsResolver);
+                } catch (UnknownHostException e) {
+                    L.out("Can't resolve host " + host);
+                    HttpRequester.Response resp = new HttpRequester.Response();
+                    resp.mException = e;
+                    return resp;
+                }
+            }
+
+            try {
+                if (mRateLimiter != null)
+                    rateLimitWait = mRateLimiter.acquire(host);
+
+                if (mConcurrencyLimiter != null && !mConcurrencyLimiter.acquire(host)) {
+                    L.out("Concurrency limit exceeded for host " + host);
+                    HttpRequester.Response resp = new HttpRequester.Response();
+                    resp.mException = new IOException("Concurrency limit exceeded for host " + host);
+                    resp.mRateLimitWait = rateLimitWait;
+                    return resp;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                HttpRequester.Response resp = new HttpRequester.Response();
+                resp.mException = new InterruptedIOException(
+                    "Interrupted while waiting for sending the request");
+                resp.mRateLimitWait = rateLimitWait;
+                return resp;
+            }
+
+            HttpRequester.Response resp = null;
+            long start = System.nanoTime();
+
+            try {
+                resp = mTransport != null ? sendThroughTransport(url).join() : sendOnce(connection, dns);
+            } finally {
+                // Release even on unexpected exceptions, as dropped; the
+                // requests aborted by the client don't affect the limit
+                if (mConcurrencyLimiter != null) {
+                    if (mCancellation != null || (stopped != null && stopped.get()))
+                        mConcurrencyLimiter.abandon(host);
+                    else
+                        mConcurrencyLimiter.release(host, System.nanoTime() - start,
+                            resp == null || HttpConcurrencyLimiter.isDropped(resp));
+                }
+            }
+
+            resp.mRateLimitWait = rateLimitWait;
+
+            if (mRateLimiter != null && resp.hasBeenPerformed())
+                mRateLimiter.onResponse(host, resp.mResponseCode,
+                    resp.getHeaderField("Retry-After"));
+
+            return resp;
+        }
+
+        /**
+         * Sends the request and a duplicate of it if the first one doesn't
+         * complete within the hedging delay, returning the first obtained response.
+         * @param url the url to send the request to
+         * @return the first performed response, or the last failed one
+         */
+        private HttpRequester.Response sendHedged(URL url) {
+            final long delay = mHedgingPolicy.hedgeDelayMillis();
+            final long start = System.nanoTime();
+
+            final AtomicBoolean stopped = new AtomicBoolean(false);
+            final List<AtomicReference<HttpURLConnection>> connections = new ArrayList<>();
+            final CompletionService<HttpRequester.Response> completion =
+                new ExecutorCompletionService<>(HttpHedgingPolicy.EXECUTOR);
+            final Map<Future<HttpRequester.Response>, AtomicReference<HttpURLConnection>> branches =
+                new HashMap<>();
+
+            final HttpURLConnection firstConnection = mConnection;
+            AtomicReference<HttpURLConnection> primaryConnection = new AtomicReference<>();
+            connections.add(primaryConnection);
+            branches.put(
+                completion.submit(() -> sendRetrying(url, firstConnection, primaryConnection, stopped)),
+                primaryConnection);
+
+            HttpRequester.Response last = new HttpRequester.Response();
+            AtomicReference<HttpURLConnection> winner = null;
+
+            try {
+                int pending = 1;
+                Future<HttpRequester.Response> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+
+                if (done != null) {
+                    pending--;
+                    last = done.get();
+                    if (last.hasBeenPerformed())
+                        winner = branches.get(done);
+                }
+
+                if (winner == null) {
+                    L.out("Hedging request for " + url + " after " + delay + "ms");
+                    AtomicReference<HttpURLConnection> hedgeConnection = new AtomicReference<>();
+                    connections.add(hedgeConnection);
+                    branches.put(
+                        completion.submit(() -> sendRetrying(url, null, hedgeConnection, stopped)),
+                        hedgeConnection);
+                    pending++;
+                }
+
+                while (winner == null && pending > 0) {
+                    done = completion.take();
+                    pending--;
+                    last = done.get();
+                    if (last.hasBeenPerformed())
+                        winner = branches.get(done);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                L.out("Hedged request failed: " + StringUtil.toString(e));
+                last.mException = e;
+            } finally {
+                stopped.set(true);
+
+                // Abort the slower requests still in flight
+                for (AtomicReference<HttpURLConnection> connection : connections) {
+                    if (connection != winner && connection.get() != null)
+                        disconnectAsync(connection.get());
+                }
+
+                // The exchange of the winner is already done
+                for (Future<?> exchange : mOpenExchanges)
+                    exchange.cancel(true);
+            }
+
+            if (winner != null) {
+                mConnection = winner.get();
+                mHedgingPolicy.record((System.nanoTime() - start) / 1000000);
+            }
+
+            return last;
+        }
+
+        /**
+         * Performs a single request attempt over the given connection.
+         * @param connection the connection
+         * @param dnsNanos the time spent resolving the host for this attempt,
+         *                 or -1 if not resolved
+         * @return the response of the attempt
+         */
+        private HttpRequester.Response sendOnce(HttpURLConnection connection, long dnsNanos) {
+            HttpRequester.Response resp = new HttpRequester.Response();
+
+            if (connection == null) {
+                resp.mException = new IOException("Can't open connection for URI: " + mURI);
+                return resp;
+            }
+
+            mOpenConnections.add(connection);
+
+            // Checked after the add so that a concurrent cancel can't be missed
+            if (mCancellation != null) {
+                mOpenConnections.remove(connection);
+                resp.mException = mCancellation;
+                return resp;
+            }
+
+            HttpMetrics.Exchange exchange = mMetrics != null ?
+                mMetrics.begin(connection.getURL().getHost()) : null;
+
+            try {
+                // Cache
+                connection.setUseCaches(false);
+
+                // Method
+                connection.setRequestMethod(mMethod.name());
+
+                // Headers
+                for (int i = 0; i < mHeaderNames.length; i++)
+                    connection.setRequestProperty(mHeaderNames[i], mHeaderValues[i]);
+
+                if (mExtraHeaders != null) {
+                    for (int i = 0; i < mExtraHeaders.size(); i += 2)
+                        connection.setRequestProperty(mExtraHeaders.get(i), mExtraHeaders.get(i + 1));
+                }
+
+                // Redirect
+                connection.setInstanceFollowRedirects(mRedirect);
+
+                // Timeouts, never beyond the deadline
+                int connectionTimeout = timeoutWithinDeadline(mConnectionTimeout);
+                if (connectionTimeout > 0)
+                    connection.setConnectTimeout(connectionTimeout);
+
+                int readTimeout = timeoutWithinDeadline(mReadTimeout);
+                if (readTimeout > 0)
+                    connection.setReadTimeout(readTimeout);
+
+                // Content
+                if (mCallBody != null) {
+                    connection.setDoOutput(true);
+
+                    // Stream the body instead of letting the connection buffer it
+                    long length = mCallBody.length();
+                    if (length >= 0)
+                        connection.setFixedLengthStreamingMode(length);
+                    else
+                        connection.setChunkedStreamingMode(CHUNK_SIZE);
+                }
+
+                if (exchange != null) {
+                    exchange.resolved(dnsNanos);
+                    exchange.connecting(connection);
+                }
+
+                connection.connect();
+
+                if (exchange != null)
+                    exchange.connected();
+
+                if (mCallBody != null) {
+                    try (OutputStream out = exchange != null ?
+                            exchange.meter(connection.getOutputStream()) :
+                            connection.getOutputStream()) {
+                        mCallBody.writeTo(out);
+                    }
+
+                    if (exchange != null)
+                        exchange.sent();
+                }
+
+                resp.mResponseCode = connection.getResponseCode();
+                resp.mContentLength = connection.getContentLengthLong();
+                resp.mHeaderFields = connection.getHeaderFields();
+
+                if (exchange != null)
+                    exchange.headers(resp.mResponseCode);
+
+                InputStream is;
+
+                if (resp.mResponseCode >= 200 && resp.mResponseCode < 400)
+                    is = connection.getInputStream();
+                else
+                    is = connection.getErrorStream();
+
+                if (is != null && exchange != null)
+                    is = exchange.meter(is);
+
+                if (is != null)
+                    is = new CancellableInputStream(is);
+
+                String line;
+                StringBuilder sb;
+                BufferedReader br;
+
+                if (is != null) {
+                    // Read standard in
+                    sb = new StringBuilder();
+                    InputStreamReader isr = new InputStreamReader(is);
+                    br = new BufferedReader(isr);
+
+                    if ((line = br.readLine()) != null)
+                        sb.append(line); // Avoid the last \n by handling the first
+                    // line apart from the others
+
+                    while ((line = br.readLine()) != null) {
+                        sb.append("\n");
+                        sb.append(line);
+                    }
+
+                    resp.mResponseBody = sb.toString();
+                    br.close();
+                    isr.close();
+                    is.close();
+                }
+                else {
+                    connection.disconnect();
+                }
+
+                // Not disconnected if the body has been read: closing its
+                // stream returns the connection to the keep-alive pool,
+                // while a disconnect would close an idle one
+                return resp;
+            } catch (ProtocolException e) {
+                L.out("Protocol exception, not a valid request method: " + mMethod);
+                L.out(StringUtil.toString(e));
+                resp.mException = e;
+            } catch (IOException e) {
+                if (mCancellation != null) {
+                    // The failure is just a consequence of the cancel
+                    resp.mException = mCancellation;
+                }
+                else {
+                    L.out("IO exception, can't perform HTTP request");
+                    L.out(StringUtil.toString(e));
+                    resp.mException = e;
+                }
+            } finally {
+                mOpenConnections.remove(connection);
+
+                if (exchange != null)
+                    exchange.finish(!resp.hasBeenPerformed());
+            }
+            return resp;
+        }
+
+        /**
+         * Performs a single request attempt through the transport.
+         * @param url the url to send the request to
+         * @return the future response of the attempt, which never
+         *         completes exceptionally
+         */
+        private CompletableFuture<HttpRequester.Response> sendThroughTransport(URL url) {
+            CompletableFuture<HttpRequester.Response> result = new CompletableFuture<>();
+
+            // Later headers override the ones with the same name
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (int i = 0; i < mHeaderNames.length; i++)
+                headers.put(mHeaderNames[i], mHeaderValues[i]);
+            if (mExtraHeaders != null) {
+                for (int i = 0; i < mExtraHeaders.size(); i += 2)
+                    headers.put(mExtraHeaders.get(i), mExtraHeaders.get(i + 1));
+            }
+
+            HttpTransport.Request request;
+            try {
+                request = new HttpTransport.Request(
+                    mMethod, url.toURI(), headers, mCallBody, mRedirect,
+                    // Not shortened: the deadline is enforced by cancelling the
+                    // exchange, and transports may pool by connection timeout
+                    mConnectionTimeout,
+                    timeoutWithinDeadline(mReadTimeout));
+            } catch (URISyntaxException e) {
+                L.out("Can't convert URL to URI: " + url);
+                HttpRequester.Response resp = new HttpRequester.Response();
+                resp.mException = e;
+                result.complete(resp);
+                return result;
+            }
+
+            HttpMetrics.Exchange exchange = mMetrics != null ? mMetrics.begin(url.getHost()) : null;
+
+            CompletableFuture<HttpRequester.Response> pending;
+            try {
+                pending = mTransport.sendAsync(request);
+            } catch (RuntimeException e) {
+                pending = new CompletableFuture<>();
+                pending.completeExceptionally(e);
+            }
+
+            mOpenExchanges.add(pending);
+
+            // Checked after the add so that a concurrent cancel can't be missed
+            if (mCancellation != null)
+                pending.cancel(true);
+
+            final CompletableFuture<HttpRequester.Response> exchangeFuture = pending;
+
+            pending.whenComplete((resp, t) -> {
+                mOpenExchanges.remove(exchangeFuture);
+
+                if (resp == null) {
+                    resp = new HttpRequester.Response();
+
+                    if (mCancellation != null) {
+                        // The failure is just a consequence of the cancel
+                        resp.mException = mCancellation;
+                    }
+                    else {
+                        Throwable cause = t instanceof CompletionException && t.getCause() != null ?
+                            t.getCause() : t;
+                        L.out("Transport exception, can't perform HTTP request");
+                        L.out(StringUtil.toString(cause));
+                        resp.mException = cause instanceof Exception ?
+                            (Exception) cause : new ExecutionException(cause);
+                    }
+                }
+
+                if (exchange != null) {
+                    if (resp.hasBeenPerformed())
+                        exchange.completed(resp.mResponseCode);
+                    exchange.finish(!resp.hasBeenPerformed());
+                }
+
+                result.complete(resp);
+            });
+
+            return result;
+        }
+
+        /**
+         * Stream of a response body that stops being read once the call
+         * is cancelled; each read is bounded by the read timeout, thus a
+         * cancelled call stops reading within it.
+         */
+        private class CancellableInputStream extends FilterInputStream {
+
+            private CancellableInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                ensureNotCancelled();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                ensureNotCancelled();
+                return super.read(b, off, len);
+            }
+
+            private void ensureNotCancelled() throws IOException {
+                IOException cancellation = mCancellation;
+                if (cancellation != null)
+                    throw new InterruptedIOException(cancellation.getMessage());
+            }
+        }
+
+        /**
+         * Returns the given timeout shortened to the time left before
+         * the deadline, if any.
+         * @param timeout the timeout in millis, or 0 for no timeout
+         * @return the timeout to use, or 0 for no timeout
+         */
+        private int timeoutWithinDeadline(int timeout) {
+            if (mDeadlineAt == 0)
+                return timeout;
+
+            // At least 1, since 0 would mean no timeout at all
+            long left = Math.max(1,
+                TimeUnit.NANOSECONDS.toMillis(mDeadlineAt - System.nanoTime()));
+
+            return (int) (timeout > 0 ? Math.min(timeout, left) : Math.min(Integer.MAX_VALUE, left));
+        }
+    }
+
+    /**
+     * Closes the given connection in background.
+     * @param connection the connection
+     */
+    private static void disconnectAsync(HttpURLConnection connection) {
+        DISCONNECT_EXECUTOR.execute(connection::disconnect);
+    }
+
+    /**
+     * Opens a new connection for the given url.
+     * @param url the url
+     * @return the connection, or null if it can't be opened
+     */
+    private static HttpURLConnection openConnection(URL url) {
+        try {
+            return (HttpURLConnection) url.openConnection();
+        } catch (IOException e) {
+            L.out("Can't open connection for URL: " + url);
+            return null;
+        }
+    }
+
+    /**
+     * Splits the uri in literal parts and path parameter names.
+     * @param uri the uri
+     * @return the literal parts at even indexes and the parameter names
+     *         at odd indexes
+     */
+    private static String[] splitURI(String uri) {
+        if (uri == null || uri.indexOf('{') < 0)
+            return new String[] { uri };
+
+        List<String> parts = new ArrayList<>();
+        int literalStart = 0;
+        int open;
+
+        while ((open = uri.indexOf('{', literalStart)) >= 0) {
+            int close = uri.indexOf('}', open);
+            if (close < 0)
+                break;
+            parts.add(uri.substring(literalStart, open));
+            parts.add(uri.substring(open + 1, close));
+            literalStart = close + 1;
+        }
+
+        parts.add(uri.substring(literalStart));
+
+        return parts.toArray(new String[0]);
+    }
+
+    /**
+     * Joins the split uri replacing the path parameters with the given values.
+     * @param parts the split uri
+     * @param params the values of the parameters, may be null
+     * @return the uri
+     */
+    private static String joinURI(String[] parts, Map<String, String> params) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < parts.length; i++) {
+            if (i % 2 == 0) {
+                sb.append(parts[i]);
+            }
+            else {
+                String value = params != null ? params.get(parts[i]) : null;
+                if (value != null)
+                    appendPathSegment(sb, value);
+                else
+                    sb.append('{').append(parts[i]).append('}');
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Appends the given value percent-encoded as a path segment: every
+     * character but the unreserved ones and the ones allowed in a segment
+     * is encoded as UTF-8 bytes.
+     * @param sb the builder of the uri
+     * @param value the value of the segment
+     */
+    private static void appendPathSegment(StringBuilder sb, String value) {
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                "-._~!$&'()*+,;=:@".indexOf(c) >= 0)
+                sb.append(c);
+            else
+                sb.append('%')
+                  .append(Character.toUpperCase(Character.forDigit((c >> 4) & 0xF, 16)))
+                  .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+        }
+    }
+}
@@ -8,10 +8,12 @@ import javax.net.ssl.*;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.ProtocolException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Entity able to perform HTTP request using different {@link RequestMethod}
@@ -25,10 +27,56 @@ public class HttpRequester {
      * The response obtained from a requester request.
      */
     public static class Response {
-        private Integer mResponseCode;
-        private String mResponseBody;
-        private long mContentLength;
-        private Map<String, List<String>> mHeaderFields;
+        Integer mResponseCode;
+        String mResponseBody;
+        long mContentLength;
+        Map<String, List<String>> mHeaderFields;
+        Exception mException;
+        int mAttempts;
+        long mRateLimitWait;
+
+        /**
+         * Creates the response of a performed request.
+         * <p>
+         * Meant for the {@link HttpTransport} implementations: the body is
+         * normalized as the built-in transport does, thus the line
+         * terminators are replaced by '\n' and the last one is dropped.
+         * @param responseCode the response code
+         * @param headerFields the response headers
+         * @param responseBody the response body, or null if there is no body
+         * @return the response
+         */
+        public static Response of(int responseCode,
+                                  Map<String, List<String>> headerFields,
+                                  String responseBody) {
+            Response resp = new Response();
+            resp.mResponseCode = responseCode;
+            resp.mHeaderFields = headerFields;
+            resp.mContentLength = -1;
+
+            String contentLength = resp.getHeaderField("Content-Length");
+            if (contentLength != null) {
+                try {
+                    resp.mContentLength = Long.parseLong(contentLength.trim());
+                } catch (NumberFormatException ignored) {}
+            }
+
+            if (responseBody != null) {
+                StringBuilder sb = new StringBuilder();
+                try (BufferedReader br = new BufferedReader(new StringReader(responseBody))) {
+                    String line;
+                    if ((line = br.readLine()) != null)
+                        sb.append(line);
+                    while ((line = br.readLine()) != null)
+                        sb.append("\n").append(line);
+                } catch (IOException ignored) {
+                    // Can't happen for a string
+                }
+                resp.mResponseBody = sb.toString();
+            }
+
+            return resp;
+        }
 
         /**
          * Returns whether the requests has been performed successfully.
@@ -65,6 +113,50 @@ public class HttpRequester {
         public Map<String, List<String>> getHeaderFields() {
             return mHeaderFields;
         }
+
+        /**
+         * Returns the first value of the given response header, ignoring
+         * the case of the header name.
+         * @param name the header name
+         * @return the header value, or null if the header is not present
+         */
+        public String getHeaderField(String name) {
+            if (mHeaderFields == null)
+                return null;
+
+            for (Map.Entry<String, List<String>> header : mHeaderFields.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey()) &&
+                    header.getValue() != null && !header.getValue().isEmpty())
+                    return header.getValue().get(0);
+            }
+
+            return null;
+        }
+
+        /**
+         * Returns the exception that prevented the request to be performed.
+         * @return the exception occurred during the request, or null
+         */
+        public Exception getException() {
+            return mException;
+        }
+
+        /**
+         * Returns the amount of attempts made for obtain this response.
+         * @return the amount of attempts
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /**
+         * Returns the time waited for the permits of the rate limiter,
+         * among all the attempts.
+         * @return the millis waited for the rate limiter
+         */
+        public long getRateLimitWaitMillis() {
+            return mRateLimitWait;
+        }
     }
 
     /**
@@ -89,7 +181,8 @@ public class HttpRequester {
      */
     public enum ContentType {
         PLAIN("text/plain"),
-        JSON("application/json");
+        JSON("application/json"),
+        OCTET_STREAM("application/octet-stream");
 
         private String name;
 
@@ -106,14 +199,27 @@ public class HttpRequester {
     private boolean mRedirect = true;
 
     private String mURI = null;
-    private String mOutData = null;
+    private HttpRequestBody mBody = null;
     private String mEncodedUserPass = null;
 
     private String mUserAgent = null;
     private String mAccept = null;
+    private final Map<String, String> mHeaders = new LinkedHashMap<>();
 
     private int mConnectionTimeout = 0;
+    private int mReadTimeout = 0;
+    private long mDeadline = 0;
+
+    private HttpRetryPolicy mRetryPolicy = null;
+    private HttpHedgingPolicy mHedgingPolicy = null;
+    private HttpRateLimiter mRateLimiter = null;
+    private HttpConcurrencyLimiter mConcurrencyLimiter = null;
+    private HttpRequestCoalescer mCoalescer = null;
+    private HttpDnsResolver mDnsResolver = null;
+    private HttpMetrics mMetrics = null;
+    private HttpTransport mTransport = null;
 
+    private volatile HttpRequestTemplate.Call mCall = null;
 
     /**
      * Creates an http requester.
@@ -271,13 +377,71 @@ public class HttpRequester {
 
     /**
      * Sets the body.
+     * <p>
+     * The string is encoded as UTF-8.
      * @param contentType the content type of the body
      * @param bodyData the body string
      * @return the requester
      */
     public HttpRequester body(ContentType contentType, String bodyData) {
+        return body(contentType,
+            StringUtil.isValid(bodyData) ? HttpRequestBody.of(bodyData) : null);
+    }
+
+    /**
+     * Sets the body.
+     * @param contentType the content type of the body
+     * @param bodyData the body bytes
+     * @return the requester
+     */
+    public HttpRequester body(ContentType contentType, byte[] bodyData) {
+        return body(contentType, HttpRequestBody.of(bodyData));
+    }
+
+    /**
+     * Sets the body.
+     * @param contentType the content type of the body
+     * @param bodyData the buffer containing the body bytes
+     * @return the requester
+     */
+    public HttpRequester body(ContentType contentType, ByteBuffer bodyData) {
+        return body(contentType, HttpRequestBody.of(bodyData));
+    }
+
+    /**
+     * Sets the body to the content of the given file, which is streamed
+     * while the request is sent.
+     * @param contentType the content type of the body
+     * @param bodyFile the file to upload
+     * @return the requester
+     */
+    public HttpRequester body(ContentType contentType, File bodyFile) {
+        return body(contentType, HttpRequestBody.of(bodyFile));
+    }
+
+    /**
+     * Sets the body to the content of the given stream, which is streamed
+     * while the request is sent.
+     * @param contentType the content type of the body
+     * @param bodyStream the stream to upload
+     * @param length the amount of bytes of the stream, or -1 if unknown
+     * @return the requester
+     *
+     * @see HttpRequestBody#of(InputStream, long)
+     */
+    public HttpRequester body(ContentType contentType, InputStream bodyStream, long length) {
+        return body(contentType, HttpRequestBody.of(bodyStream, length));
+    }
+
+    /**
+     * Sets the body.
+     * @param contentType the content type of the body
+     * @param body the body
+     * @return the requester
+     */
+    public HttpRequester body(ContentType contentType, HttpRequestBody body) {
         mContentType = contentType;
-        mOutData = bodyData;
+        mBody = body;
         return this;
     }
 
@@ -312,6 +476,17 @@ public class HttpRequester {
         return this;
     }
 
+    /**
+     * Sets an additional header.
+     * @param name the header name
+     * @param value the header value
+     * @return the requester
+     */
+    public HttpRequester header(String name, String value) {
+        mHeaders.put(name, value);
+        return this;
+    }
+
     /**
      * Sets the connection timeout.
      * @param millis the amount of millis to wait before interrupt the connection
@@ -322,6 +497,170 @@ public class HttpRequester {
         return this;
     }
 
+    /**
+     * Sets the read timeout, which is the maximum time to wait for
+     * data from the server (either the headers or each chunk of the body).
+     * @param millis the amount of millis to wait before interrupt the read,
+     *               or 0 for wait indefinitely
+     * @return the requester
+     */
+    public HttpRequester readTimeout(int millis) {
+        mReadTimeout = millis;
+        return this;
+    }
+
+    /**
+     * Sets the maximum time the whole request can take, including every
+     * attempt: connection, upload of the body, wait of the headers and
+     * download of the body.
+     * <p>
+     * The connection and read timeouts of each attempt are shortened to
+     * the time left before the deadline; once the deadline is exceeded the
+     * request is cancelled and the response has a
+     * {@link java.net.SocketTimeoutException} as exception. A read already
+     * waiting for the body when the deadline expires is not interrupted,
+     * thus the request can end up to a read timeout after the deadline.
+     * @param millis the deadline in millis, or 0 for no deadline
+     * @return the requester
+     */
+    public HttpRequester deadline(long millis) {
+        mDeadline = millis;
+        return this;
+    }
+
+    /**
+     * Sets the policy used for retry the request when it fails.
+     * @param retryPolicy the retry policy, or null for not retry
+     * @return the requester
+     */
+    public HttpRequester retryPolicy(HttpRetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Sets the policy used for send a duplicate request when the
+     * response is slower than usual.
+     * <p>
+     * The same policy should be shared between requests toward the same
+     * upstream, since the hedging delay depends on the latencies it observed.
+     * @param hedgingPolicy the hedging policy, or null for disable hedging
+     * @return the requester
+     */
+    public HttpRequester hedging(HttpHedgingPolicy hedgingPolicy) {
+        mHedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    /**
+     * Sets the rate limiter that has to be consulted before each attempt.
+     * <p>
+     * The same rate limiter should be shared between the requesters.
+     * @param rateLimiter the rate limiter, or null for not limit the rate
+     * @return the requester
+     */
+    public HttpRequester rateLimiter(HttpRateLimiter rateLimiter) {
+        mRateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Sets the adaptive limiter of the requests in flight that has to be
+     * consulted before each attempt.
+     * <p>
+     * The same limiter should be shared between the requesters.
+     * @param concurrencyLimiter the concurrency limiter, or null for not
+     *                           limit the requests in flight
+     * @return the requester
+     */
+    public HttpRequester concurrencyLimiter(HttpConcurrencyLimiter concurrencyLimiter) {
+        mConcurrencyLimiter = concurrencyLimiter;
+        return this;
+    }
+
+    /**
+     * Sets the coalescer that makes identical 'GET' and 'HEAD' requests
+     * in flight at the same time share a single network call.
+     * <p>
+     * The same coalescer should be shared between the requesters.
+     * @param coalescer the coalescer, or null for not coalesce requests
+     * @return the requester
+     */
+    public HttpRequester coalescer(HttpRequestCoalescer coalescer) {
+        mCoalescer = coalescer;
+        return this;
+    }
+
+    /**
+     * Sets the resolver consulted for the host before each connection, which
+     * keeps the JVM's address cache warm for the hosts in use and makes the
+     * requests toward hosts recently found unresolvable fail fast.
+     * <p>
+     * The same resolver should be shared between the requesters.
+     * @param dnsResolver the resolver, or null for rely only on the JVM's resolver
+     * @return the requester
+     */
+    public HttpRequester dnsResolver(HttpDnsResolver dnsResolver) {
+        mDnsResolver = dnsResolver;
+        return this;
+    }
+
+    /**
+     * Sets the metrics the requests have to be recorded into.
+     * <p>
+     * The same metrics should be shared between the requesters.
+     * @param metrics the metrics, or null for not record the requests
+     * @return the requester
+     */
+    public HttpRequester metrics(HttpMetrics metrics) {
+        mMetrics = metrics;
+        return this;
+    }
+
+    /**
+     * Sets the transport that performs the exchanges in place of the
+     * built-in {@link HttpURLConnection} one (e.g. {@link HttpClientTransport},
+     * which multiplexes the requests over HTTP/2).
+     * <p>
+     * The same transport should be shared between the requesters.
+     * @param transport the transport, or null for use the built-in one
+     * @return the requester
+     */
+    public HttpRequester transport(HttpTransport transport) {
+        mTransport = transport;
+        return this;
+    }
+
+    /**
+     * Returns the uri of this requester.
+     * @return the uri of this requester
+     */
+    public String getURI() {
+        return mURI;
+    }
+
+    /**
+     * Returns the host of the uri of this requester.
+     * @return the host of the uri, or null if the uri is not a valid url
+     */
+    public String getHost() {
+        if (!StringUtil.isValid(mURI))
+            return null;
+        try {
+            return new URL(mURI).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the request method of this requester.
+     * @return the request method of this requester
+     */
+    public RequestMethod getMethod() {
+        return mMethod;
+    }
+
     /**
      * Returns the underlying connection.
      * @return the underlying connection.
@@ -356,138 +695,115 @@ public class HttpRequester {
         return this;
     }
 
+    /**
+     * Compiles this requester into an immutable template that can be
+     * sent many times, concurrently too.
+     * <p>
+     * If the body is not repeatable (e.g. an {@link java.io.InputStream})
+     * the template can be sent only once.
+     * <p>
+     * Further changes to this requester don't affect the returned template.
+     * @return the template for the request of this requester
+     */
+    public HttpRequestTemplate compile() {
+        Map<String, String> headers = new LinkedHashMap<>();
+
+        // Content-Type
+        if (mContentType != null)
+            headers.put("Content-Type", mContentType.name);
+
+        // User-Agent
+        if (StringUtil.isValid(mUserAgent))
+            headers.put("User-Agent", mUserAgent);
+
+        // Accept
+        if (StringUtil.isValid(mAccept))
+            headers.put("Accept", mAccept);
+
+        if (StringUtil.isValid(mEncodedUserPass))
+            headers.put("Authorization", "Basic " + mEncodedUserPass);
+
+        headers.putAll(mHeaders);
+
+        return new HttpRequestTemplate(
+            mMethod, mURI, headers, mBody,
+            mRedirect, mConnectionTimeout,
+            mReadTimeout, mDeadline,
+            mRetryPolicy, mHedgingPolicy,
+            mRateLimiter, mConcurrencyLimiter,
+            mCoalescer, mDnsResolver,
+            mMetrics, mTransport
+        );
+    }
+
     /**
      * Sends a request for the built requester and returns a response object.
+     * <p>
+     * If a {@link HttpRetryPolicy} has been set, the request is retried
+     * accordingly to it; if a {@link HttpHedgingPolicy} has been set, a
+     * duplicate request is sent if the first one is too slow and the
+     * first obtained response is returned.
      * @return the response of this request
      */
     public Response send() {
-        if (mConnection == null)
-            initialized();
-
-        Response resp = new Response();
+        HttpRequestTemplate.Call call = compile().newCall().connection(mConnection);
+        mCall = call;
 
         try {
-            // Cache
-            mConnection.setUseCaches(false);
-
-            // Method
-            mConnection.setRequestMethod(mMethod.name);
-
-            // Headers
-
-            // Content-Type
-            if (mContentType != null)
-                mConnection.setRequestProperty("Content-Type", mContentType.name);
-
-
-            // User-Agent
-            if (StringUtil.isValid(mUserAgent))
-                mConnection.setRequestProperty("User-Agent", mUserAgent);
-
-            // Accept
-            if (StringUtil.isValid(mAccept))
-                mConnection.setRequestProperty("Accept", mAccept);
-
-            // Redirect
-            mConnection.setInstanceFollowRedirects(mRedirect);
-
-            // Connection timeout
-            if (mConnectionTimeout > 0)
-                mConnection.setConnectTimeout(mConnectionTimeout);
-
-            if (StringUtil.isValid(mEncodedUserPass)) {
-                mConnection.setRequestProperty("Authorization", "Basic " + mEncodedUserPass);
-            }
-
-            // Content
-            if (StringUtil.isValid(mOutData)) {
-                mConnection.setDoOutput(true);
-                DataOutputStream dataOut = new DataOutputStream(mConnection.getOutputStream());
-                dataOut.writeBytes(mOutData);
-                dataOut.close();
-            }
-
-            mConnection.connect();
-
-            resp.mResponseCode = mConnection.getResponseCode();
-            resp.mContentLength = mConnection.getContentLengthLong();
-            resp.mHeaderFields = mConnection.getHeaderFields();
-
-            InputStream is;
-
-            if (resp.mResponseCode >= 200 && resp.mResponseCode < 400)
-                is = mConnection.getInputStream();
-            else
-                is = mConnection.getErrorStream();
-
-            String line;
-            StringBuilder sb;
-            BufferedReader br;
-
-            if (is != null) {
-                // Read standard in
-                sb = new StringBuilder();
-                InputStreamReader isr = new InputStreamReader(is);
-                br = new BufferedReader(isr);
-
-                if ((line = br.readLine()) != null)
-                    sb.append(line); // Avoid the last \n by handling the first
-                // line apart from the others
+            Response resp = call.send();
+            mConnection = call.getConnection();
+            return resp;
+        } finally {
+            mCall = null;
+        }
+    }
 
-                while ((line = br.readLine()) != null) {
-                    sb.append("\n");
-                    sb.append(line);
-                }
+    /**
+     * Sends a request for the built requester asynchronously.
+     * <p>
+     * Without an {@link HttpTransport}, the request is sent on a
+     * background thread.
+     * @return the future response of this request
+     * @see HttpRequestTemplate.Call#sendAsync()
+     */
+    public CompletableFuture<Response> sendAsync() {
+        HttpRequestTemplate.Call call = compile().newCall();
+        mCall = call;
 
-                resp.mResponseBody = sb.toString();
-                br.close();
-                isr.close();
-                is.close();
-            }
+        CompletableFuture<Response> future = call.sendAsync();
+        future.whenComplete((resp, t) -> {
+            if (mCall == call)
+                mCall = null;
+        });
 
-            mConnection.disconnect();
+        return future;
+    }
 
-            return resp;
-        } catch (ProtocolException e) {
-            L.out("Protocol exception, not a valid request method: " + mMethod);
-            L.out(StringUtil.toString(e));
-        } catch (MalformedURLException e) {
-            L.out("Malformed URL exception, not a valid URI: " + mURI);
-            L.out(StringUtil.toString(e));
-        } catch (IOException e) {
-            L.out("IO exception, can't perform HTTP request");
-            L.out(StringUtil.toString(e));
-        }
-        return resp;
+    /**
+     * Cancels the request being sent by {@link #send()} or
+     * {@link #sendAsync()}, if any.
+     * <p>
+     * This method can be invoked from any thread.
+     * @see HttpRequestTemplate.Call#cancel()
+     */
+    public void cancel() {
+        HttpRequestTemplate.Call call = mCall;
+        if (call != null)
+            call.cancel();
     }
 
     /**
      * Trust all the certificates for every HTTP connection established
      * (from this requester and from other classes too).
+     * <p>
+     * The underlying {@link SSLContext} is created only once, so that
+     * its TLS sessions cache is shared even if this method is called
+     * more than once.
      */
     public static void enableTrustAllSocketFactory() {
-        // Create a trust manager that does not validate certificate chains
-        TrustManager[] trustAllCerts = new TrustManager[]{
-            new X509TrustManager() {
-                public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-                    return null;
-                }
-
-                public void checkClientTrusted(
-                    java.security.cert.X509Certificate[] certs, String authType) {
-                }
-
-                public void checkServerTrusted(
-                    java.security.cert.X509Certificate[] certs, String authType) {
-                }
-            }
-        };
-
         try {
             // Install the all-trusting trust manager
-            SSLContext sc = SSLContext.getInstance("SSL");
-            sc.init(null, trustAllCerts, new java.security.SecureRandom());
-            HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
+            HttpsURLConnection.setDefaultSSLSocketFactory(TrustAllContextHolder.get());
 
             // Create all-trusting host name verifier
             HostnameVerifier allHostsValid = (hostname, session) -> true;
@@ -498,4 +814,55 @@ public class HttpRequester {
             L.out("Failed to set trust all socket factory!");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Lazily creates the all-trusting socket factory.
+     * <p>
+     * The initialization never throws, since a class whose initialization
+     * failed can't be used anymore; the failure is kept and reported by
+     * {@link #get()} instead.
+     */
+    private static class TrustAllContextHolder {
+        private static Exception sFailure;
+        private static final SSLSocketFactory SOCKET_FACTORY = createSocketFactory();
+
+        /**
+         * Returns the all-trusting socket factory.
+         * @return the socket factory
+         * @throws IOException if the socket factory can't be created
+         */
+        static SSLSocketFactory get() throws IOException {
+            if (SOCKET_FACTORY == null)
+                throw new IOException("Can't create trust all SSL context", sFailure);
+            return SOCKET_FACTORY;
+        }
+
+        private static SSLSocketFactory createSocketFactory() {
+            // Create a trust manager that does not validate certificate chains
+            TrustManager[] trustAllCerts = new TrustManager[]{
+                new X509TrustManager() {
+                    public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+                        return null;
+                    }
+
+                    public void checkClientTrusted(
+                        java.security.cert.X509Certificate[] certs, String authType) {
+                    }
+
+                    public void checkServerTrusted(
+                        java.security.cert.X509Certificate[] certs, String authType) {
+                    }
+                }
+            };
+
+            try {
+                SSLContext sc = SSLContext.getInstance("SSL");
+                sc.init(null, trustAllCerts, new java.security.SecureRandom());
+                return sc.getSocketFactory();
+            } catch (Exception e) {
+                sFailure = e;
+                return null;
+            }
+        }
+    }
+}
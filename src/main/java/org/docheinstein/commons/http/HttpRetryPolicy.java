@@ -0,0 +1,206 @@
+package org.docheinstein.commons.http;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Policy that decides whether and when a failed {@link HttpRequester}
+ * request should be retried.
+ * <p>
+ * The delay between attempts grows exponentially and is randomized
+ * by a jitter factor so that clients that failed together don't retry
+ * together.
+ * <p>
+ * By default, only idempotent request methods are retried.
+ */
+public class HttpRetryPolicy {
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final long DEFAULT_INITIAL_BACKOFF = 100;
+    private static final long DEFAULT_MAX_BACKOFF = 10000;
+    private static final double DEFAULT_MULTIPLIER = 2;
+    private static final double DEFAULT_JITTER = 0.5;
+    private static final int[] DEFAULT_RETRY_STATUS_CODES = { 429, 502, 503, 504 };
+
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long mInitialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private long mMaxBackoff = DEFAULT_MAX_BACKOFF;
+    private double mMultiplier = DEFAULT_MULTIPLIER;
+    private double mJitter = DEFAULT_JITTER;
+    private final Set<Integer> mRetryStatusCodes = new HashSet<>();
+    private boolean mRetryOnException = true;
+    private boolean mRetryNonIdempotent = false;
+
+    /**
+     * Creates a retry policy with the default parameters.
+     * @return a retry policy
+     */
+    public static HttpRetryPolicy create() {
+        return new HttpRetryPolicy();
+    }
+
+    /**
+     * Creates a retry policy that performs at most the given attempts.
+     * @param maxAttempts the maximum amount of attempts, including the first one
+     * @return a retry policy
+     */
+    public static HttpRetryPolicy create(int maxAttempts) {
+        return create().maxAttempts(maxAttempts);
+    }
+
+    private HttpRetryPolicy() {
+        for (int code : DEFAULT_RETRY_STATUS_CODES)
+            mRetryStatusCodes.add(code);
+    }
+
+    /**
+     * Sets the maximum amount of attempts, including the first one.
+     * @param maxAttempts the maximum amount of attempts
+     * @return this policy
+     */
+    public HttpRetryPolicy maxAttempts(int maxAttempts) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+        return this;
+    }
+
+    /**
+     * Sets the delay before the first retry and the maximum delay between
+     * two attempts.
+     * @param initialMillis the delay before the first retry
+     * @param maxMillis the maximum delay between two attempts
+     * @return this policy
+     */
+    public HttpRetryPolicy backoff(long initialMillis, long maxMillis) {
+        mInitialBackoff = Math.max(0, initialMillis);
+        mMaxBackoff = Math.max(mInitialBackoff, maxMillis);
+        return this;
+    }
+
+    /**
+     * Sets the factor the delay is multiplied by after each attempt.
+     * @param multiplier the backoff multiplier
+     * @return this policy
+     */
+    public HttpRetryPolicy multiplier(double multiplier) {
+        mMultiplier = Math.max(1, multiplier);
+        return this;
+    }
+
+    /**
+     * Sets the jitter, as a fraction of the delay, that is randomly
+     * subtracted from each delay.
+     * <p>
+     * 0 means no jitter, 1 means that each delay is randomly chosen
+     * between 0 and the computed delay.
+     * @param jitter the jitter fraction, between 0 and 1
+     * @return this policy
+     */
+    public HttpRetryPolicy jitter(double jitter) {
+        mJitter = Math.min(1, Math.max(0, jitter));
+        return this;
+    }
+
+    /**
+     * Sets the response codes that cause a retry, replacing the default
+     * ones (429, 502, 503, 504).
+     * @param statusCodes the response codes to retry on
+     * @return this policy
+     */
+    public HttpRetryPolicy retryOnStatusCodes(int... statusCodes) {
+        mRetryStatusCodes.clear();
+        for (int code : statusCodes)
+            mRetryStatusCodes.add(code);
+        return this;
+    }
+
+    /**
+     * Whether the request should be retried if it has not been performed
+     * because of an exception (e.g. connection refused or reset).
+     * @param retry whether retry on exception
+     * @return this policy
+     */
+    public HttpRetryPolicy retryOnException(boolean retry) {
+        mRetryOnException = retry;
+        return this;
+    }
+
+    /**
+     * Whether non idempotent requests (i.e. 'POST') should be retried too.
+     * @param retry whether retry non idempotent requests
+     * @return this policy
+     */
+    public HttpRetryPolicy retryNonIdempotentMethods(boolean retry) {
+        mRetryNonIdempotent = retry;
+        return this;
+    }
+
+    /**
+     * Returns whether the given request method is idempotent.
+     * @param method the request method
+     * @return whether the method is idempotent
+     */
+    public static boolean isIdempotent(HttpRequester.RequestMethod method) {
+        return method != HttpRequester.RequestMethod.POST;
+    }
+
+    /**
+     * Returns whether a request that obtained the given response
+     * should be retried.
+     * @param method the request method
+     * @param response the response of the last attempt
+     * @param attempt the amount of attempts already made
+     * @return whether the request should be retried
+     */
+    public boolean shouldRetry(HttpRequester.RequestMethod method,
+                               HttpRequester.Response response,
+                               int attempt) {
+        if (attempt >= mMaxAttempts)
+            return false;
+
+        if (!mRetryNonIdempotent && !isIdempotent(method))
+            return false;
+
+        if (!response.hasBeenPerformed() || response.getException() != null)
+            return mRetryOnException;
+
+        return mRetryStatusCodes.contains(response.getResponseCode());
+    }
+
+    /**
+     * Returns the delay to wait before the next attempt.
+     * @param attempt the amount of attempts already made
+     * @return the delay in millis
+     */
+    public long backoffMillis(int attempt) {
+        double delay = mInitialBackoff * Math.pow(mMultiplier, Math.max(0, attempt - 1));
+        delay = Math.min(delay, mMaxBackoff);
+
+        if (mJitter > 0)
+            delay -= delay * mJitter * ThreadLocalRandom.current().nextDouble();
+
+        return (long) delay;
+    }
+
+    /**
+     * Returns the delay to wait before the next attempt, considering
+     * the 'Retry-After' header of the given response too.
+     * <p>
+     * The delay requested by the server is honored up to the maximum backoff.
+     * @param attempt the amount of attempts already made
+     * @param response the response of the last attempt
+     * @return the delay in millis
+     */
+    public long backoffMillis(int attempt, HttpRequester.Response response) {
+        long delay = backoffMillis(attempt);
+
+        if (response != null && response.hasBeenPerformed()) {
+            long retryAfter = HttpRateLimiter.parseRetryAfter(
+                response.getHeaderField("Retry-After"));
+            if (retryAfter > 0)
+                delay = Math.max(delay, Math.min(retryAfter, mMaxBackoff));
+        }
+
+        return delay;
+    }
+}
@@ -0,0 +1,171 @@
+package org.docheinstein.commons.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pipe that hands the chunks of a body read by a thread to the
+ * thread consuming them, so that the transfer and the processing of the
+ * data overlap.
+ * <p>
+ * Unlike {@link java.io.PipedInputStream}, data moves in whole chunks
+ * (a single hand-off per read of the body instead of a monitor
+ * round trip per write), the reader is woken as soon as a chunk is
+ * available and the failure of the writer is delivered to the reader.
+ */
+final class HttpStreamPipe {
+
+    // Marks the end of the data
+    private static final byte[] END = new byte[0];
+
+    // Interval at which a blocked writer checks whether the reader is gone
+    private static final long OFFER_INTERVAL_MILLIS = 100;
+
+    private final BlockingQueue<byte[]> mChunks;
+    private final Input mInput = new Input();
+
+    private volatile IOException mError = null;
+    private volatile boolean mReaderClosed = false;
+
+    /**
+     * Creates a pipe.
+     * @param capacity the maximum amount of chunks not yet consumed
+     */
+    HttpStreamPipe(int capacity) {
+        mChunks = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    /**
+     * Writes the given data, waiting while the pipe is full.
+     * @param data the data
+     * @param offset the offset of the data
+     * @param length the length of the data
+     * @throws IOException if the reader has been closed
+     */
+    void write(byte[] data, int offset, int length) throws IOException {
+        if (length <= 0)
+            return;
+
+        byte[] chunk = new byte[length];
+        System.arraycopy(data, offset, chunk, 0, length);
+        put(chunk);
+    }
+
+    /**
+     * Signals the end of the data.
+     * @throws IOException if the reader has been closed
+     */
+    void close() throws IOException {
+        put(END);
+    }
+
+    /**
+     * Signals that the writer failed; the reader throws the error once
+     * the data written so far has been consumed.
+     * @param error the error
+     */
+    void fail(IOException error) {
+        mError = error;
+        try {
+            put(END);
+        } catch (IOException ignored) {
+            // The reader is gone anyway
+        }
+    }
+
+    /**
+     * Returns the stream the data can be read from.
+     * <p>
+     * Closing the stream makes the writes fail, so that the writer stops.
+     * @return the input stream of the pipe
+     */
+    InputStream input() {
+        return mInput;
+    }
+
+    private void put(byte[] chunk) throws IOException {
+        try {
+            while (!mChunks.offer(chunk, OFFER_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (mReaderClosed)
+                    throw new IOException("Pipe closed by the reader");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing to the pipe");
+        }
+    }
+
+    /**
+     * Read side of the pipe.
+     */
+    private class Input extends InputStream {
+
+        private byte[] mChunk = null;
+        private int mPosition = 0;
+        private boolean mEnded = false;
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk())
+                return -1;
+            return mChunk[mPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!nextChunk())
+                return -1;
+
+            int count = Math.min(len, mChunk.length - mPosition);
+            System.arraycopy(mChunk, mPosition, b, off, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mChunk != null ? mChunk.length - mPosition : 0;
+        }
+
+        @Override
+        public void close() {
+            mReaderClosed = true;
+            mChunks.clear();
+        }
+
+        /**
+         * Makes a chunk with unread data current, waiting for it if needed.
+         * @return whether there is data, false if the data is over
+         * @throws IOException if the writer failed
+         */
+        private boolean nextChunk() throws IOException {
+            while (mChunk == null || mPosition >= mChunk.length) {
+                if (mEnded)
+                    return false;
+
+                try {
+                    mChunk = mChunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading from the pipe");
+                }
+                mPosition = 0;
+
+                if (mChunk == END) {
+                    mEnded = true;
+                    mChunk = null;
+                    if (mError != null)
+                        throw new IOException("Transfer failed", mError);
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.docheinstein.commons.http;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport that performs the single exchanges of the {@link HttpRequester}
+ * requests in place of the built-in {@link java.net.HttpURLConnection} one.
+ * <p>
+ * Every policy of the requester (retries, hedging, limiters, coalescing,
+ * deadlines) is applied on top of the transport, which is only responsible
+ * for send a request and receive its response.
+ * <p>
+ * A transport must be thread safe, since it's usually shared between
+ * the requesters via {@link HttpRequester#transport(HttpTransport)}.
+ *
+ * @see HttpClientTransport
+ */
+public interface HttpTransport {
+
+    /**
+     * Sends the given request asynchronously.
+     * <p>
+     * The returned future should complete exceptionally if the request
+     * can't be performed, and should abort the exchange if cancelled
+     * (if the future is a dependent of the one of the exchange, e.g. via
+     * {@code thenApply}, the cancellation must be forwarded to the latter).
+     * @param request the request
+     * @return the future response of the request, built via
+     *         {@link HttpRequester.Response#of(int, Map, String)}
+     */
+    CompletableFuture<HttpRequester.Response> sendAsync(Request request);
+
+    /**
+     * A single request to be sent by a transport.
+     */
+    final class Request {
+        private final HttpRequester.RequestMethod mMethod;
+        private final URI mURI;
+        private final Map<String, String> mHeaders;
+        private final HttpRequestBody mBody;
+        private final boolean mFollowRedirects;
+        private final int mConnectionTimeout;
+        private final int mReadTimeout;
+
+        Request(HttpRequester.RequestMethod method,
+                URI uri,
+                Map<String, String> headers,
+                HttpRequestBody body,
+                boolean followRedirects,
+                int connectionTimeout,
+                int readTimeout) {
+            mMethod = method;
+            mURI = uri;
+            mHeaders = Collections.unmodifiableMap(headers);
+            mBody = body;
+            mFollowRedirects = followRedirects;
+            mConnectionTimeout = connectionTimeout;
+            mReadTimeout = readTimeout;
+        }
+
+        /**
+         * Returns the request method.
+         * @return the request method
+         */
+        public HttpRequester.RequestMethod getMethod() {
+            return mMethod;
+        }
+
+        /**
+         * Returns the uri to send the request to.
+         * @return the uri
+         */
+        public URI getURI() {
+            return mURI;
+        }
+
+        /**
+         * Returns the headers of the request.
+         * @return the headers
+         */
+        public Map<String, String> getHeaders() {
+            return mHeaders;
+        }
+
+        /**
+         * Returns the body of the request.
+         * @return the body, or null if the request has no body
+         */
+        public HttpRequestBody getBody() {
+            return mBody;
+        }
+
+        /**
+         * Returns whether redirects have to be followed.
+         * @return whether follow redirects
+         */
+        public boolean isFollowRedirects() {
+            return mFollowRedirects;
+        }
+
+        /**
+         * Returns the connection timeout.
+         * @return the connection timeout in millis, or 0 for no timeout
+         */
+        public int getConnectionTimeout() {
+            return mConnectionTimeout;
+        }
+
+        /**
+         * Returns the read timeout, which is the maximum time to wait
+         * for data from the server.
+         * @return the read timeout in millis, or 0 for no timeout
+         */
+        public int getReadTimeout() {
+            return mReadTimeout;
+        }
+    }
+}
@@ -23,6 +23,11 @@ public class ZipUtil {
 
     /**
      * Unzip a resource to a target directory.
+     * <p>
+     * The stream is read sequentially, thus it can be extracted while it is
+     * still being received (e.g. from the network); the stream is not closed.
+     * Entries that would be extracted outside the target directory are
+     * rejected.
      * @param source the zip stream
      * @param target the target directory
      * @throws IOException if the extraction fails
@@ -37,6 +42,7 @@ public class ZipUtil {
             }
         }
 
+        final String targetPath = target.getCanonicalPath() + File.separator;
         final ZipInputStream zipStream = new ZipInputStream(source);
         ZipEntry zipEntry;
 
@@ -44,12 +50,19 @@ public class ZipUtil {
             final String entryName = zipEntry.getName();
 
             final File outputFile = new File(target, entryName);
-            if (!entryName.endsWith(File.separator)) {
+            if (!outputFile.getCanonicalPath().startsWith(targetPath)) {
+                throw new IOException("Zip entry outside of the target directory: " + entryName);
+            }
+
+            if (!zipEntry.isDirectory()) {
                 // Extract file
                 L.out("Unzipping file to: " + outputFile.getAbsolutePath());
 
-                // Ensure that file exits
-                // outputFile.mkdirs();
+                // Ensure that the parent exists, the archive may not list it
+                File parent = outputFile.getParentFile();
+                if (!parent.exists() && !parent.mkdirs()) {
+                    throw new IOException("Failed to create directories needed for zip extraction");
+                }
 
                 try (OutputStream targetStream = new FileOutputStream(outputFile)) {
                     FileUtil.copy(zipStream, targetStream);
@@ -76,7 +89,9 @@ public class ZipUtil {
      */
     public static void unzip(File source,
                              File target) throws IOException {
-        unzip(new FileInputStream(source), target);
+        try (InputStream sourceStream = new BufferedInputStream(new FileInputStream(source))) {
+            unzip(sourceStream, target);
+        }
     }
 
     /**
@@ -0,0 +1,262 @@
+package org.docheinstein.commons.http;
+
+import org.docheinstein.commons.internal.DocCommonsLogger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link HttpTransport} backed by the {@code java.net.http.HttpClient}
+ * of Java 11+, which multiplexes the requests toward the same host over
+ * a single HTTP/2 connection and doesn't block a thread per request.
+ * <p>
+ * The redirect policy and the connection timeout are properties of the
+ * client rather than of the request, thus a client is created for each
+ * combination of them (each one with its own connections).
+ * <p>
+ * The client has no timeout for the single reads: the read timeout of the
+ * requests bounds the wait for the response headers as a whole (upload of
+ * the body included), then each wait for data of the response body.
+ * <p>
+ * The headers the client doesn't allow to set (e.g. 'Host', and on Java 11
+ * also 'Referer', 'Origin' and a few others) are skipped.
+ * <p>
+ * Cancelling the future returned by {@link #sendAsync(Request)} cancels
+ * the exchange of the client. Note that the {@code HttpClient} of Java
+ * 11 to 15 ignores the cancellation (JDK-8245462): there the future
+ * completes immediately, but the exchange runs to its end in background.
+ */
+public final class HttpClientTransport implements HttpTransport {
+
+    private static final DocCommonsLogger L = DocCommonsLogger.createForTag("{HTTP_CLIENT_TRANSPORT}");
+
+    private static final ScheduledExecutorService READ_TIMER =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "http-client-read-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+
+    private boolean mHttp2 = true;
+    private Executor mExecutor = null;
+
+    private final Map<String, HttpClient> mClients = new ConcurrentHashMap<>();
+
+    private HttpClientTransport() {}
+
+    /**
+     * Returns whether this transport is supported by the running JVM.
+     * @return whether the transport is supported (Java 11+)
+     */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Creates a transport with the default parameters.
+     * @return a transport
+     * @throws UnsupportedOperationException if the running JVM doesn't
+     *                                       support this transport
+     */
+    public static HttpClientTransport create() {
+        return new HttpClientTransport();
+    }
+
+    /**
+     * Whether HTTP/2 should be negotiated (falling back to HTTP/1.1 if
+     * the server doesn't support it).
+     * <p>
+     * Enabled by default.
+     * @param http2 whether use HTTP/2
+     * @return this transport
+     */
+    public HttpClientTransport http2(boolean http2) {
+        mHttp2 = http2;
+        mClients.clear();
+        return this;
+    }
+
+    /**
+     * Sets the executor used for the asynchronous tasks of the client.
+     * <p>
+     * By default the client's own executor is used.
+     * @param executor the executor
+     * @return this transport
+     */
+    public HttpClientTransport executor(Executor executor) {
+        mExecutor = executor;
+        mClients.clear();
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<HttpRequester.Response> sendAsync(Request request) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request.getURI())
+            .method(request.getMethod().name(), bodyPublisher(request.getBody()));
+
+        if (request.getReadTimeout() > 0)
+            builder.timeout(Duration.ofMillis(request.getReadTimeout()));
+
+        // The restricted headers differ between the Java versions
+        request.getHeaders().forEach((name, value) -> {
+            try {
+                builder.header(name, value);
+            } catch (IllegalArgumentException e) {
+                L.out("Skipping header restricted by the client: " + name);
+            }
+        });
+
+        HttpResponse.BodyHandler<String> bodyHandler = HttpResponse.BodyHandlers.ofString();
+        if (request.getReadTimeout() > 0) {
+            HttpResponse.BodyHandler<String> handler = bodyHandler;
+            bodyHandler = info -> new ReadTimeoutSubscriber<>(
+                handler.apply(info), request.getReadTimeout());
+        }
+
+        CompletableFuture<HttpResponse<String>> exchange =
+            client(request.isFollowRedirects(), request.getConnectionTimeout())
+                .sendAsync(builder.build(), bodyHandler);
+
+        CompletableFuture<HttpRequester.Response> response = exchange.thenApply(resp ->
+            HttpRequester.Response.of(resp.statusCode(), resp.headers().map(), resp.body()));
+
+        // Cancelling a dependent future doesn't reach the one it depends on
+        response.whenComplete((resp, t) -> {
+            if (response.isCancelled())
+                exchange.cancel(true);
+        });
+
+        return response;
+    }
+
+    private HttpClient client(boolean followRedirects, int connectionTimeout) {
+        return mClients.computeIfAbsent(followRedirects + ":" + connectionTimeout, key -> {
+            L.out("Creating client (redirects: " + followRedirects +
+                ", connection timeout: " + connectionTimeout + ")");
+
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(mHttp2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .followRedirects(followRedirects ?
+                    HttpClient.Redirect.NORMAL : HttpClient.Redirect.NEVER);
+
+            if (connectionTimeout > 0)
+                builder.connectTimeout(Duration.ofMillis(connectionTimeout));
+            if (mExecutor != null)
+                builder.executor(mExecutor);
+
+            return builder.build();
+        });
+    }
+
+    private static HttpRequest.BodyPublisher bodyPublisher(HttpRequestBody body) {
+        if (body == null)
+            return HttpRequest.BodyPublishers.noBody();
+
+        HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return body.openStream();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        long length = body.length();
+        if (length == 0)
+            return HttpRequest.BodyPublishers.noBody();
+
+        return length > 0 ? HttpRequest.BodyPublishers.fromPublisher(stream, length) : stream;
+    }
+
+    /**
+     * Subscriber of a response body that fails if no data is received
+     * for the read timeout, as a read of {@link java.net.HttpURLConnection} does.
+     */
+    private static final class ReadTimeoutSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private final HttpResponse.BodySubscriber<T> mDelegate;
+        private final long mTimeoutNanos;
+        private final AtomicBoolean mDone = new AtomicBoolean(false);
+
+        private volatile long mLastData = System.nanoTime();
+        private volatile Flow.Subscription mSubscription;
+        private volatile ScheduledFuture<?> mCheck;
+
+        private ReadTimeoutSubscriber(HttpResponse.BodySubscriber<T> delegate, int timeoutMillis) {
+            mDelegate = delegate;
+            mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return mDelegate.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            mSubscription = subscription;
+            mDelegate.onSubscribe(subscription);
+            scheduleCheck(mTimeoutNanos);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            mLastData = System.nanoTime();
+            if (!mDone.get())
+                mDelegate.onNext(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (mDone.compareAndSet(false, true)) {
+                mCheck.cancel(false);
+                mDelegate.onError(throwable);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (mDone.compareAndSet(false, true)) {
+                mCheck.cancel(false);
+                mDelegate.onComplete();
+            }
+        }
+
+        private void scheduleCheck(long delayNanos) {
+            mCheck = READ_TIMER.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void check() {
+            if (mDone.get())
+                return;
+
+            long idle = System.nanoTime() - mLastData;
+            if (idle < mTimeoutNanos) {
+                scheduleCheck(mTimeoutNanos - idle);
+                return;
+            }
+
+            if (mDone.compareAndSet(false, true)) {
+                mSubscription.cancel();
+                mDelegate.onError(new HttpTimeoutException(
+                    "No data received for " + TimeUnit.NANOSECONDS.toMillis(mTimeoutNanos) + "ms"));
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import org.docheinstein.commons.file.FileUtil;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Benchmark of the whole-file reads of {@link FileUtil}, compared with the
+ * line by line read {@link FileUtil#readFile(File, String)} used to do.
+ * <p>
+ * Usage: FileReadBenchmark [size_kb...] (16, 256, 1024, 16384 and 131072
+ * by default). For each size, a text file with lines terminated by
+ * "\r\n" is generated and read by each method.
+ */
+public class FileReadBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    // Amount of bytes read per round, at least
+    private static final long BYTES_PER_ROUND = 64 * 1024 * 1024;
+
+    private interface Reader {
+        Object read(File file) throws IOException;
+    }
+
+    /**
+     * The implementation of {@link FileUtil#readFile(File, String)} before
+     * it was built on {@link FileUtil#readString(File, Charset, String)}.
+     */
+    private static String legacyReadFile(File file, String lineSeparator) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            StringBuilder sb = new StringBuilder();
+            String line = reader.readLine();
+            if (line != null) {
+                sb.append(line);
+                while ((line = reader.readLine()) != null)
+                    sb.append(lineSeparator).append(line);
+            }
+            return sb.toString();
+        }
+    }
+
+    private static long touch(MappedByteBuffer buffer) {
+        long sum = 0;
+        for (int i = 0; i < buffer.limit(); i += 4096)
+            sum += buffer.get(i);
+        return sum;
+    }
+
+    private static File generate(int sizeKb) throws IOException {
+        File file = File.createTempFile("file-read-bench", ".txt");
+        file.deleteOnExit();
+
+        Random random = new Random(sizeKb);
+        long size = sizeKb * 1024L;
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.US_ASCII))) {
+            long written = 0;
+            while (written < size) {
+                int length = 20 + random.nextInt(100);
+                for (int i = 0; i < length; i++)
+                    w.write('a' + random.nextInt(26));
+                w.write("\r\n");
+                written += length + 2;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Runs the given reader and returns the best throughput among the rounds.
+     */
+    private static double measure(File file, Reader reader) throws IOException {
+        int iterations = (int) Math.max(1, BYTES_PER_ROUND / Math.max(1, file.length()));
+        long best = Long.MAX_VALUE;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                reader.read(file);
+            best = Math.min(best, (System.nanoTime() - start) / iterations);
+        }
+        return file.length() / (best / 1e9) / (1024 * 1024);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = args.length > 0 ?
+            Arrays.stream(args).mapToInt(Integer::parseInt).toArray() :
+            new int[] { 16, 256, 1024, 16384, 131072 };
+
+        Map<String, Reader> readers = new LinkedHashMap<>();
+        readers.put("legacy readFile", f -> legacyReadFile(f, "\n"));
+        readers.put("readFile", f -> FileUtil.readFile(f, "\n"));
+        readers.put("readString", f -> FileUtil.readString(f, StandardCharsets.UTF_8));
+        readers.put("readAllBytes", FileUtil::readAllBytes);
+        readers.put("map (touch)", f -> touch(FileUtil.map(f)));
+
+        for (int sizeKb : sizes) {
+            File file = generate(sizeKb);
+
+            if (!legacyReadFile(file, "\n").equals(FileUtil.readFile(file, "\n")))
+                throw new IllegalStateException("readFile differs from the legacy implementation");
+
+            double legacy = 0;
+            for (Map.Entry<String, Reader> reader : readers.entrySet()) {
+                double mbs = measure(file, reader.getValue());
+                if (legacy == 0)
+                    legacy = mbs;
+                System.out.println(String.format(Locale.ROOT,
+                    "%8d KB  %-16s %8.0f MB/s  x%.1f",
+                    sizeKb, reader.getKey(), mbs, mbs / legacy));
+            }
+
+            file.delete();
+        }
+    }
+}
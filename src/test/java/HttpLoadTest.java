@@ -0,0 +1,208 @@
+import org.docheinstein.commons.http.HttpBatchExecutor;
+import org.docheinstein.commons.http.HttpDownloader;
+import org.docheinstein.commons.http.HttpRequester;
+import org.docheinstein.commons.http.HttpRetryPolicy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load driver for the http package, run against {@link HttpTestServer}.
+ * <p>
+ * Usage: HttpLoadTest [scenario...], where the scenarios are
+ * 'reuse', 'concurrent', 'retries', 'download' and 'resume' (all by default).
+ */
+public class HttpLoadTest {
+
+    /**
+     * Outcome of a load run.
+     */
+    private static class Stats {
+        private final String mName;
+        private final long[] mLatencies;
+        private final int mFailures;
+        private final long mElapsedNanos;
+
+        private Stats(String name, long[] latencies, int failures, long elapsedNanos) {
+            mName = name;
+            mLatencies = latencies;
+            mFailures = failures;
+            mElapsedNanos = elapsedNanos;
+            Arrays.sort(mLatencies);
+        }
+
+        private double percentile(double p) {
+            if (mLatencies.length == 0)
+                return 0;
+            int index = (int) Math.ceil(p / 100 * mLatencies.length) - 1;
+            return mLatencies[Math.max(0, Math.min(mLatencies.length - 1, index))] / 1e6;
+        }
+
+        private double rps() {
+            return mLatencies.length / (mElapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "%-12s n=%-6d fail=%-4d rps=%-9.1f p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                mName, mLatencies.length, mFailures, rps(),
+                percentile(50), percentile(90), percentile(99), percentile(100));
+        }
+    }
+
+    /**
+     * Runs the given operation the given amount of times among the given
+     * amount of threads, measuring each run.
+     * @param name the name of the run
+     * @param threads the amount of concurrent threads
+     * @param runs the total amount of runs
+     * @param operation the operation, which returns whether it succeeded
+     * @return the stats of the run
+     */
+    private static Stats load(String name, int threads, int runs, Callable<Boolean> operation)
+            throws InterruptedException {
+        long[] latencies = new long[runs];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        long start = System.nanoTime();
+
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < runs) {
+                    long begin = System.nanoTime();
+                    boolean ok;
+                    try {
+                        ok = operation.call();
+                    } catch (Exception e) {
+                        ok = false;
+                    }
+                    latencies[i] = System.nanoTime() - begin;
+                    if (!ok)
+                        failures.incrementAndGet();
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+
+        return new Stats(name, latencies, failures.get(), System.nanoTime() - start);
+    }
+
+    private static void reuse(HttpTestServer server) throws Exception {
+        server.resetCounters();
+        String url = server.url("/bytes/1024");
+        System.out.println(load("reuse", 1, 2000, () ->
+            HttpRequester.get(url).send().getResponseCode() == 200));
+        System.out.println("    connections opened: " + server.getConnections());
+    }
+
+    private static void concurrent(HttpTestServer server) throws Exception {
+        server.resetCounters();
+        server.latency(5);
+        String url = server.url("/bytes/1024");
+        System.out.println(load("concurrent", 16, 4000, () ->
+            HttpRequester.get(url).send().getResponseCode() == 200));
+
+        List<HttpRequester> requests = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            requests.add(HttpRequester.get(url));
+        long start = System.nanoTime();
+        List<HttpBatchExecutor.Result> results = new HttpBatchExecutor()
+            .maxConcurrency(16).maxConcurrencyPerHost(16).execute(requests);
+        long ok = results.stream().filter(HttpBatchExecutor.Result::isSuccessful).count();
+        System.out.printf(Locale.ROOT, "batch        n=%-6d ok=%-5d rps=%.1f%n",
+            results.size(), ok, results.size() / ((System.nanoTime() - start) / 1e9));
+        System.out.println("    connections opened: " + server.getConnections());
+        server.latency(0);
+    }
+
+    private static void retries(HttpTestServer server) throws Exception {
+        server.resetCounters();
+        server.errors(0.3, 503);
+        String url = server.url("/bytes/256");
+        HttpRetryPolicy policy = HttpRetryPolicy.create(5).backoff(5, 50);
+        AtomicInteger attempts = new AtomicInteger();
+        System.out.println(load("retries", 8, 2000, () -> {
+            HttpRequester.Response resp = HttpRequester.get(url).retryPolicy(policy).send();
+            attempts.addAndGet(resp.getAttempts());
+            return resp.hasBeenPerformed() && resp.getResponseCode() == 200;
+        }));
+        System.out.printf(Locale.ROOT, "    injected errors: %d, attempts per request: %.2f%n",
+            server.getErrors(), attempts.get() / 2000.0);
+        server.errors(0, 503);
+    }
+
+    private static void download(HttpTestServer server) throws Exception {
+        final int size = 16 * 1024 * 1024;
+        server.resetCounters();
+        server.bandwidth(32 * 1024 * 1024);
+        File out = File.createTempFile("http-load", ".bin");
+
+        for (boolean chunked : new boolean[] { false, true }) {
+            server.chunked(chunked);
+            out.delete();
+            long start = System.nanoTime();
+            new HttpDownloader().resumeIfExists(false).download(server.url("/bytes/" + size), out.getPath());
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf(Locale.ROOT, "download     %s %.1f MB/s, verified: %b%n",
+                chunked ? "chunked" : "length ", size / seconds / 1e6, verify(out, size));
+        }
+
+        server.chunked(false);
+        server.bandwidth(0);
+        out.delete();
+    }
+
+    private static void resume(HttpTestServer server) throws Exception {
+        final int size = 4 * 1024 * 1024;
+        server.resetCounters();
+        File out = File.createTempFile("http-load", ".bin");
+
+        // Simulate an interrupted download
+        try (FileOutputStream fos = new FileOutputStream(out)) {
+            fos.write(HttpTestServer.content(size / 3));
+        }
+
+        new HttpDownloader().resumeIfExists(true).download(server.url("/bytes/" + size), out.getPath());
+        System.out.printf(Locale.ROOT, "resume       sent %d of %d bytes, verified: %b%n",
+            server.getBytesSent(), size, verify(out, size));
+        out.delete();
+    }
+
+    private static boolean verify(File file, int size) throws IOException {
+        return file.length() == size &&
+            Arrays.equals(Files.readAllBytes(file.toPath()), HttpTestServer.content(size));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Set<String> scenarios = new HashSet<>(Arrays.asList(args));
+        boolean all = scenarios.isEmpty();
+
+        HttpTestServer server = HttpTestServer.create().start();
+
+        try {
+            if (all || scenarios.contains("reuse"))
+                reuse(server);
+            if (all || scenarios.contains("concurrent"))
+                concurrent(server);
+            if (all || scenarios.contains("retries"))
+                retries(server);
+            if (all || scenarios.contains("download"))
+                download(server);
+            if (all || scenarios.contains("resume"))
+                resume(server);
+        } finally {
+            server.stop();
+        }
+    }
+}
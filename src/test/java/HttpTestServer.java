@@ -0,0 +1,370 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Embedded local HTTP server that stands in for real servers while
+ * testing and benchmarking the http package.
+ * <p>
+ * Every path is served; the size of the response body is taken from
+ * the last path segment if numeric (e.g. '/bytes/1048576'), otherwise
+ * the default body size is used. The body content is deterministic
+ * (byte i is (i + version) % 251), so that downloads can be verified.
+ * <p>
+ * The server can simulate latency, limited bandwidth, chunked responses,
+ * 'Range' and 'If-Range' requests, changes of the resources, stalls and errors.
+ */
+public class HttpTestServer {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final Pattern SIZE = Pattern.compile(".*/(\\d+)/?$");
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    private volatile long mLatency = 0;
+    private volatile long mBandwidth = 0;
+    private volatile boolean mChunked = false;
+    private volatile boolean mRangeSupport = true;
+    private volatile double mErrorRate = 0;
+    private volatile int mErrorCode = 503;
+    private volatile int mDefaultSize = 128;
+    private volatile int mVersion = 0;
+    private volatile long mStallOffset = -1;
+    private volatile long mStallMillis = 0;
+
+    private final Set<String> mConnections = ConcurrentHashMap.newKeySet();
+    private final LongAdder mRequests = new LongAdder();
+    private final LongAdder mErrors = new LongAdder();
+    private final LongAdder mBytesSent = new LongAdder();
+
+    /**
+     * Creates a server with no latency, unlimited bandwidth and no errors.
+     * @return a server
+     */
+    public static HttpTestServer create() {
+        return new HttpTestServer();
+    }
+
+    /**
+     * Sets the delay before each response.
+     * @param millis the latency in millis
+     * @return this server
+     */
+    public HttpTestServer latency(long millis) {
+        mLatency = millis;
+        return this;
+    }
+
+    /**
+     * Sets the bandwidth of each response body.
+     * @param bytesPerSecond the bandwidth, or 0 for unlimited
+     * @return this server
+     */
+    public HttpTestServer bandwidth(long bytesPerSecond) {
+        mBandwidth = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Whether the bodies are sent with chunked transfer encoding
+     * instead of with a 'Content-Length'.
+     * @param chunked whether use chunked responses
+     * @return this server
+     */
+    public HttpTestServer chunked(boolean chunked) {
+        mChunked = chunked;
+        return this;
+    }
+
+    /**
+     * Whether the 'Range' header is honored.
+     * @param rangeSupport whether support ranges
+     * @return this server
+     */
+    public HttpTestServer rangeSupport(boolean rangeSupport) {
+        mRangeSupport = rangeSupport;
+        return this;
+    }
+
+    /**
+     * Makes the given fraction of the requests fail with the given code.
+     * @param rate the error rate, between 0 and 1
+     * @param code the response code of the failed requests
+     * @return this server
+     */
+    public HttpTestServer errors(double rate, int code) {
+        mErrorRate = rate;
+        mErrorCode = code;
+        return this;
+    }
+
+    /**
+     * Sets the body size of the paths that don't specify it.
+     * @param bytes the default body size
+     * @return this server
+     */
+    public HttpTestServer defaultSize(int bytes) {
+        mDefaultSize = bytes;
+        return this;
+    }
+
+    /**
+     * Sets the version of the resources, which changes their content and
+     * their entity tag ('"v{version}"'), simulating an update on the server.
+     * @param version the version of the resources
+     * @return this server
+     */
+    public HttpTestServer version(int version) {
+        mVersion = version;
+        return this;
+    }
+
+    /**
+     * Makes the responses stop sending data for the given time when they
+     * reach the given offset of the resource; responses starting at or
+     * beyond the offset (e.g. resumed ones) don't stall.
+     * @param offset the offset of the stall, or -1 for no stall
+     * @param millis the duration of the stall
+     * @return this server
+     */
+    public HttpTestServer stall(long offset, long millis) {
+        mStallOffset = offset;
+        mStallMillis = millis;
+        return this;
+    }
+
+    /**
+     * Starts the server on a random local port.
+     * @return this server
+     * @throws IOException if the server can't be started
+     */
+    public HttpTestServer start() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", this::handle);
+        mExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "http-test-server");
+            t.setDaemon(true);
+            return t;
+        });
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+        return this;
+    }
+
+    /**
+     * Stops the server.
+     */
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the url of the given path on this server.
+     * @param path the path, starting with '/'
+     * @return the url
+     */
+    public String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    /**
+     * Returns the amount of requests served.
+     * @return the requests
+     */
+    public long getRequests() {
+        return mRequests.sum();
+    }
+
+    /**
+     * Returns the amount of injected errors.
+     * @return the errors
+     */
+    public long getErrors() {
+        return mErrors.sum();
+    }
+
+    /**
+     * Returns the amount of distinct connections accepted.
+     * @return the connections
+     */
+    public int getConnections() {
+        return mConnections.size();
+    }
+
+    /**
+     * Returns the amount of body bytes sent.
+     * @return the sent bytes
+     */
+    public long getBytesSent() {
+        return mBytesSent.sum();
+    }
+
+    /**
+     * Resets the counters.
+     */
+    public void resetCounters() {
+        mConnections.clear();
+        mRequests.reset();
+        mErrors.reset();
+        mBytesSent.reset();
+    }
+
+    /**
+     * Returns the expected content of a body of the given size.
+     * @param size the body size
+     * @return the body content
+     */
+    public static byte[] content(int size) {
+        return content(size, 0);
+    }
+
+    /**
+     * Returns the expected content of a body of the given size and version.
+     * @param size the body size
+     * @param version the version of the resource
+     * @return the body content
+     */
+    public static byte[] content(int size, int version) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++)
+            content[i] = (byte) ((i + version) % 251);
+        return content;
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        mRequests.increment();
+        mConnections.add(ex.getRemoteAddress().toString());
+
+        try (InputStream in = ex.getRequestBody()) {
+            byte[] discard = new byte[8192];
+            while (in.read(discard) >= 0);
+        }
+
+        sleep(mLatency);
+
+        if (mErrorRate > 0 && ThreadLocalRandom.current().nextDouble() < mErrorRate) {
+            mErrors.increment();
+            ex.getResponseHeaders().set("Retry-After", "0");
+            ex.sendResponseHeaders(mErrorCode, -1);
+            ex.close();
+            return;
+        }
+
+        Matcher size = SIZE.matcher(ex.getRequestURI().getPath());
+        long length = size.matches() ? Long.parseLong(size.group(1)) : mDefaultSize;
+        long from = 0;
+        long to = length - 1;
+        int code = 200;
+
+        int version = mVersion;
+        String etag = "\"v" + version + "\"";
+        ex.getResponseHeaders().set("ETag", etag);
+
+        String range = ex.getRequestHeaders().getFirst("Range");
+        String ifRange = ex.getRequestHeaders().getFirst("If-Range");
+        if (ifRange != null && !ifRange.equals(etag))
+            range = null; // The resource has changed, send it whole
+
+        if (mRangeSupport) {
+            ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+            Matcher m = range != null ? RANGE.matcher(range) : null;
+            if (m != null && m.matches()) {
+                if (m.group(1).isEmpty()) {
+                    from = Math.max(0, length - Long.parseLong(m.group(2)));
+                }
+                else {
+                    from = Long.parseLong(m.group(1));
+                    if (!m.group(2).isEmpty())
+                        to = Math.min(to, Long.parseLong(m.group(2)));
+                }
+
+                if (from > to) {
+                    ex.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                    ex.sendResponseHeaders(416, -1);
+                    ex.close();
+                    return;
+                }
+
+                code = 206;
+                ex.getResponseHeaders().set("Content-Range",
+                    "bytes " + from + "-" + to + "/" + length);
+            }
+        }
+
+        ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
+
+        long count = to - from + 1;
+
+        if ("HEAD".equals(ex.getRequestMethod())) {
+            ex.getResponseHeaders().set("Content-Length", String.valueOf(count));
+            ex.sendResponseHeaders(code, -1);
+            ex.close();
+            return;
+        }
+
+        ex.sendResponseHeaders(code, mChunked ? 0 : (count > 0 ? count : -1));
+
+        try (OutputStream out = ex.getResponseBody()) {
+            // Slices of 1/20 of second when the bandwidth is limited
+            int slice = mBandwidth > 0 ? (int) Math.max(1, Math.min(65536, mBandwidth / 20)) : 65536;
+            byte[] buffer = new byte[slice];
+            long position = from;
+            long start = System.nanoTime();
+            long sent = 0;
+
+            long stallOffset = mStallOffset;
+
+            while (position <= to) {
+                int len = (int) Math.min(buffer.length, to - position + 1);
+                if (stallOffset > position && stallOffset < position + len)
+                    len = (int) (stallOffset - position);
+                else if (stallOffset == position && position > from) {
+                    out.flush();
+                    sleep(mStallMillis);
+                    stallOffset = -1;
+                }
+
+                for (int i = 0; i < len; i++)
+                    buffer[i] = (byte) ((position + i + version) % 251);
+                out.write(buffer, 0, len);
+                position += len;
+                sent += len;
+                mBytesSent.add(len);
+
+                if (mBandwidth > 0) {
+                    long due = sent * 1000000000L / mBandwidth;
+                    long elapsed = System.nanoTime() - start;
+                    if (due > elapsed)
+                        sleep((due - elapsed) / 1000000);
+                }
+            }
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}